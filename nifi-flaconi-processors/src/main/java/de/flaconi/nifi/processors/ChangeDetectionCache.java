@@ -0,0 +1,97 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the last pushed samples of the most recently used metric families, so that a push repeating the same
+ * samples can be skipped.
+ * <p>
+ * A pushAdd replaces all series of a pushed family on the Pushgateway, so a family is identified by its push target and
+ * name, and a push is only skipped if every pushed family has exactly the samples it was last pushed with: the same
+ * series with the same values, none added and none missing. A family is only considered unchanged while its last push
+ * is younger than the max staleness, so every family is refreshed periodically. The least recently used families are
+ * evicted once the cache is full.
+ */
+class ChangeDetectionCache {
+
+  private static final class Pushed {
+    private final Map<List<Object>, Double> samples;
+    private final long pushedNanos;
+
+    private Pushed(Map<List<Object>, Double> samples, long pushedNanos) {
+      this.samples = samples;
+      this.pushedNanos = pushedNanos;
+    }
+  }
+
+  private final long maxStalenessNanos;
+  private final Map<List<Object>, Pushed> pushed;
+
+  ChangeDetectionCache(int maxEntries, long maxStalenessNanos) {
+    this.maxStalenessNanos = maxStalenessNanos;
+    this.pushed = new LinkedHashMap<List<Object>, Pushed>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<List<Object>, Pushed> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @return true if every family was pushed to the target with the same samples within the max staleness
+   */
+  synchronized boolean isUnchanged(GaugeAggregator.Target target, List<MetricFamilySamples> families) {
+    final long now = System.nanoTime();
+    if (families.isEmpty()) {
+      return false;
+    }
+    for (MetricFamilySamples family : families) {
+      final Pushed last = pushed.get(key(target, family));
+      if (last == null || now - last.pushedNanos >= maxStalenessNanos || !last.samples.equals(samples(family))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the families as pushed now.
+   */
+  synchronized void record(GaugeAggregator.Target target, List<MetricFamilySamples> families) {
+    final long now = System.nanoTime();
+    for (MetricFamilySamples family : families) {
+      pushed.put(key(target, family), new Pushed(samples(family), now));
+    }
+  }
+
+  /**
+   * Forgets the families of a failed push, so that the next push of the same samples is not skipped.
+   */
+  synchronized void forget(GaugeAggregator.Target target, List<MetricFamilySamples> families) {
+    for (MetricFamilySamples family : families) {
+      pushed.remove(key(target, family));
+    }
+  }
+
+  synchronized int size() {
+    return pushed.size();
+  }
+
+  private static List<Object> key(GaugeAggregator.Target target, MetricFamilySamples family) {
+    return Arrays.asList(target, family.name);
+  }
+
+  private static Map<List<Object>, Double> samples(MetricFamilySamples family) {
+    final Map<List<Object>, Double> samples = new HashMap<>();
+    for (MetricFamilySamples.Sample sample : family.samples) {
+      samples.put(Arrays.asList(sample.name, sample.labelValues), sample.value);
+    }
+    return samples;
+  }
+}
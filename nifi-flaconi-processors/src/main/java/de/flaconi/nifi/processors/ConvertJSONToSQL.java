@@ -20,6 +20,8 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
@@ -36,6 +38,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -51,6 +54,7 @@ import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnRemoved;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
 import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
@@ -59,8 +63,10 @@ import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
@@ -70,6 +76,7 @@ import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.node.ArrayNode;
 import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
 
 import static org.apache.nifi.flowfile.attributes.FragmentAttributes.FRAGMENT_COUNT;
 import static org.apache.nifi.flowfile.attributes.FragmentAttributes.FRAGMENT_ID;
@@ -84,7 +91,8 @@ import static org.apache.nifi.flowfile.attributes.FragmentAttributes.copyAttribu
     + "\"flat\" JSON message, meaning that it consists of a single JSON element and each field maps to a simple type. If a field maps to "
     + "a JSON object, that JSON object will be interpreted as Text. If the input is an array of JSON elements, each element in the array is "
     + "output as a separate FlowFile to the 'sql' relationship. Upon successful conversion, the original FlowFile is routed to the 'original' "
-    + "relationship and the SQL is routed to the 'sql' relationship.")
+    + "relationship and the SQL is routed to the 'sql' relationship. If a Statement Type Field is configured, the statement type is taken from each "
+    + "element, so that a single array of change records can produce INSERT, UPDATE and DELETE statements.")
 @ReadsAttributes({
     @ReadsAttribute(attribute = "convertJSONToSQL.clearCache", description = "If the attribute exists then the cache for table schema info is flushed"
         + "not two FlowFiles belong to the same transaction."),
@@ -109,12 +117,25 @@ import static org.apache.nifi.flowfile.attributes.FragmentAttributes.copyAttribu
     @WritesAttribute(attribute="<sql>.args.N.value", description="The output SQL statements are parametrized in order to avoid SQL Injection Attacks. The values of the Parameters "
         + "to use are stored in the attributes named sql.args.1.value, sql.args.2.value, sql.args.3.value, and so on. Each of these attributes has a corresponding "
         + "<sql>.args.N.type attribute that indicates how the value should be interpreted when inserting it into the database."
-        + "The prefix for this attribute ('sql', e.g.) is determined by the SQL Parameter Attribute Prefix property.")
+        + "The prefix for this attribute ('sql', e.g.) is determined by the SQL Parameter Attribute Prefix property."),
+    @WritesAttribute(attribute="<sql>.args.N.value.uuid", description="If the value of parameter N is bigger than the Large Value Threshold, "
+        + "it is not stored in <sql>.args.N.value but written to the content of its own FlowFile routed to 'large value'; this is the uuid of that FlowFile."),
+    @WritesAttribute(attribute="<sql>.statement.uuid", description="Written to a 'large value' FlowFile: the uuid of the statement the value belongs to. "
+        + "A 'large value' FlowFile is linked to its statement by this attribute only and carries no fragment attributes."),
+    @WritesAttribute(attribute="<sql>.args.index", description="Written to a 'large value' FlowFile: the index N of the parameter the value belongs to.")
 })
 public class ConvertJSONToSQL extends AbstractProcessor {
   private static final String UPDATE_TYPE = "UPDATE";
   private static final String INSERT_TYPE = "INSERT";
   private static final String DELETE_TYPE = "DELETE";
+  private static final String COUNTER_RECORDS = "Records converted";
+  private static final String COUNTER_RECORDS_SKIPPED = "Records skipped";
+  private static final String COUNTER_SCHEMA_CACHE_HITS = "Schema cache hits";
+  private static final String COUNTER_SCHEMA_CACHE_MISSES = "Schema cache misses";
+  private static final String DEBEZIUM_OP_FIELD = "op";
+  private static final String DEBEZIUM_PAYLOAD_FIELD = "payload";
+  private static final String DEBEZIUM_BEFORE_FIELD = "before";
+  private static final String DEBEZIUM_AFTER_FIELD = "after";
 
   static final AllowableValue IGNORE_UNMATCHED_FIELD = new AllowableValue("Ignore Unmatched Fields", "Ignore Unmatched Fields",
       "Any field in the JSON document that cannot be mapped to a column in the database is ignored");
@@ -129,6 +150,13 @@ public class ConvertJSONToSQL extends AbstractProcessor {
   static final AllowableValue FAIL_UNMATCHED_COLUMN = new AllowableValue("Fail on Unmatched Columns",
       "Fail on Unmatched Columns",
       "A flow will fail if any column in the database that does not have a field in the JSON document.  An error will be logged");
+  static final AllowableValue ENVELOPE_NONE = new AllowableValue("None", "None",
+      "Each JSON element is a flat row whose fields map to the columns of the table");
+  static final AllowableValue ENVELOPE_DEBEZIUM = new AllowableValue("Debezium", "Debezium",
+      "Each JSON element is a Debezium change event (optionally wrapped in a 'payload' field). The row is taken from 'after' for "
+          + "create, read and update events and from 'before' for delete events. The key columns of an update are taken from 'before', "
+          + "if present, so that an update of the primary key matches the old row. Elements without an operation, e.g. heartbeats, "
+          + "are skipped");
 
   static final PropertyDescriptor CONNECTION_POOL = new PropertyDescriptor.Builder()
       .name("JDBC Connection Pool")
@@ -144,6 +172,24 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
       .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
       .build();
+  static final PropertyDescriptor STATEMENT_TYPE_FIELD = new PropertyDescriptor.Builder()
+      .name("Statement Type Field")
+      .description("The name of the JSON field that holds the type of SQL Statement to generate for each element, so that a single "
+          + "array may mix INSERT, UPDATE and DELETE statements. Besides INSERT, UPDATE and DELETE, the Debezium operation codes "
+          + "c, r, u and d are accepted; elements of the Debezium truncate and message events (t and m) are skipped and counted as "
+          + "'Records skipped', any other type fails the FlowFile. Elements without this field use the Statement Type. The field itself is never mapped to a column. "
+          + "If not set and the Record Envelope is Debezium, the 'op' field is used.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+      .build();
+  static final PropertyDescriptor RECORD_ENVELOPE = new PropertyDescriptor.Builder()
+      .name("Record Envelope")
+      .description("Specifies how the row to convert is wrapped inside each JSON element")
+      .allowableValues(ENVELOPE_NONE, ENVELOPE_DEBEZIUM)
+      .defaultValue(ENVELOPE_NONE.getValue())
+      .required(true)
+      .build();
   static final PropertyDescriptor TABLE_NAME = new PropertyDescriptor.Builder()
       .name("Table Name")
       .description("The name of the table that the statement should update")
@@ -237,6 +283,17 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       .defaultValue("sql")
       .build();
 
+  static final PropertyDescriptor LARGE_VALUE_THRESHOLD = new PropertyDescriptor.Builder()
+      .name("Large Value Threshold")
+      .description("Values of large object columns (CLOB, NCLOB, BLOB, LONGVARCHAR, LONGNVARCHAR, LONGVARBINARY) bigger than this size are "
+          + "written to the content of their own FlowFile, routed to 'large value', instead of being stored in a <sql>.args.N.value attribute, "
+          + "so that they never sit on the FlowFile attribute heap. The statement references them by <sql>.args.N.value.uuid and is routed "
+          + "to 'sql with large values' instead of 'sql', since PutSQL cannot bind such parameters and would execute the statement with NULLs. "
+          + "If not set, all values are stored as attributes.")
+      .required(false)
+      .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+      .build();
+
   static final Relationship REL_ORIGINAL = new Relationship.Builder()
       .name("original")
       .description("When a FlowFile is converted to SQL, the original JSON FlowFile is routed to this relationship")
@@ -245,6 +302,16 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       .name("sql")
       .description("A FlowFile is routed to this relationship when its contents have successfully been converted into a SQL statement")
       .build();
+  static final Relationship REL_SQL_LARGE_VALUES = new Relationship.Builder()
+      .name("sql with large values")
+      .description("A SQL statement with at least one parameter value bigger than the Large Value Threshold. The content is the statement, "
+          + "the large values are referenced by <sql>.args.N.value.uuid. Only available if the Large Value Threshold is set.")
+      .build();
+  static final Relationship REL_LARGE_VALUE = new Relationship.Builder()
+      .name("large value")
+      .description("A parameter value bigger than the Large Value Threshold, one FlowFile per value, belonging to the statement given by "
+          + "<sql>.statement.uuid. Only available if the Large Value Threshold is set.")
+      .build();
   static final Relationship REL_FAILURE = new Relationship.Builder()
       .name("failure")
       .description("A FlowFile is routed to this relationship if it cannot be converted into a SQL statement. Common causes include invalid JSON "
@@ -256,15 +323,26 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
     @Override
     protected boolean removeEldestEntry(Map.Entry<SchemaKey,TableSchema> eldest) {
-      return size() >= 100;
+      final boolean evict = size() >= 100;
+      if (evict) {
+        metrics.schemaCacheEvictions.increment();
+      }
+      return evict;
     }
   };
 
+  private volatile ConvertJSONToSQLMetrics.Instrumentation metrics;
+
+  private volatile long largeValueThreshold = -1;
+  private volatile Set<Relationship> relationships = relationships(false);
+
   @Override
   protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
     final List<PropertyDescriptor> properties = new ArrayList<>();
     properties.add(CONNECTION_POOL);
     properties.add(STATEMENT_TYPE);
+    properties.add(STATEMENT_TYPE_FIELD);
+    properties.add(RECORD_ENVELOPE);
     properties.add(TABLE_NAME);
     properties.add(CATALOG_NAME);
     properties.add(SCHEMA_NAME);
@@ -277,23 +355,52 @@ public class ConvertJSONToSQL extends AbstractProcessor {
     properties.add(QUOTED_IDENTIFIERS);
     properties.add(QUOTED_TABLE_IDENTIFIER);
     properties.add(SQL_PARAM_ATTR_PREFIX);
+    properties.add(LARGE_VALUE_THRESHOLD);
     return properties;
   }
 
 
   @Override
   public Set<Relationship> getRelationships() {
+    return relationships;
+  }
+
+  private static Set<Relationship> relationships(final boolean largeValues) {
     final Set<Relationship> rels = new HashSet<>();
     rels.add(REL_ORIGINAL);
     rels.add(REL_SQL);
     rels.add(REL_FAILURE);
-    return rels;
+    if (largeValues) {
+      rels.add(REL_SQL_LARGE_VALUES);
+      rels.add(REL_LARGE_VALUE);
+    }
+    return Collections.unmodifiableSet(rels);
+  }
+
+  @Override
+  public void onPropertyModified(final PropertyDescriptor descriptor, final String oldValue, final String newValue) {
+    if (LARGE_VALUE_THRESHOLD.equals(descriptor)) {
+      relationships = relationships(newValue != null);
+    }
+  }
+
+
+  @Override
+  protected void init(final ProcessorInitializationContext context) {
+    metrics = ConvertJSONToSQLMetrics.forComponent(context.getIdentifier());
   }
 
+  @OnRemoved
+  public void onRemoved() {
+    ConvertJSONToSQLMetrics.removeComponent(getIdentifier());
+  }
 
   @OnScheduled
   public void onScheduled(final ProcessContext context) {
     clearSchemaCache();
+    largeValueThreshold = context.getProperty(LARGE_VALUE_THRESHOLD).isSet()
+        ? context.getProperty(LARGE_VALUE_THRESHOLD).asDataSize(DataUnit.B).longValue()
+        : -1;
   }
 
   protected void clearSchemaCache() {
@@ -308,6 +415,7 @@ public class ConvertJSONToSQL extends AbstractProcessor {
     if (flowFile == null) {
       return;
     }
+    metrics.flowFiles.increment();
 
     // flush the table schema cache if the flag exists in flowfile
     if (flowFile.getAttribute("convertJsonTOSql.clearCache") != null) {
@@ -316,7 +424,11 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
     final boolean translateFieldNames = context.getProperty(TRANSLATE_FIELD_NAMES).asBoolean();
     final boolean ignoreUnmappedFields = IGNORE_UNMATCHED_FIELD.getValue().equalsIgnoreCase(context.getProperty(UNMATCHED_FIELD_BEHAVIOR).getValue());
-    final String statementType = context.getProperty(STATEMENT_TYPE).evaluateAttributeExpressions(flowFile).getValue();
+    final String defaultStatementType = context.getProperty(STATEMENT_TYPE).evaluateAttributeExpressions(flowFile).getValue();
+    final boolean debeziumEnvelope = ENVELOPE_DEBEZIUM.getValue().equals(context.getProperty(RECORD_ENVELOPE).getValue());
+    final String statementTypeField = context.getProperty(STATEMENT_TYPE_FIELD).isSet()
+        ? context.getProperty(STATEMENT_TYPE_FIELD).evaluateAttributeExpressions(flowFile).getValue()
+        : (debeziumEnvelope ? DEBEZIUM_OP_FIELD : null);
     final String updateKeys = context.getProperty(UPDATE_KEY).evaluateAttributeExpressions(flowFile).getValue();
 
     final String catalog = context.getProperty(CATALOG_NAME).evaluateAttributeExpressions(flowFile).getValue();
@@ -344,9 +456,16 @@ public class ConvertJSONToSQL extends AbstractProcessor {
     // the Map grows beyond this capacity, old elements are evicted. We do this in order to avoid filling the
     // Java Heap if there are a lot of different SQL statements being generated that reference different tables.
     TableSchema schema;
+    final long schemaLookupStart = System.nanoTime();
     synchronized (this) {
       schema = schemaCache.get(schemaKey);
-      if (schema == null) {
+      if (schema != null) {
+        metrics.schemaCacheHits.increment();
+        session.adjustCounter(COUNTER_SCHEMA_CACHE_HITS, 1, false);
+      } else {
+        metrics.schemaCacheMisses.increment();
+        session.adjustCounter(COUNTER_SCHEMA_CACHE_MISSES, 1, false);
+
         // No schema exists for this table yet. Query the database to determine the schema and put it into the cache.
         final DBCPService dbcpService = context.getProperty(CONNECTION_POOL).asControllerService(DBCPService.class);
         try (final Connection conn = dbcpService.getConnection(flowFile == null ? Collections.emptyMap() : flowFile.getAttributes())) {
@@ -354,15 +473,18 @@ public class ConvertJSONToSQL extends AbstractProcessor {
           schemaCache.put(schemaKey, schema);
         } catch (final SQLException e) {
           getLogger().error("Failed to convert {} into a SQL statement due to {}; routing to failure", new Object[] {flowFile, e.toString()}, e);
+          metrics.failures.increment();
           session.transfer(flowFile, REL_FAILURE);
           return;
         }
       }
     }
+    metrics.observe(ConvertJSONToSQLMetrics.Phase.SCHEMA_LOOKUP, schemaLookupStart);
 
     // Parse the JSON document
     final ObjectMapper mapper = new ObjectMapper();
     final AtomicReference<JsonNode> rootNodeRef = new AtomicReference<>(null);
+    final long parseStart = System.nanoTime();
     try {
       session.read(flowFile, new InputStreamCallback() {
         @Override
@@ -374,9 +496,11 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       });
     } catch (final ProcessException pe) {
       getLogger().error("Failed to parse {} as JSON due to {}; routing to failure", new Object[] {flowFile, pe.toString()}, pe);
+      metrics.failures.increment();
       session.transfer(flowFile, REL_FAILURE);
       return;
     }
+    metrics.observe(ConvertJSONToSQLMetrics.Phase.PARSE, parseStart);
 
     final JsonNode rootNode = rootNodeRef.get();
 
@@ -395,14 +519,43 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
     final String fragmentIdentifier = UUID.randomUUID().toString();
 
-    final Set<FlowFile> created = new HashSet<>();
+    // take the statement type from each element itself, if configured, and leave out the elements that are no row
+    // changes, so that the fragment attributes only count the statements that are actually produced. A Debezium
+    // element without an operation is no change event, so it has no default type.
+    final List<JsonNode> elements = new ArrayList<>(arrayNode.size());
+    final List<String> statementTypes = new ArrayList<>(arrayNode.size());
     for (int i=0; i < arrayNode.size(); i++) {
-      final JsonNode jsonNode = arrayNode.get(i);
+      final JsonNode element = debeziumEnvelope ? unwrapPayload(arrayNode.get(i)) : arrayNode.get(i);
+      final String statementType = getStatementType(element, statementTypeField, debeziumEnvelope ? null : defaultStatementType);
+      if (statementType != null) {
+        elements.add(element);
+        statementTypes.add(statementType);
+      }
+    }
+    final int skipped = arrayNode.size() - elements.size();
+    if (skipped > 0) {
+      getLogger().debug("Skipping {} elements of {} that change no row", new Object[] {skipped, flowFile});
+    }
+
+    // transferred only once every element converted, so that a failing element can remove them all
+    final Set<FlowFile> created = new HashSet<>();
+    final List<FlowFile> sqlFlowFiles = new ArrayList<>();
+    final List<FlowFile> sqlLargeValuesFlowFiles = new ArrayList<>();
+    final List<FlowFile> largeValueFlowFiles = new ArrayList<>();
+    for (int i=0; i < elements.size(); i++) {
+      final JsonNode element = elements.get(i);
 
       final String sql;
       final Map<String, String> attributes = new HashMap<>();
+      final Map<Integer, String> largeValues = new LinkedHashMap<>();
+      final String statementType = statementTypes.get(i);
 
+      final long generationStart = System.nanoTime();
       try {
+        // unwrap the row to convert and the key of the row to update
+        final JsonNode jsonNode = getRowNode(element, statementType, statementTypeField, debeziumEnvelope);
+        final JsonNode keyNode = getKeyNode(element, statementType, jsonNode, debeziumEnvelope);
+
         // build the fully qualified table name
         final StringBuilder tableNameBuilder = new StringBuilder();
         if (catalog != null && includeCatalog) {
@@ -416,24 +569,27 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
         if (INSERT_TYPE.equals(statementType)) {
           sql = generateInsert(jsonNode, attributes, fqTableName, schema, translateFieldNames, ignoreUnmappedFields,
-              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix);
+              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix, largeValues);
         } else if (UPDATE_TYPE.equals(statementType)) {
-          sql = generateUpdate(jsonNode, attributes, fqTableName, updateKeys, schema, translateFieldNames, ignoreUnmappedFields,
-              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix);
+          sql = generateUpdate(jsonNode, keyNode, attributes, fqTableName, updateKeys, schema, translateFieldNames, ignoreUnmappedFields,
+              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix, largeValues);
         } else if (DELETE_TYPE.equals(statementType)) {
           sql = generateDelete(jsonNode, attributes, fqTableName, schema, translateFieldNames, ignoreUnmappedFields,
-              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix);
+              failUnmappedColumns, warningUnmappedColumns, escapeColumnNames, quoteTableName, attributePrefix, largeValues);
         } else {
           throw new ProcessException(INSERT_TYPE + ", " + UPDATE_TYPE + ", " + DELETE_TYPE + " types are allowed");
         }
       } catch (final ProcessException pe) {
         getLogger().error("Failed to convert {} to a SQL {} statement due to {}; routing to failure",
             new Object[] { flowFile, statementType, pe.toString() }, pe);
+        metrics.failures.increment();
         session.remove(created);
         session.transfer(flowFile, REL_FAILURE);
         return;
       }
+      metrics.observe(ConvertJSONToSQLMetrics.Phase.STATEMENT_GENERATION, generationStart);
 
+      final long writeStart = System.nanoTime();
       FlowFile sqlFlowFile = session.create(flowFile);
       created.add(sqlFlowFile);
 
@@ -444,10 +600,31 @@ public class ConvertJSONToSQL extends AbstractProcessor {
         }
       });
 
+      // every large value gets a FlowFile of its own, which the statement references by uuid
+      for (final Map.Entry<Integer, String> largeValue : largeValues.entrySet()) {
+        FlowFile valueFlowFile = session.create(flowFile);
+        created.add(valueFlowFile);
+        valueFlowFile = session.write(valueFlowFile, new OutputStreamCallback() {
+          @Override
+          public void process(final OutputStream out) throws IOException {
+            // encoded chunk by chunk, the value is never copied into a byte array as a whole
+            final Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write(largeValue.getValue());
+            writer.flush();
+          }
+        });
+        final Map<String, String> valueAttributes = new HashMap<>();
+        valueAttributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
+        valueAttributes.put(attributePrefix + ".statement.uuid", sqlFlowFile.getAttribute(CoreAttributes.UUID.key()));
+        valueAttributes.put(attributePrefix + ".args.index", String.valueOf(largeValue.getKey()));
+        largeValueFlowFiles.add(session.putAllAttributes(valueFlowFile, valueAttributes));
+        attributes.put(attributePrefix + ".args." + largeValue.getKey() + ".value.uuid", valueFlowFile.getAttribute(CoreAttributes.UUID.key()));
+      }
+
       attributes.put(CoreAttributes.MIME_TYPE.key(), "text/plain");
       attributes.put(attributePrefix + ".table", tableName);
       attributes.put(FRAGMENT_ID.key(), fragmentIdentifier);
-      attributes.put(FRAGMENT_COUNT.key(), String.valueOf(arrayNode.size()));
+      attributes.put(FRAGMENT_COUNT.key(), String.valueOf(elements.size()));
       attributes.put(FRAGMENT_INDEX.key(), String.valueOf(i));
 
       if (catalog != null) {
@@ -455,13 +632,100 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       }
 
       sqlFlowFile = session.putAllAttributes(sqlFlowFile, attributes);
-      session.transfer(sqlFlowFile, REL_SQL);
+      (largeValues.isEmpty() ? sqlFlowFiles : sqlLargeValuesFlowFiles).add(sqlFlowFile);
+      metrics.observe(ConvertJSONToSQLMetrics.Phase.FLOWFILE_WRITE, writeStart);
+    }
+
+    session.transfer(sqlFlowFiles, REL_SQL);
+    session.transfer(sqlLargeValuesFlowFiles, REL_SQL_LARGE_VALUES);
+    session.transfer(largeValueFlowFiles, REL_LARGE_VALUE);
+
+    metrics.records.add(elements.size());
+    metrics.skippedRecords.add(skipped);
+    session.adjustCounter(COUNTER_RECORDS, elements.size(), false);
+    if (skipped > 0) {
+      session.adjustCounter(COUNTER_RECORDS_SKIPPED, skipped, false);
     }
 
-    flowFile = copyAttributesToOriginal(session, flowFile, fragmentIdentifier, arrayNode.size());
+    flowFile = copyAttributesToOriginal(session, flowFile, fragmentIdentifier, elements.size());
     session.transfer(flowFile, REL_ORIGINAL);
   }
 
+  /**
+   *  Determine the statement type of a single JSON element, falling back to the given default type when the
+   *  element does not carry its own type. Debezium operation codes are translated to the matching statement type.
+   *  Returns null for the Debezium truncate and message events, which change no row, and when there is neither a type
+   *  nor a default, e.g. for a Debezium heartbeat; such an element is skipped. Any other type is returned upper case,
+   *  so that an unknown one fails the FlowFile.
+   */
+  static String getStatementType(final JsonNode element, final String statementTypeField, final String defaultStatementType) {
+    if (statementTypeField == null) {
+      return defaultStatementType;
+    }
+
+    final JsonNode typeNode = element.get(statementTypeField);
+    if (typeNode == null || typeNode.isNull()) {
+      return defaultStatementType;
+    }
+
+    final String type = typeNode.asText().trim();
+    switch (type) {
+      case "c":
+      case "r":
+        return INSERT_TYPE;
+      case "u":
+        return UPDATE_TYPE;
+      case "d":
+        return DELETE_TYPE;
+      case "t":
+      case "m":
+        return null;
+      default:
+        return type.toUpperCase(Locale.ROOT);
+    }
+  }
+
+  /**
+   *  Debezium events serialized with the JSON converter schemas enabled carry the actual event in a 'payload' field.
+   */
+  private static JsonNode unwrapPayload(final JsonNode element) {
+    final JsonNode payload = element.get(DEBEZIUM_PAYLOAD_FIELD);
+    return payload != null && payload.isObject() ? payload : element;
+  }
+
+  /**
+   *  Extract the row that is converted into a SQL statement from a JSON element. For flat rows the statement type field
+   *  is removed so that it is not mapped to a column; for Debezium events the 'before' or 'after' image is returned.
+   */
+  static JsonNode getRowNode(final JsonNode element, final String statementType, final String statementTypeField,
+                             final boolean debeziumEnvelope) {
+    if (!debeziumEnvelope) {
+      if (statementTypeField != null && element.isObject()) {
+        ((ObjectNode) element).remove(statementTypeField);
+      }
+      return element;
+    }
+
+    final String imageField = DELETE_TYPE.equals(statementType) ? DEBEZIUM_BEFORE_FIELD : DEBEZIUM_AFTER_FIELD;
+    final JsonNode row = element.get(imageField);
+    if (row == null || !row.isObject()) {
+      throw new ProcessException("Debezium change event does not have a '" + imageField + "' row for a " + statementType + " statement");
+    }
+    return row;
+  }
+
+  /**
+   *  Extract the row whose key columns select the row to update. For a Debezium update this is the 'before' image, if
+   *  present, since the key itself may have changed; otherwise it is the row that is converted.
+   */
+  static JsonNode getKeyNode(final JsonNode element, final String statementType, final JsonNode row, final boolean debeziumEnvelope) {
+    if (!debeziumEnvelope || !UPDATE_TYPE.equals(statementType)) {
+      return row;
+    }
+    final JsonNode before = element.get(DEBEZIUM_BEFORE_FIELD);
+    return before != null && before.isObject() ? before : row;
+  }
+
   private Set<String> getNormalizedColumnNames(final JsonNode node, final boolean translateFieldNames) {
     final Set<String> normalizedFieldNames = new HashSet<>();
     final Iterator<String> fieldNameItr = node.getFieldNames();
@@ -474,7 +738,8 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
   private String generateInsert(final JsonNode rootNode, final Map<String, String> attributes, final String tableName,
                                 final TableSchema schema, final boolean translateFieldNames, final boolean ignoreUnmappedFields, final boolean failUnmappedColumns,
-                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix) {
+                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix,
+                                final Map<Integer, String> largeValues) {
 
     final Set<String> normalizedFieldNames = getNormalizedColumnNames(rootNode, translateFieldNames);
     for (final String requiredColName : schema.getRequiredColumnNames()) {
@@ -534,7 +799,7 @@ public class ConvertJSONToSQL extends AbstractProcessor {
         final JsonNode fieldNode = rootNode.get(fieldName);
         if (!fieldNode.isNull()) {
           String fieldValue = createSqlStringValue(fieldNode, colSize, sqlType);
-          attributes.put(attributePrefix + ".args." + fieldCount + ".value", fieldValue);
+          putArgValue(attributes, largeValues, attributePrefix, fieldCount, sqlType, fieldValue);
         }
       }
     }
@@ -621,9 +886,10 @@ public class ConvertJSONToSQL extends AbstractProcessor {
     return fieldValue;
   }
 
-  private String generateUpdate(final JsonNode rootNode, final Map<String, String> attributes, final String tableName, final String updateKeys,
+  private String generateUpdate(final JsonNode rootNode, final JsonNode keyNode, final Map<String, String> attributes, final String tableName, final String updateKeys,
                                 final TableSchema schema, final boolean translateFieldNames, final boolean ignoreUnmappedFields, final boolean failUnmappedColumns,
-                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix) {
+                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix,
+                                final Map<Integer, String> largeValues) {
 
     final Set<String> updateKeyNames;
     if (updateKeys == null) {
@@ -655,7 +921,7 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
     // Create a Set of all normalized Update Key names, and ensure that there is a field in the JSON
     // for each of the Update Key fields.
-    final Set<String> normalizedFieldNames = getNormalizedColumnNames(rootNode, translateFieldNames);
+    final Set<String> normalizedFieldNames = getNormalizedColumnNames(keyNode, translateFieldNames);
     final Set<String> normalizedUpdateNames = new HashSet<>();
     for (final String uk : updateKeyNames) {
       final String normalizedUK = normalizeColumnName(uk, translateFieldNames);
@@ -690,8 +956,8 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       }
 
       // Check if this column is an Update Key. If so, skip it for now. We will come
-      // back to it after we finish the SET clause
-      if (normalizedUpdateNames.contains(normalizedColName)) {
+      // back to it after we finish the SET clause. A key column that changed is set as well.
+      if (normalizedUpdateNames.contains(normalizedColName) && rootNode.get(fieldName).equals(keyNode.get(fieldName))) {
         continue;
       }
 
@@ -716,14 +982,14 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       final JsonNode fieldNode = rootNode.get(fieldName);
       if (!fieldNode.isNull()) {
         String fieldValue = createSqlStringValue(fieldNode, colSize, sqlType);
-        attributes.put(attributePrefix + ".args." + fieldCount + ".value", fieldValue);
+        putArgValue(attributes, largeValues, attributePrefix, fieldCount, sqlType, fieldValue);
       }
     }
 
     // Set the WHERE clause based on the Update Key values
     sqlBuilder.append(" WHERE ");
 
-    fieldNames = rootNode.getFieldNames();
+    fieldNames = keyNode.getFieldNames();
     int whereFieldCount = 0;
     while (fieldNames.hasNext()) {
       final String fieldName = fieldNames.next();
@@ -757,11 +1023,11 @@ public class ConvertJSONToSQL extends AbstractProcessor {
       attributes.put(attributePrefix + ".args." + fieldCount + ".type", String.valueOf(sqlType));
 
       final Integer colSize = desc.getColumnSize();
-      String fieldValue = rootNode.get(fieldName).asText();
+      String fieldValue = keyNode.get(fieldName).asText();
       if (colSize != null && fieldValue.length() > colSize) {
         fieldValue = fieldValue.substring(0, colSize);
       }
-      attributes.put(attributePrefix + ".args." + fieldCount + ".value", fieldValue);
+      putArgValue(attributes, largeValues, attributePrefix, fieldCount, sqlType, fieldValue);
     }
 
     return sqlBuilder.toString();
@@ -769,7 +1035,8 @@ public class ConvertJSONToSQL extends AbstractProcessor {
 
   private String generateDelete(final JsonNode rootNode, final Map<String, String> attributes, final String tableName,
                                 final TableSchema schema, final boolean translateFieldNames, final boolean ignoreUnmappedFields, final boolean failUnmappedColumns,
-                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix) {
+                                final boolean warningUnmappedColumns, boolean escapeColumnNames, boolean quoteTableName, final String attributePrefix,
+                                final Map<Integer, String> largeValues) {
     final Set<String> normalizedFieldNames = getNormalizedColumnNames(rootNode, translateFieldNames);
     for (final String requiredColName : schema.getRequiredColumnNames()) {
       final String normalizedColName = normalizeColumnName(requiredColName, translateFieldNames);
@@ -832,7 +1099,7 @@ public class ConvertJSONToSQL extends AbstractProcessor {
         final Integer colSize = desc.getColumnSize();
         if (!fieldNode.isNull()) {
           String fieldValue = createSqlStringValue(fieldNode, colSize, sqlType);
-          attributes.put(attributePrefix + ".args." + fieldCount + ".value", fieldValue);
+          putArgValue(attributes, largeValues, attributePrefix, fieldCount, sqlType, fieldValue);
         }
       }
     }
@@ -844,8 +1111,67 @@ public class ConvertJSONToSQL extends AbstractProcessor {
     return sqlBuilder.toString();
   }
 
+  /**
+   *  Store the value of a statement parameter. Values of large object columns above the Large Value Threshold are
+   *  collected separately so that they are written to the content instead of the FlowFile attributes.
+   */
+  private void putArgValue(final Map<String, String> attributes, final Map<Integer, String> largeValues, final String attributePrefix,
+                           final int index, final int sqlType, final String fieldValue) {
+    if (isLargeValue(fieldValue, sqlType, largeValueThreshold)) {
+      largeValues.put(index, fieldValue);
+    } else {
+      attributes.put(attributePrefix + ".args." + index + ".value", fieldValue);
+    }
+  }
+
+  static boolean isLargeValue(final String fieldValue, final int sqlType, final long threshold) {
+    if (threshold < 0) {
+      return false;
+    }
+
+    switch (sqlType) {
+      case Types.CLOB:
+      case Types.NCLOB:
+      case Types.BLOB:
+      case Types.LONGVARCHAR:
+      case Types.LONGNVARCHAR:
+      case Types.LONGVARBINARY:
+        // a char takes at least one and at most three bytes in UTF-8, so most values need not be measured to decide
+        if (fieldValue.length() > threshold) {
+          return true;
+        }
+        if ((long) fieldValue.length() * 3 <= threshold) {
+          return false;
+        }
+        return utf8Length(fieldValue) > threshold;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   *  The number of bytes of the value in UTF-8, without encoding it.
+   */
+  private static long utf8Length(final String value) {
+    long length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
   private static String normalizeColumnName(final String colName, final boolean translateColumnNames) {
-    return translateColumnNames ? colName.toUpperCase().replace("_", "") : colName;
+    return translateColumnNames ? colName.toUpperCase(Locale.ROOT).replace("_", "") : colName;
   }
 
   private static class TableSchema {
@@ -0,0 +1,175 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and latency instrumentation of the {@link ConvertJSONToSQL} processors of this JVM.
+ * <p>
+ * The counters and histograms are plain {@link LongAdder}s, so recording does not allocate or contend. The collector
+ * is registered in {@link CollectorRegistry#defaultRegistry}, which is shared by all components of this bundle, so
+ * the reporting task can publish these series together with the NiFi status metrics.
+ */
+public class ConvertJSONToSQLMetrics extends Collector {
+
+  private static final String PREFIX = "nifi_convert_json_to_sql_";
+  private static final List<String> COMPONENT_LABEL = Collections.singletonList("component_id");
+
+  // upper bounds of the latency buckets, from 10 microseconds up to 5 seconds
+  private static final long[] BUCKET_BOUNDS_NANOS = {
+      10_000L, 50_000L, 100_000L, 500_000L,
+      1_000_000L, 5_000_000L, 10_000_000L, 50_000_000L,
+      100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L
+  };
+
+  static final ConvertJSONToSQLMetrics INSTANCE = new ConvertJSONToSQLMetrics().register();
+
+  private final Map<String, Instrumentation> components = new ConcurrentHashMap<>();
+
+  enum Phase {
+    PARSE("parse"),
+    SCHEMA_LOOKUP("schema_lookup"),
+    STATEMENT_GENERATION("statement_generation"),
+    FLOWFILE_WRITE("flowfile_write");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+  }
+
+  static Instrumentation forComponent(String componentId) {
+    return INSTANCE.components.computeIfAbsent(componentId, id -> new Instrumentation());
+  }
+
+  static void removeComponent(String componentId) {
+    INSTANCE.components.remove(componentId);
+  }
+
+  /**
+   * Counters and phase latencies of a single processor.
+   */
+  static class Instrumentation {
+    final LongAdder flowFiles = new LongAdder();
+    final LongAdder records = new LongAdder();
+    final LongAdder skippedRecords = new LongAdder();
+    final LongAdder failures = new LongAdder();
+    final LongAdder schemaCacheHits = new LongAdder();
+    final LongAdder schemaCacheMisses = new LongAdder();
+    final LongAdder schemaCacheEvictions = new LongAdder();
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+
+    private Instrumentation() {
+      for (int i = 0; i < latencies.length; i++) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    void observe(Phase phase, long startNanos) {
+      latencies[phase.ordinal()].observe(System.nanoTime() - startNanos);
+    }
+
+    LatencyHistogram latency(Phase phase) {
+      return latencies[phase.ordinal()];
+    }
+  }
+
+  static class LatencyHistogram {
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    private LatencyHistogram() {
+      for (int i = 0; i < buckets.length; i++) {
+        buckets[i] = new LongAdder();
+      }
+    }
+
+    void observe(long nanos) {
+      int bucket = 0;
+      while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+        bucket++;
+      }
+      buckets[bucket].increment();
+      count.increment();
+      sumNanos.add(nanos);
+    }
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples.Sample> flowFiles = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> records = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> skippedRecords = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> failures = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> cacheRequests = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> cacheEvictions = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> latencies = new ArrayList<>();
+
+    final List<String> cacheLabels = Arrays.asList("component_id", "result");
+    final List<String> phaseLabels = Arrays.asList("component_id", "phase");
+    final List<String> bucketLabels = Arrays.asList("component_id", "phase", "le");
+
+    components.forEach((componentId, instrumentation) -> {
+      final List<String> component = Collections.singletonList(componentId);
+      flowFiles.add(new MetricFamilySamples.Sample(PREFIX + "flowfiles_total", COMPONENT_LABEL, component,
+          instrumentation.flowFiles.sum()));
+      records.add(new MetricFamilySamples.Sample(PREFIX + "records_total", COMPONENT_LABEL, component,
+          instrumentation.records.sum()));
+      skippedRecords.add(new MetricFamilySamples.Sample(PREFIX + "skipped_records_total", COMPONENT_LABEL, component,
+          instrumentation.skippedRecords.sum()));
+      failures.add(new MetricFamilySamples.Sample(PREFIX + "failures_total", COMPONENT_LABEL, component,
+          instrumentation.failures.sum()));
+      cacheRequests.add(new MetricFamilySamples.Sample(PREFIX + "schema_cache_requests_total", cacheLabels,
+          Arrays.asList(componentId, "hit"), instrumentation.schemaCacheHits.sum()));
+      cacheRequests.add(new MetricFamilySamples.Sample(PREFIX + "schema_cache_requests_total", cacheLabels,
+          Arrays.asList(componentId, "miss"), instrumentation.schemaCacheMisses.sum()));
+      cacheEvictions.add(new MetricFamilySamples.Sample(PREFIX + "schema_cache_evictions_total", COMPONENT_LABEL, component,
+          instrumentation.schemaCacheEvictions.sum()));
+
+      for (Phase phase : Phase.values()) {
+        final LatencyHistogram histogram = instrumentation.latency(phase);
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; i++) {
+          cumulative += histogram.buckets[i].sum();
+          final String le = i < BUCKET_BOUNDS_NANOS.length
+              ? doubleToGoString(BUCKET_BOUNDS_NANOS[i] / NANOSECONDS_PER_SECOND)
+              : "+Inf";
+          latencies.add(new MetricFamilySamples.Sample(PREFIX + "phase_duration_seconds_bucket", bucketLabels,
+              Arrays.asList(componentId, phase.label, le), cumulative));
+        }
+        latencies.add(new MetricFamilySamples.Sample(PREFIX + "phase_duration_seconds_count", phaseLabels,
+            Arrays.asList(componentId, phase.label), histogram.count.sum()));
+        latencies.add(new MetricFamilySamples.Sample(PREFIX + "phase_duration_seconds_sum", phaseLabels,
+            Arrays.asList(componentId, phase.label), histogram.sumNanos.sum() / NANOSECONDS_PER_SECOND));
+      }
+    });
+
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    families.add(new MetricFamilySamples(PREFIX + "flowfiles_total", Type.COUNTER,
+        "Number of FlowFiles received by ConvertJSONToSQL", flowFiles));
+    families.add(new MetricFamilySamples(PREFIX + "records_total", Type.COUNTER,
+        "Number of JSON records converted into SQL statements", records));
+    families.add(new MetricFamilySamples(PREFIX + "skipped_records_total", Type.COUNTER,
+        "Number of JSON records skipped because they change no row, e.g. Debezium heartbeats", skippedRecords));
+    families.add(new MetricFamilySamples(PREFIX + "failures_total", Type.COUNTER,
+        "Number of FlowFiles routed to failure", failures));
+    families.add(new MetricFamilySamples(PREFIX + "schema_cache_requests_total", Type.COUNTER,
+        "Number of table schema cache lookups by result", cacheRequests));
+    families.add(new MetricFamilySamples(PREFIX + "schema_cache_evictions_total", Type.COUNTER,
+        "Number of table schemas evicted from the cache", cacheEvictions));
+    families.add(new MetricFamilySamples(PREFIX + "phase_duration_seconds", Type.HISTOGRAM,
+        "Time spent in each processing phase: parse and schema lookup per FlowFile, statement generation and FlowFile write per record",
+        latencies));
+    return families;
+  }
+}
@@ -0,0 +1,172 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Buffers gauge updates between two pushes, combining the updates of the same series.
+ * <p>
+ * A series is identified by its Pushgateway endpoint, job, grouping key, metric name and label values. The buffer is
+ * drained as a whole; if the push fails the drained series are restored underneath any update that arrived meanwhile.
+ */
+class GaugeAggregator {
+
+  enum Mode {
+    LAST, SUM, MIN, MAX;
+
+    double combine(double current, double update) {
+      switch (this) {
+        case SUM:
+          return current + update;
+        case MIN:
+          return Math.min(current, update);
+        case MAX:
+          return Math.max(current, update);
+        default:
+          return update;
+      }
+    }
+  }
+
+  /**
+   * A push target: the Pushgateway endpoint, the job and the grouping key of a pushAdd call.
+   */
+  static final class Target {
+    final String host;
+    final String port;
+    final String job;
+    final Map<String, String> groupingKey;
+
+    Target(String host, String port, String job, Map<String, String> groupingKey) {
+      this.host = host;
+      this.port = port;
+      this.job = job;
+      this.groupingKey = groupingKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Target)) {
+        return false;
+      }
+      final Target target = (Target) o;
+      return host.equals(target.host) && port.equals(target.port) && job.equals(target.job)
+          && groupingKey.equals(target.groupingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(host, port, job, groupingKey);
+    }
+  }
+
+  private static final class Series {
+    final String name;
+    final String help;
+    final List<String> labelNames;
+    final List<String> labelValues;
+    double value;
+
+    Series(String name, String help, List<String> labelNames, List<String> labelValues, double value) {
+      this.name = name;
+      this.help = help;
+      this.labelNames = labelNames;
+      this.labelValues = labelValues;
+      this.value = value;
+    }
+  }
+
+  private final Mode mode;
+  private Map<Target, Map<List<String>, Series>> pending = new HashMap<>();
+  private int size;
+  private long lastFlushNanos = System.nanoTime();
+
+  GaugeAggregator(Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Adds the gauge samples collected from a registry to the buffer.
+   */
+  synchronized void add(Target target, Iterable<MetricFamilySamples> families) {
+    final Map<List<String>, Series> series = pending.computeIfAbsent(target, t -> new HashMap<>());
+    for (MetricFamilySamples family : families) {
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        final List<String> key = new ArrayList<>(sample.labelValues.size() + 1);
+        key.add(sample.name);
+        key.addAll(sample.labelValues);
+        final Series current = series.get(key);
+        if (current == null) {
+          series.put(key, new Series(sample.name, family.help, sample.labelNames, sample.labelValues, sample.value));
+          size++;
+        } else {
+          current.value = mode.combine(current.value, sample.value);
+        }
+      }
+    }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  synchronized boolean isFlushDue(long intervalNanos, int maxSeries) {
+    return size > 0 && (size >= maxSeries || System.nanoTime() - lastFlushNanos >= intervalNanos);
+  }
+
+  /**
+   * Takes all buffered series, one collector per push target.
+   */
+  synchronized Map<Target, Collector> drain() {
+    final Map<Target, Collector> collectors = new LinkedHashMap<>();
+    pending.forEach((target, series) -> collectors.put(target, new AggregatedGauges(series)));
+    pending = new HashMap<>();
+    size = 0;
+    lastFlushNanos = System.nanoTime();
+    return collectors;
+  }
+
+  /**
+   * Puts the series of a failed push back. Updates buffered since the drain are newer, so they are combined on top.
+   */
+  synchronized void restore(Target target, Collector collector) {
+    final Map<List<String>, Series> series = pending.computeIfAbsent(target, t -> new HashMap<>());
+    ((AggregatedGauges) collector).series.forEach((key, drained) -> {
+      final Series current = series.get(key);
+      if (current == null) {
+        series.put(key, drained);
+        size++;
+      } else {
+        current.value = mode.combine(drained.value, current.value);
+      }
+    });
+  }
+
+  private static final class AggregatedGauges extends Collector {
+    private final Map<List<String>, Series> series;
+
+    private AggregatedGauges(Map<List<String>, Series> series) {
+      this.series = series;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final Map<String, MetricFamilySamples> families = new LinkedHashMap<>();
+      for (Series s : series.values()) {
+        families.computeIfAbsent(s.name, name -> new MetricFamilySamples(name, Type.GAUGE, s.help, new ArrayList<>()))
+            .samples.add(new MetricFamilySamples.Sample(s.name, s.labelNames, s.labelValues, s.value));
+      }
+      return new ArrayList<>(families.values());
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The gauge series set from one FlowFile. A lighter replacement of a {@link io.prometheus.client.Gauge} built per
+ * FlowFile: the name, help and label names are compiled once and the series are plain values, the last one set for
+ * the same label values wins.
+ */
+class GaugeSeries extends Collector implements Collector.Describable {
+
+  /**
+   * The parts of the gauge that stay the same for every FlowFile.
+   */
+  static final class Template {
+    final String help;
+    final List<String> labelNames;
+
+    Template(String help, String[] labelNames) {
+      this.help = help;
+      this.labelNames = Collections.unmodifiableList(Arrays.asList(labelNames));
+    }
+  }
+
+  private final String name;
+  private final Template template;
+  private final Map<List<String>, Double> values = new LinkedHashMap<>();
+
+  GaugeSeries(String name, Template template) {
+    this.name = name;
+    this.template = template;
+  }
+
+  void set(String[] labelValues, double value) {
+    values.put(Arrays.asList(labelValues), value);
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples.Sample> samples = new ArrayList<>(values.size());
+    values.forEach((labelValues, value) -> samples.add(new MetricFamilySamples.Sample(name, template.labelNames, labelValues, value)));
+    return Collections.singletonList(new MetricFamilySamples(name, Type.GAUGE, template.help, samples));
+  }
+
+  @Override
+  public List<MetricFamilySamples> describe() {
+    return Collections.singletonList(new MetricFamilySamples(name, Type.GAUGE, template.help,
+        Collections.<MetricFamilySamples.Sample>emptyList()));
+  }
+}
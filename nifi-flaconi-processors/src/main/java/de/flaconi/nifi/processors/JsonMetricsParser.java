@@ -0,0 +1,150 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParseException;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams a JSON array of metric families, in the layout written by prom2json, into {@link ParsedMetrics}. Only one
+ * family is held in memory at a time.
+ * <pre>
+ * [{"name": "http_requests_total", "help": "...", "type": "COUNTER",
+ *   "metrics": [{"labels": {"method": "get"}, "value": "12", "timestamp_ms": "1577836800000"}]},
+ *  {"name": "http_request_duration_seconds", "help": "...", "type": "HISTOGRAM",
+ *   "metrics": [{"labels": {}, "buckets": {"0.1": "3", "1": "5"}, "count": "6", "sum": "2.5"}]}]
+ * </pre>
+ * Summaries hold "quantiles" instead of "buckets". Values may be numbers or strings, including "+Inf" and "NaN".
+ */
+final class JsonMetricsParser {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private JsonMetricsParser() {
+  }
+
+  /**
+   * @throws IllegalArgumentException if the content is not an array of valid metric families
+   */
+  static void parse(InputStream in, ParsedMetrics metrics) throws IOException {
+    try {
+      final JsonParser parser = MAPPER.getJsonFactory().createJsonParser(in);
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IllegalArgumentException("Expected an array of metric families");
+      }
+      int index = 0;
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        final JsonNode family = MAPPER.readTree(parser);
+        try {
+          parseFamily(family, metrics);
+        } catch (IllegalArgumentException illegalArgumentException) {
+          throw new IllegalArgumentException("Metric family " + index + ": " + illegalArgumentException.getMessage(),
+              illegalArgumentException);
+        }
+        index++;
+      }
+      if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+        throw new IllegalArgumentException("Expected a metric family object at index " + index);
+      }
+    } catch (JsonParseException jsonParseException) {
+      throw new IllegalArgumentException("Invalid JSON: " + jsonParseException.getMessage(), jsonParseException);
+    }
+  }
+
+  private static void parseFamily(JsonNode family, ParsedMetrics metrics) {
+    final String name = text(family, "name");
+    final Collector.Type type = family.has("type") ? ParsedMetrics.parseType(family.get("type").asText()) : Collector.Type.UNTYPED;
+    metrics.declare(name, type, family.has("help") ? family.get("help").asText() : null);
+
+    final JsonNode series = family.get("metrics");
+    if (series == null || !series.isArray()) {
+      throw new IllegalArgumentException("Expected a \"metrics\" array");
+    }
+    for (JsonNode metric : series) {
+      final List<String> labelNames = new ArrayList<>();
+      final List<String> labelValues = new ArrayList<>();
+      final JsonNode labels = metric.get("labels");
+      if (labels != null) {
+        final Iterator<Map.Entry<String, JsonNode>> fields = labels.getFields();
+        while (fields.hasNext()) {
+          final Map.Entry<String, JsonNode> label = fields.next();
+          labelNames.add(label.getKey());
+          labelValues.add(label.getValue().asText());
+        }
+      }
+      final Long timestampMs = metric.has("timestamp_ms") ? (long) number(metric, "timestamp_ms") : null;
+
+      switch (type) {
+        case HISTOGRAM:
+          addDistribution(metrics, name, metric, "buckets", "le", name + "_bucket", labelNames, labelValues, timestampMs);
+          break;
+        case SUMMARY:
+          addDistribution(metrics, name, metric, "quantiles", "quantile", name, labelNames, labelValues, timestampMs);
+          break;
+        default:
+          metrics.add(name, name, labelNames, labelValues, number(metric, "value"), timestampMs);
+      }
+    }
+  }
+
+  /**
+   * Adds the buckets or quantiles of a histogram or summary series, followed by its count and sum. A histogram
+   * without a "+Inf" bucket gets one holding the count.
+   */
+  private static void addDistribution(ParsedMetrics metrics, String name, JsonNode metric, String field, String label,
+                                      String sampleName, List<String> labelNames, List<String> labelValues,
+                                      Long timestampMs) {
+    final List<String> distributionLabelNames = new ArrayList<>(labelNames);
+    distributionLabelNames.add(label);
+    final double count = number(metric, "count");
+    boolean infinityBucket = false;
+    final JsonNode distribution = metric.get(field);
+    if (distribution != null) {
+      final Iterator<Map.Entry<String, JsonNode>> entries = distribution.getFields();
+      while (entries.hasNext()) {
+        final Map.Entry<String, JsonNode> entry = entries.next();
+        final double bound = ParsedMetrics.parseValue(entry.getKey());
+        infinityBucket |= bound == Double.POSITIVE_INFINITY;
+        final List<String> distributionLabelValues = new ArrayList<>(labelValues);
+        distributionLabelValues.add(Collector.doubleToGoString(bound));
+        metrics.add(name, sampleName, distributionLabelNames, distributionLabelValues, value(entry.getValue()), timestampMs);
+      }
+    }
+    if ("le".equals(label) && !infinityBucket) {
+      final List<String> distributionLabelValues = new ArrayList<>(labelValues);
+      distributionLabelValues.add("+Inf");
+      metrics.add(name, sampleName, distributionLabelNames, distributionLabelValues, count, timestampMs);
+    }
+    metrics.add(name, name + "_count", labelNames, labelValues, count, timestampMs);
+    metrics.add(name, name + "_sum", labelNames, labelValues, number(metric, "sum"), timestampMs);
+  }
+
+  private static String text(JsonNode node, String field) {
+    final JsonNode value = node.get(field);
+    if (value == null || !value.isValueNode()) {
+      throw new IllegalArgumentException("Expected the field \"" + field + "\"");
+    }
+    return value.asText();
+  }
+
+  private static double number(JsonNode node, String field) {
+    final JsonNode value = node.get(field);
+    if (value == null) {
+      throw new IllegalArgumentException("Expected the field \"" + field + "\"");
+    }
+    return value(value);
+  }
+
+  private static double value(JsonNode value) {
+    return value.isNumber() ? value.asDouble() : ParsedMetrics.parseValue(value.asText());
+  }
+}
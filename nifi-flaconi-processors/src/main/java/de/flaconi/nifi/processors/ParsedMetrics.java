@@ -0,0 +1,188 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The metric families parsed from the content of one FlowFile, registered as one collector so that all of them are
+ * pushed together. A series given twice keeps the last value.
+ */
+class ParsedMetrics extends Collector {
+
+  private static final List<String> HISTOGRAM_SUFFIXES = Arrays.asList("_bucket", "_sum", "_count");
+  private static final List<String> SUMMARY_SUFFIXES = Arrays.asList("_sum", "_count");
+  private static final List<String> COUNTER_SUFFIXES = Collections.singletonList("_total");
+
+  private static final class Family {
+    final String name;
+    Type type = Type.UNTYPED;
+    String help = "";
+    final Map<List<String>, MetricFamilySamples.Sample> samples = new LinkedHashMap<>();
+
+    Family(String name) {
+      this.name = name;
+    }
+  }
+
+  private final boolean keepTimestamps;
+  private final Map<String, Family> families = new LinkedHashMap<>();
+  private int sampleCount;
+
+  /**
+   * @param keepTimestamps whether the timestamps of the samples are kept; the Pushgateway rejects samples with one
+   */
+  ParsedMetrics(boolean keepTimestamps) {
+    this.keepTimestamps = keepTimestamps;
+  }
+
+  /**
+   * Declares the type and, if not null, the help of a family.
+   *
+   * @throws IllegalArgumentException if the name is invalid or the family already has samples of another type
+   */
+  void declare(String name, Type type, String help) {
+    final Family family = family(name);
+    if (type != null && type != family.type) {
+      if (!family.samples.isEmpty()) {
+        throw new IllegalArgumentException("Metric " + name + " is declared as " + lowerCase(type)
+            + " after samples of type " + lowerCase(family.type));
+      }
+      family.type = type;
+    }
+    if (help != null) {
+      family.help = help;
+    }
+  }
+
+  /**
+   * Adds a sample to the given family, or to the family the sample name belongs to, e.g. "x_bucket" to the
+   * histogram "x", or else to an untyped family of the sample name.
+   *
+   * @throws IllegalArgumentException if a metric or label name is invalid
+   */
+  void add(String familyName, String sampleName, List<String> labelNames, List<String> labelValues, double value,
+           Long timestampMs) {
+    Family family = familyName == null ? null : families.get(familyName);
+    if (family == null || !belongsTo(family, sampleName)) {
+      family = family(sampleName);
+    }
+    PushMetricProcessor.checkMetricName(sampleName);
+    for (String labelName : labelNames) {
+      PushMetricProcessor.checkMetricLabelName(labelName);
+    }
+
+    final List<String> key = new ArrayList<>(1 + 2 * labelNames.size());
+    key.add(sampleName);
+    for (int i = 0; i < labelNames.size(); i++) {
+      key.add(labelNames.get(i));
+      key.add(labelValues.get(i));
+    }
+    final MetricFamilySamples.Sample previous = family.samples.put(key, new MetricFamilySamples.Sample(sampleName,
+        labelNames, labelValues, value, keepTimestamps ? timestampMs : null));
+    if (previous == null) {
+      sampleCount++;
+    }
+  }
+
+  /**
+   * @return the number of distinct series parsed
+   */
+  int getSampleCount() {
+    return sampleCount;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples> collected = new ArrayList<>(families.size());
+    for (Family family : families.values()) {
+      if (!family.samples.isEmpty()) {
+        collected.add(new MetricFamilySamples(family.name, family.type, family.help, new ArrayList<>(family.samples.values())));
+      }
+    }
+    return collected;
+  }
+
+  private Family family(String name) {
+    Family family = families.get(name);
+    if (family == null) {
+      PushMetricProcessor.checkMetricName(name);
+      family = new Family(name);
+      families.put(name, family);
+    }
+    return family;
+  }
+
+  private static boolean belongsTo(Family family, String sampleName) {
+    if (sampleName.equals(family.name)) {
+      return true;
+    }
+    if (!sampleName.startsWith(family.name)) {
+      return false;
+    }
+    final String suffix = sampleName.substring(family.name.length());
+    switch (family.type) {
+      case HISTOGRAM:
+        return HISTOGRAM_SUFFIXES.contains(suffix);
+      case SUMMARY:
+        return SUMMARY_SUFFIXES.contains(suffix);
+      case COUNTER:
+        return COUNTER_SUFFIXES.contains(suffix);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return the type of the text format name, e.g. "counter"
+   * @throws IllegalArgumentException if the type is unknown
+   */
+  static Type parseType(String type) {
+    switch (type.toLowerCase(Locale.ROOT)) {
+      case "counter":
+        return Type.COUNTER;
+      case "gauge":
+        return Type.GAUGE;
+      case "histogram":
+        return Type.HISTOGRAM;
+      case "summary":
+        return Type.SUMMARY;
+      case "untyped":
+        return Type.UNTYPED;
+      default:
+        throw new IllegalArgumentException("Unknown metric type: " + type);
+    }
+  }
+
+  /**
+   * @return the value of the text format, which also allows "+Inf", "-Inf" and "NaN"
+   * @throws IllegalArgumentException if it is not a number
+   */
+  static double parseValue(String value) {
+    switch (value) {
+      case "+Inf":
+      case "Inf":
+        return Double.POSITIVE_INFINITY;
+      case "-Inf":
+        return Double.NEGATIVE_INFINITY;
+      case "NaN":
+        return Double.NaN;
+      default:
+        try {
+          return Double.parseDouble(value);
+        } catch (NumberFormatException numberFormatException) {
+          throw new IllegalArgumentException("Invalid metric value: " + value);
+        }
+    }
+  }
+
+  private static String lowerCase(Type type) {
+    return type.name().toLowerCase(Locale.ROOT);
+  }
+}
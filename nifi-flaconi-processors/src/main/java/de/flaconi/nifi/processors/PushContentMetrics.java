@@ -0,0 +1,181 @@
+package de.flaconi.nifi.processors;
+
+import de.flaconi.nifi.prometheus.CircuitBreaker;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.AllowableValue;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Prometheus", "Pushgateway", "Push", "Exposition", "JSON"})
+@CapabilityDescription("Pushes all metric families of the FlowFile content to the Prometheus Pushgateway at once. The "
+    + "content is either in the Prometheus text exposition format or a JSON array of metric families as written by "
+    + "prom2json; counters, gauges, histograms, summaries and untyped metrics with any labels are supported. With a "
+    + "'Prometheus Exporter Service' the metrics are written into its /metrics endpoint instead of being pushed.")
+public class PushContentMetrics extends PushMetricProcessor {
+
+  private static final Logger logger = LoggerFactory.getLogger(PushContentMetrics.class);
+
+  static final AllowableValue FORMAT_TEXT = new AllowableValue("prometheus-text", "Prometheus Text",
+      "The Prometheus text exposition format, version 0.0.4");
+  static final AllowableValue FORMAT_JSON = new AllowableValue("json", "JSON",
+      "A JSON array of metric families with their metrics, as written by prom2json");
+
+  static final PropertyDescriptor CONTENT_FORMAT = new PropertyDescriptor.Builder()
+      .name("Content Format")
+      .description("The format of the metrics in the FlowFile content")
+      .required(true)
+      .allowableValues(FORMAT_TEXT, FORMAT_JSON)
+      .defaultValue(FORMAT_TEXT.getValue())
+      .build();
+
+  static final PropertyDescriptor KEEP_TIMESTAMPS = new PropertyDescriptor.Builder()
+      .name("Keep Timestamps")
+      .description("Whether the timestamps of the samples are kept. The Pushgateway rejects samples with timestamps, "
+          + "so they are only useful with a 'Prometheus Exporter Service'.")
+      .required(true)
+      .allowableValues("true", "false")
+      .defaultValue("false")
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+      .build();
+
+  private volatile PrometheusExporterService exporter;
+  private volatile boolean json;
+  private volatile boolean keepTimestamps;
+
+  @Override
+  protected void init(ProcessorInitializationContext context) {
+    super.init(context);
+
+    final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(PUSHGATEWAY_HOSTNAME);
+    descriptors.add(PUSHGATEWAY_PORT);
+    descriptors.add(PUSHGATEWAY_ENDPOINTS);
+    descriptors.add(SHARD_FAILOVER_COOLDOWN);
+    descriptors.add(CIRCUIT_FAILURE_THRESHOLD);
+    descriptors.add(CIRCUIT_OPEN_DURATION);
+    descriptors.add(CIRCUIT_MAX_OPEN_DURATION);
+    descriptors.add(INSTANCE);
+    descriptors.add(JOB_NAME);
+    descriptors.add(EXPORTER_SERVICE);
+    descriptors.add(REMOTE_WRITE_URL);
+    descriptors.add(REMOTE_WRITE_BATCH_SIZE);
+    descriptors.add(REMOTE_WRITE_FLUSH_INTERVAL);
+    descriptors.add(REMOTE_WRITE_MAX_PENDING);
+    descriptors.add(CONNECT_TIMEOUT);
+    descriptors.add(READ_TIMEOUT);
+    descriptors.add(ASYNC_PUSH);
+    descriptors.add(PUSH_QUEUE_SIZE);
+    descriptors.add(PUSH_WORKERS);
+    descriptors.add(SPOOL_DIRECTORY);
+    descriptors.add(SPOOL_MAX_SIZE);
+    descriptors.add(CONTENT_FORMAT);
+    descriptors.add(KEEP_TIMESTAMPS);
+    this.descriptors = Collections.unmodifiableList(descriptors);
+
+    final Set<Relationship> relationships = new HashSet<>();
+    relationships.add(REL_SUCCESS);
+    relationships.add(REL_FAILURE);
+    this.relationships = Collections.unmodifiableSet(relationships);
+  }
+
+  @OnScheduled
+  public void configureParser(ProcessContext processContext) {
+    exporter = processContext.getProperty(EXPORTER_SERVICE).asControllerService(PrometheusExporterService.class);
+    json = FORMAT_JSON.getValue().equals(processContext.getProperty(CONTENT_FORMAT).getValue());
+    keepTimestamps = processContext.getProperty(KEEP_TIMESTAMPS).asBoolean();
+  }
+
+  @Override
+  public void onTrigger(ProcessContext processContext, ProcessSession processSession) throws ProcessException {
+    if (!hasPushCapacity()) {
+      processContext.yield();
+      return;
+    }
+
+    final FlowFile flowFile = processSession.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    final String host = processContext.getProperty(PUSHGATEWAY_HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+    final String port = processContext.getProperty(PUSHGATEWAY_PORT).getValue();
+    final String instance = processContext.getProperty(INSTANCE).evaluateAttributeExpressions(flowFile).getValue();
+    final String jobName = processContext.getProperty(JOB_NAME).getValue();
+    final Map<String, String> groupingKey = Collections.singletonMap("instance", instance);
+    final ParsedMetrics metrics = new ParsedMetrics(keepTimestamps);
+
+    try {
+      final boolean json = this.json;
+      processSession.read(flowFile, in -> {
+        if (json) {
+          JsonMetricsParser.parse(in, metrics);
+        } else {
+          TextFormatParser.parse(in, metrics);
+        }
+      });
+      if (metrics.getSampleCount() == 0) {
+        throw new IllegalArgumentException("Flowfile content holds no metric samples.");
+      }
+    } catch (IllegalArgumentException illegalArgumentException) {
+      logger.warn(String.format("Failed to parse the metrics of %s due to \"%s\"", flowFile, illegalArgumentException.getMessage()));
+      processSession.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+
+    final CollectorRegistry registry = new CollectorRegistry();
+    registry.register(metrics);
+    processSession.adjustCounter("Metric samples parsed", metrics.getSampleCount(), false);
+
+    final PrometheusExporterService exporter = this.exporter;
+    if (exporter != null) {
+      exporter.update(jobName, groupingKey, registry.metricFamilySamples());
+      processSession.transfer(flowFile, REL_SUCCESS);
+      return;
+    }
+
+    try {
+      final boolean pushed = pushAdd(host, port, registry, jobName, groupingKey,
+          ioException -> logger.error(String.format("Failed to push the metrics of %s into pushgateway due to \"%s\"",
+              flowFile, ioException), ioException));
+      if (!pushed) {
+        logger.warn(String.format("Push queue is full, routing %s to failure", flowFile));
+        processSession.transfer(flowFile, REL_FAILURE);
+        processContext.yield();
+        return;
+      }
+      processSession.transfer(flowFile, REL_SUCCESS);
+    } catch (CircuitBreaker.OpenException openException) {
+      logger.warn(String.format("Routing %s to failure: %s", flowFile, openException.getMessage()));
+      processSession.transfer(processSession.penalize(flowFile), REL_FAILURE);
+    } catch (IOException ioException) {
+      logger.error(String.format("Failed to push the metrics of %s into pushgateway due to \"%s\"", flowFile, ioException),
+          ioException);
+      processSession.transfer(flowFile, REL_FAILURE);
+      processContext.yield();
+    }
+  }
+}
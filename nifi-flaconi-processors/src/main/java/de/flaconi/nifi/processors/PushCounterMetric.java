@@ -0,0 +1,43 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.processor.ProcessContext;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Prometheus", "Pushgateway", "Push", "Counter"})
+@CapabilityDescription("Pushes a counter type metric to the Prometheus Pushgateway. All increments of a FlowFile, taken from "
+    + "'Metric Value', the content lines or the dynamic properties, are added to the counter per label values, which is kept while the processor runs and pushed with its "
+    + "cumulative values. A FlowFile with a negative increment is routed to failure without counting any of its increments.")
+@DynamicProperty(name = "Key identifier like sequential numbers",
+    value = "Comma separated labels with the increment at the end. e.g. 'get,${application_id},${request_count}'",
+    description = "Specifies labels and increment to be sent to the Prometheus Pushgateway",
+    supportsExpressionLanguage = true)
+public class PushCounterMetric extends PushObservedMetricProcessor<Counter> {
+
+  @Override
+  protected Counter registerMetric(ProcessContext processContext, CollectorRegistry registry, String metricName,
+                                   String metricHelp, String[] labelNames) {
+    return Counter.build()
+        .name(metricName)
+        .help(metricHelp)
+        .labelNames(labelNames)
+        .register(registry);
+  }
+
+  @Override
+  protected void checkValue(double value) {
+    if (!(value >= 0)) {
+      throw new IllegalArgumentException("Counter increment " + value + " is not a non-negative number");
+    }
+  }
+
+  @Override
+  protected void observe(Counter metric, String[] labelValues, double value) {
+    metric.labels(labelValues).inc(value);
+  }
+}
@@ -1,15 +1,21 @@
 package de.flaconi.nifi.processors;
 
+import de.flaconi.nifi.prometheus.CardinalityGuard;
+import de.flaconi.nifi.prometheus.CircuitBreaker;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.Gauge;
-import io.prometheus.client.exporter.PushGateway;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.AllowableValue;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
@@ -26,16 +32,19 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.StringReader;
-import java.nio.charset.Charset;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ObjDoubleConsumer;
 import java.util.regex.Pattern;
 
 @InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@TriggerWhenEmpty
 @Tags({"Prometheus", "Pushgateway", "Push", "Gauge"})
 @CapabilityDescription("Pushes a gauge type metric to the Prometheus Pushgateway. If 'Metric Labels' is NOT given "
-    + "then 'Metric Value' is taken as metric value otherwise any dynamic attribute defined is used to build the metric value.")
+    + "then 'Metric Value' is taken as metric value otherwise any dynamic attribute defined is used to build the metric value. "
+    + "With 'Aggregation' the updates are buffered and pushed together once per 'Aggregation Interval'. With a "
+    + "'Prometheus Exporter Service' the metric is written into its /metrics endpoint instead of being pushed.")
 @DynamicProperty(name = "Key identifier like sequential numbers",
     value = "Comma separated labels with metric value at the end. e.g. 'get,${application_id},${http_request_total_get}' " +
         "or {$http_method},${http_request_total}'",
@@ -47,6 +56,8 @@ public class PushGaugeMetric extends PushMetricProcessor {
   static final String SOURCE_ATTRIBUTE = "flowfile-attribute";
   static final String SOURCE_CONTENT = "flowfile-content";
   static final String LABEL_SEPARATOR = ",";
+  private static final String[] NO_LABEL_VALUES = new String[0];
+  private static final int MAX_CACHED_TEMPLATES = 1024;
 
   static final PropertyDescriptor GAUGE_NAME = new PropertyDescriptor.Builder()
       .name("Metric Name")
@@ -91,6 +102,125 @@ public class PushGaugeMetric extends PushMetricProcessor {
       .allowableValues(SOURCE_ATTRIBUTE, SOURCE_CONTENT)
       .build();
 
+  static final AllowableValue AGGREGATION_NONE = new AllowableValue("none", "None",
+      "Every FlowFile is pushed immediately");
+  static final AllowableValue AGGREGATION_LAST = new AllowableValue("last", "Last Value",
+      "The last update of a series within the interval is pushed");
+  static final AllowableValue AGGREGATION_SUM = new AllowableValue("sum", "Sum",
+      "The sum of the updates of a series within the interval is pushed");
+  static final AllowableValue AGGREGATION_MIN = new AllowableValue("min", "Minimum",
+      "The smallest update of a series within the interval is pushed");
+  static final AllowableValue AGGREGATION_MAX = new AllowableValue("max", "Maximum",
+      "The largest update of a series within the interval is pushed");
+
+  static final PropertyDescriptor AGGREGATION = new PropertyDescriptor.Builder()
+      .name("Aggregation")
+      .description("Buffers the gauge updates in memory and combines the updates of the same series (job, instance, "
+          + "metric name and label values) instead of pushing every FlowFile. The FlowFiles are transferred to success "
+          + "once their update is buffered; the buffer is pushed once per interval, when it is full and when the "
+          + "processor is stopped. Buffered updates are lost if NiFi stops unexpectedly.")
+      .required(true)
+      .allowableValues(AGGREGATION_NONE, AGGREGATION_LAST, AGGREGATION_SUM, AGGREGATION_MIN, AGGREGATION_MAX)
+      .defaultValue(AGGREGATION_NONE.getValue())
+      .build();
+
+  static final PropertyDescriptor AGGREGATION_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Aggregation Interval")
+      .description("How often the buffered gauge updates are pushed. While no FlowFiles arrive, the interval is checked "
+          + "once per Yield Duration.")
+      .defaultValue("1 min")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor AGGREGATION_MAX_SERIES = new PropertyDescriptor.Builder()
+      .name("Aggregation Max Series")
+      .description("The buffer is pushed before the interval elapses when it holds this many series")
+      .defaultValue("10000")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final AllowableValue CARDINALITY_DROP = new AllowableValue("drop", "Drop",
+      "The samples of label value sets beyond the limit are not pushed");
+  static final AllowableValue CARDINALITY_COLLAPSE = new AllowableValue("collapse", "Collapse",
+      "The samples of label value sets beyond the limit are pushed as one series with every label set to '"
+          + CardinalityGuard.OTHER + "'");
+  static final AllowableValue CARDINALITY_FAIL = new AllowableValue("fail", "Route to Failure",
+      "A FlowFile with a label value set beyond the limit is routed to failure");
+
+  static final PropertyDescriptor MAX_SERIES_PER_METRIC = new PropertyDescriptor.Builder()
+      .name("Max Series Per Metric")
+      .description("The number of distinct label value sets admitted per metric name while the processor is running. "
+          + "Protects the Pushgateway and Prometheus against label values that are unique by mistake; if not set "
+          + "the number of series is not limited.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor MAX_GUARDED_METRICS = new PropertyDescriptor.Builder()
+      .name("Max Metric Names")
+      .description("The number of metric names whose series are limited by 'Max Series Per Metric'. The samples of any "
+          + "further metric name, e.g. of a 'Gauge Name' that is unique by mistake, get the 'Cardinality Limit Action' "
+          + "right away.")
+      .required(true)
+      .defaultValue(String.valueOf(CardinalityGuard.DEFAULT_MAX_METRICS))
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor CARDINALITY_LIMIT_ACTION = new PropertyDescriptor.Builder()
+      .name("Cardinality Limit Action")
+      .description("What happens to the samples of the label value sets beyond 'Max Series Per Metric' and of the "
+          + "metric names beyond 'Max Metric Names'")
+      .required(true)
+      .allowableValues(CARDINALITY_DROP, CARDINALITY_COLLAPSE, CARDINALITY_FAIL)
+      .defaultValue(CARDINALITY_COLLAPSE.getValue())
+      .build();
+
+  static final PropertyDescriptor SKIP_UNCHANGED = new PropertyDescriptor.Builder()
+      .name("Skip Unchanged Values")
+      .description("Skips the push of a FlowFile whose metric has exactly the series and values it was last pushed "
+          + "with, e.g. row counts or queue sizes that are polled often. The FlowFile is transferred to success. "
+          + "Applies when the updates are not aggregated.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor UNCHANGED_MAX_STALENESS = new PropertyDescriptor.Builder()
+      .name("Unchanged Value Max Staleness")
+      .description("An unchanged metric is pushed again once its last push is older than this")
+      .defaultValue("5 min")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor UNCHANGED_CACHE_SIZE = new PropertyDescriptor.Builder()
+      .name("Unchanged Value Cache Size")
+      .description("The number of metrics, counted per push target, whose last pushed series are remembered; the least "
+          + "recently used are forgotten")
+      .defaultValue("10000")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  private volatile GaugeAggregator aggregator;
+  private volatile long aggregationIntervalNanos;
+  private volatile int aggregationMaxSeries;
+  private volatile PrometheusExporterService exporter;
+  private volatile CardinalityGuard cardinalityGuard;
+  private volatile ChangeDetectionCache changeDetection;
+  private volatile String gaugeHelp;
+  private volatile String gaugeLabels;
+  private volatile boolean labelValuesFromAttributes;
+  private final Map<String, GaugeSeries.Template> gaugeTemplates = new ConcurrentHashMap<>();
+
   @Override
   protected void init(ProcessorInitializationContext context) {
     super.init(context);
@@ -98,13 +228,39 @@ public class PushGaugeMetric extends PushMetricProcessor {
     final List<PropertyDescriptor> descriptors = new ArrayList<>();
     descriptors.add(PUSHGATEWAY_HOSTNAME);
     descriptors.add(PUSHGATEWAY_PORT);
+    descriptors.add(PUSHGATEWAY_ENDPOINTS);
+    descriptors.add(SHARD_FAILOVER_COOLDOWN);
+    descriptors.add(CIRCUIT_FAILURE_THRESHOLD);
+    descriptors.add(CIRCUIT_OPEN_DURATION);
+    descriptors.add(CIRCUIT_MAX_OPEN_DURATION);
     descriptors.add(INSTANCE);
     descriptors.add(JOB_NAME);
+    descriptors.add(EXPORTER_SERVICE);
+    descriptors.add(REMOTE_WRITE_URL);
+    descriptors.add(REMOTE_WRITE_BATCH_SIZE);
+    descriptors.add(REMOTE_WRITE_FLUSH_INTERVAL);
+    descriptors.add(REMOTE_WRITE_MAX_PENDING);
+    descriptors.add(CONNECT_TIMEOUT);
+    descriptors.add(READ_TIMEOUT);
+    descriptors.add(ASYNC_PUSH);
+    descriptors.add(PUSH_QUEUE_SIZE);
+    descriptors.add(PUSH_WORKERS);
+    descriptors.add(SPOOL_DIRECTORY);
+    descriptors.add(SPOOL_MAX_SIZE);
     descriptors.add(GAUGE_NAME);
     descriptors.add(GAUGE_HELP);
     descriptors.add(GAUGE_VALUE);
     descriptors.add(GAUGE_LABELS);
     descriptors.add(GAUGE_LABEL_VALUES_SOURCE);
+    descriptors.add(AGGREGATION);
+    descriptors.add(AGGREGATION_INTERVAL);
+    descriptors.add(AGGREGATION_MAX_SERIES);
+    descriptors.add(MAX_SERIES_PER_METRIC);
+    descriptors.add(MAX_GUARDED_METRICS);
+    descriptors.add(CARDINALITY_LIMIT_ACTION);
+    descriptors.add(SKIP_UNCHANGED);
+    descriptors.add(UNCHANGED_MAX_STALENESS);
+    descriptors.add(UNCHANGED_CACHE_SIZE);
     this.descriptors = Collections.unmodifiableList(descriptors);
 
     final Set<Relationship> relationships = new HashSet<>();
@@ -137,10 +293,91 @@ public class PushGaugeMetric extends PushMetricProcessor {
     return this.relationships;
   }
 
+  @OnScheduled
+  public void createAggregator(ProcessContext processContext) {
+    final String aggregation = processContext.getProperty(AGGREGATION).getValue();
+    aggregator = AGGREGATION_NONE.getValue().equals(aggregation)
+        ? null
+        : new GaugeAggregator(GaugeAggregator.Mode.valueOf(aggregation.toUpperCase(Locale.ROOT)));
+    aggregationIntervalNanos = processContext.getProperty(AGGREGATION_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+    aggregationMaxSeries = processContext.getProperty(AGGREGATION_MAX_SERIES).asInteger();
+    exporter = processContext.getProperty(EXPORTER_SERVICE).asControllerService(PrometheusExporterService.class);
+    if (processContext.getProperty(MAX_SERIES_PER_METRIC).isSet()) {
+      final String action = processContext.getProperty(CARDINALITY_LIMIT_ACTION).getValue();
+      cardinalityGuard = new CardinalityGuard(getIdentifier(), processContext.getProperty(MAX_SERIES_PER_METRIC).asInteger(),
+          processContext.getProperty(MAX_GUARDED_METRICS).asInteger(),
+          CARDINALITY_DROP.getValue().equals(action) ? CardinalityGuard.Action.DROP
+              : CARDINALITY_FAIL.getValue().equals(action) ? CardinalityGuard.Action.FAIL
+              : CardinalityGuard.Action.COLLAPSE);
+    }
+    changeDetection = processContext.getProperty(SKIP_UNCHANGED).asBoolean()
+        ? new ChangeDetectionCache(processContext.getProperty(UNCHANGED_CACHE_SIZE).asInteger(),
+            processContext.getProperty(UNCHANGED_MAX_STALENESS).asTimePeriod(TimeUnit.NANOSECONDS))
+        : null;
+  }
+
+  /**
+   * Compiles what stays the same for every FlowFile: the help and the label names, unless they depend on attributes.
+   */
+  @OnScheduled
+  public void compileGaugeTemplate(ProcessContext processContext) {
+    gaugeHelp = processContext.getProperty(GAUGE_HELP).getValue();
+    labelValuesFromAttributes = SOURCE_ATTRIBUTE.equals(processContext.getProperty(GAUGE_LABEL_VALUES_SOURCE).getValue());
+    gaugeTemplates.clear();
+    final PropertyValue labels = processContext.getProperty(GAUGE_LABELS);
+    gaugeLabels = labels.isExpressionLanguagePresent() ? null : StringUtils.defaultString(labels.getValue());
+  }
+
+  /**
+   * @return the template of the gauge with the comma separated label names, cached per distinct label names
+   */
+  private GaugeSeries.Template gaugeTemplate(String metricLabels) {
+    final String labels = StringUtils.defaultString(metricLabels);
+    GaugeSeries.Template template = gaugeTemplates.get(labels);
+    if (template == null) {
+      final String[] labelNames = labels.isEmpty() ? NO_LABEL_VALUES : labels.split(LABEL_SEPARATOR);
+      for (String labelName : labelNames) {
+        checkMetricLabelName(labelName);
+      }
+      template = new GaugeSeries.Template(gaugeHelp, labelNames);
+      if (gaugeTemplates.size() < MAX_CACHED_TEMPLATES) {
+        gaugeTemplates.put(labels, template);
+      }
+    }
+    return template;
+  }
+
+  @OnStopped
+  public void closeCardinalityGuard() {
+    if (cardinalityGuard != null) {
+      cardinalityGuard.close();
+      cardinalityGuard = null;
+    }
+  }
+
   @Override
   public void onTrigger(ProcessContext processContext, ProcessSession processSession) throws ProcessException {
+    final GaugeAggregator aggregator = this.aggregator;
+    if (aggregator != null && aggregator.isFlushDue(aggregationIntervalNanos, aggregationMaxSeries)) {
+      try {
+        flush(aggregator);
+      } catch (IOException ioException) {
+        logger.error(String.format("Failed to push the aggregated metrics into pushgateway due to \"%s\"", ioException),
+            ioException);
+        processContext.yield();
+        return;
+      }
+    }
+
+    if (!hasPushCapacity()) {
+      processContext.yield();
+      return;
+    }
+
     final FlowFile flowFile = processSession.get();
     if (flowFile == null) {
+      // triggered while idle only to flush the aggregation, so wait for the yield duration instead of spinning
+      processContext.yield();
       return;
     }
 
@@ -149,30 +386,82 @@ public class PushGaugeMetric extends PushMetricProcessor {
     final String instance = processContext.getProperty(INSTANCE).evaluateAttributeExpressions(flowFile).getValue();
     final String jobName = processContext.getProperty(JOB_NAME).getValue();
     final String metricName = processContext.getProperty(GAUGE_NAME).evaluateAttributeExpressions(flowFile).getValue();
-    final String metricHelp = processContext.getProperty(GAUGE_HELP).getValue();
-    final String metricLabels = processContext.getProperty(GAUGE_LABELS).evaluateAttributeExpressions(flowFile).getValue();
-    final String metricLabelValuesSource = processContext.getProperty(GAUGE_LABEL_VALUES_SOURCE).getValue();
+    final String metricLabels = gaugeLabels == null
+        ? processContext.getProperty(GAUGE_LABELS).evaluateAttributeExpressions(flowFile).getValue()
+        : gaugeLabels;
     final Map<String, String> groupingKey = Collections.singletonMap("instance", instance);
-    final PushGateway pushGateway = newPushGateway(host, port);
     final CollectorRegistry registry = new CollectorRegistry();
 
     try {
       checkMetricName(metricName);
-      if (StringUtils.isEmpty(metricLabels)) {
-        final Gauge gauge = registerGaugeMetric(registry, metricName, metricHelp);
-        gauge.set(processContext.getProperty(GAUGE_VALUE).evaluateAttributeExpressions(flowFile).asDouble());
+      final GaugeSeries.Template template = gaugeTemplate(metricLabels);
+      final GaugeSeries gauge = new GaugeSeries(metricName, template);
+      registry.register(gauge);
+      final int labelCount = template.labelNames.size();
+      if (labelCount == 0) {
+        gauge.set(NO_LABEL_VALUES, processContext.getProperty(GAUGE_VALUE).evaluateAttributeExpressions(flowFile).asDouble());
       } else {
-        String[] labelNames = metricLabels.split(LABEL_SEPARATOR);
-        final Gauge gauge = registerGaugeMetric(registry, metricName, metricHelp, metricLabels.split(LABEL_SEPARATOR));
-        if (metricLabelValuesSource.equals(SOURCE_ATTRIBUTE)) {
-          setMetricWithLabelsFromAttributes(gauge, processContext, flowFile, labelNames.length);
+        final ObjDoubleConsumer<String[]> setter = guarded(metricName, gauge::set);
+        if (labelValuesFromAttributes) {
+          applyLabelValuesFromAttributes(processContext, flowFile, labelCount + 1, setter);
         } else {
-          setMetricWithLabelsFromContent(gauge, processSession, flowFile, labelNames.length);
+          applyLabelValuesFromContent(processSession, flowFile, labelCount + 1, setter);
         }
       }
 
-      pushGateway.pushAdd(registry, jobName, groupingKey);
-      processSession.transfer(flowFile, REL_SUCCESS);
+      final PrometheusExporterService exporter = this.exporter;
+      if (aggregator == null && exporter != null) {
+        exporter.update(jobName, groupingKey, registry.metricFamilySamples());
+        processSession.transfer(flowFile, REL_SUCCESS);
+      } else if (aggregator == null) {
+        final ChangeDetectionCache changeDetection = this.changeDetection;
+        final GaugeAggregator.Target target = new GaugeAggregator.Target(host, port, jobName, groupingKey);
+        final List<Collector.MetricFamilySamples> families = changeDetection == null
+            ? null
+            : Collections.list(registry.metricFamilySamples());
+        if (changeDetection != null && changeDetection.isUnchanged(target, families)) {
+          processSession.adjustCounter("Unchanged pushes skipped", 1, false);
+          processSession.transfer(flowFile, REL_SUCCESS);
+          return;
+        }
+        if (changeDetection != null) {
+          // recorded before the push, so that a failure reported by a sender thread is never overwritten
+          changeDetection.record(target, families);
+        }
+        boolean pushed = false;
+        try {
+          pushed = pushAdd(host, port, registry, jobName, groupingKey,
+              ioException -> {
+                logger.error(String.format("Failed to push the metric \"%s\" into pushgateway due to \"%s\"",
+                    metricName, ioException), ioException);
+                if (changeDetection != null) {
+                  changeDetection.forget(target, families);
+                }
+              });
+        } finally {
+          if (!pushed && changeDetection != null) {
+            changeDetection.forget(target, families);
+          }
+        }
+        if (!pushed) {
+          logger.warn(String.format("Push queue is full, routing the metric \"%s\" to failure", metricName));
+          processSession.transfer(flowFile, REL_FAILURE);
+          processContext.yield();
+          return;
+        }
+        processSession.transfer(flowFile, REL_SUCCESS);
+      } else {
+        final GaugeAggregator.Target target = new GaugeAggregator.Target(host, port, jobName, groupingKey);
+        processSession.transfer(flowFile, REL_SUCCESS);
+        // buffer the update only once the FlowFile is committed, so a rolled back FlowFile is not counted twice
+        processSession.commitAsync(() -> aggregator.add(target, Collections.list(registry.metricFamilySamples())));
+      }
+    } catch (CardinalityGuard.LimitExceededException limitExceeded) {
+      logger.warn(limitExceeded.getMessage());
+      processSession.transfer(flowFile, REL_FAILURE);
+    } catch (CircuitBreaker.OpenException openException) {
+      logger.warn(String.format("Routing the metric \"%s\" to failure: %s", metricName, openException.getMessage()));
+      processSession.transfer(processSession.penalize(flowFile), REL_FAILURE);
     } catch (IOException ioException) {
       logger.error(String.format("Failed to push the metric \"%s\" into pushgateway due to \"%s\"", metricName, ioException),
           ioException);
@@ -181,74 +470,73 @@ public class PushGaugeMetric extends PushMetricProcessor {
     }
   }
 
-  @Override
-  protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
-    final List<ValidationResult> reasons = new ArrayList<>(super.customValidate(validationContext));
-
-    if (validationContext.getProperty(GAUGE_LABELS).isSet()) {
-      if (!validationContext.getProperty(GAUGE_LABEL_VALUES_SOURCE).isSet()) {
-        reasons.add(new ValidationResult.Builder()
-            .subject("Source of metric label values")
-            .valid(false)
-            .explanation("source of metric label values is not defined").build());
+  /**
+   * Passes the samples through the cardinality guard, if there is one.
+   */
+  private ObjDoubleConsumer<String[]> guarded(String metricName, ObjDoubleConsumer<String[]> setter) {
+    final CardinalityGuard guard = cardinalityGuard;
+    if (guard == null) {
+      return setter;
+    }
+    return (labelValues, value) -> {
+      final String[] admitted = guard.admit(metricName, labelValues);
+      if (admitted != null) {
+        setter.accept(admitted, value);
       }
+    };
+  }
 
-      String labels = validationContext.getProperty(GAUGE_LABELS).getValue();
-      String labelValuesSource = validationContext.getProperty(GAUGE_LABEL_VALUES_SOURCE).getValue();
-      if (labelValuesSource != null && labelValuesSource.equals(SOURCE_ATTRIBUTE) && !StringUtils.isEmpty(labels)) {
-        if (validationContext.getProperties().keySet().stream().noneMatch(PropertyDescriptor::isDynamic)) {
-          reasons.add(new ValidationResult.Builder()
-              .subject("Dynamic property value")
-              .valid(false)
-              .explanation("there is no dynamic property defined for metric label value").build());
-        }
-
-        int labelCount = labels.split(LABEL_SEPARATOR).length;
-        boolean isDynamicPropertyValid = validationContext.getProperties().keySet().stream()
-            .filter(PropertyDescriptor::isDynamic)
-            .noneMatch(propertyDescriptor ->
-                validationContext
-                    .getProperty(propertyDescriptor)
-                    .getValue()
-                    .split(LABEL_SEPARATOR).length != labelCount + 1);
-        if (!isDynamicPropertyValid) {
-          reasons.add(new ValidationResult.Builder()
-              .subject("Dynamic property value")
-              .valid(false)
-              .explanation("the dynamic property values should contain " + (labelCount + 1)
-                  + " items (including metric label value at the end) since there is/are " + labelCount + " label(s) defined.").build());
-        }
+  @Override
+  void flushPendingMetrics() {
+    final GaugeAggregator aggregator = this.aggregator;
+    if (aggregator != null && aggregator.size() > 0) {
+      try {
+        flush(aggregator);
+      } catch (IOException ioException) {
+        logger.error(String.format("Failed to push %d aggregated metrics into pushgateway on stop due to \"%s\"",
+            aggregator.size(), ioException), ioException);
       }
     }
-
-    return reasons;
-  }
-
-  private void setMetricWithLabelsFromAttributes(Gauge gauge, ProcessContext processContext, FlowFile flowFile, int labelNamesCount) throws NumberFormatException {
-    processContext.getProperties().keySet().stream().filter(PropertyDescriptor::isDynamic)
-        .forEach(propertyDescriptor -> {
-          String value = processContext.getProperty(propertyDescriptor).evaluateAttributeExpressions(flowFile).getValue();
-          setLabelValuesToGaugeMetric(gauge, value, labelNamesCount + 1);
-        });
   }
 
-  private void setMetricWithLabelsFromContent(Gauge gauge, ProcessSession processSession, FlowFile flowFile, int labelNamesCount) throws NumberFormatException, IOException {
-    String content = getFlowContent(processSession, flowFile);
-    if (StringUtils.isEmpty(content)) {
-      throw new IllegalArgumentException("Flowfile content is empty.");
+  private void flush(GaugeAggregator aggregator) throws IOException {
+    final PrometheusExporterService exporter = this.exporter;
+    IOException failure = null;
+    for (Map.Entry<GaugeAggregator.Target, Collector> entry : aggregator.drain().entrySet()) {
+      final GaugeAggregator.Target target = entry.getKey();
+      final Collector collector = entry.getValue();
+      final CollectorRegistry registry = new CollectorRegistry();
+      collector.register(registry);
+      if (exporter != null) {
+        exporter.update(target.job, target.groupingKey, registry.metricFamilySamples());
+        continue;
+      }
+      try {
+        if (failure != null) {
+          aggregator.restore(target, collector);
+        } else if (!pushAdd(target.host, target.port, registry, target.job, target.groupingKey,
+            ioException -> {
+              logger.error(String.format("Failed to push the aggregated metrics into pushgateway due to \"%s\"", ioException),
+                  ioException);
+              aggregator.restore(target, collector);
+            })) {
+          aggregator.restore(target, collector);
+          failure = new IOException("Push queue is full");
+        }
+      } catch (IOException ioException) {
+        aggregator.restore(target, entry.getValue());
+        failure = ioException;
+      }
+    }
+    if (failure != null) {
+      throw failure;
     }
-    IOUtils
-        .readLines(new StringReader(content))
-        .forEach(item -> setLabelValuesToGaugeMetric(gauge, item, labelNamesCount + 1));
-  }
-
-  private String getFlowContent(ProcessSession processSession, FlowFile flowFile) {
-    final AtomicReference<String> content = new AtomicReference<>();
-    processSession.read(flowFile, in -> content.set(IOUtils.toString(in, Charset.forName("UTF-8"))));
-    return content.get();
   }
 
-  public PushGateway newPushGateway(String host, String port) {
-    return new PushGateway(host + ":" + port);
+  @Override
+  protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+    final List<ValidationResult> reasons = new ArrayList<>(super.customValidate(validationContext));
+    reasons.addAll(validateLabelValues(validationContext, GAUGE_LABELS, GAUGE_LABEL_VALUES_SOURCE));
+    return reasons;
   }
 }
@@ -0,0 +1,91 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Histogram;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.util.Collections;
+import java.util.List;
+
+import static de.flaconi.nifi.processors.PushGaugeMetric.LABEL_SEPARATOR;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Prometheus", "Pushgateway", "Push", "Histogram"})
+@CapabilityDescription("Pushes a histogram type metric to the Prometheus Pushgateway. All observations of a FlowFile, taken from "
+    + "'Metric Value', the content lines or the dynamic properties, are counted into the buckets per label values and "
+    + "only the bucket, count and sum series are pushed. The histogram is kept while the processor runs, so every push "
+    + "carries the observations of all FlowFiles so far.")
+@DynamicProperty(name = "Key identifier like sequential numbers",
+    value = "Comma separated labels with the observed value at the end. e.g. 'get,${application_id},${request_duration}'",
+    description = "Specifies labels and observation to be sent to the Prometheus Pushgateway",
+    supportsExpressionLanguage = true)
+public class PushHistogramMetric extends PushObservedMetricProcessor<Histogram> {
+
+  static final PropertyDescriptor BUCKETS = new PropertyDescriptor.Builder()
+      .name("Histogram Buckets")
+      .description("Comma separated, increasing upper bounds of the histogram buckets")
+      .defaultValue("0.005,0.01,0.025,0.05,0.1,0.25,0.5,1,2.5,5,10")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator((subject, input, context) -> {
+        try {
+          parseBuckets(input);
+          return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+        } catch (IllegalArgumentException e) {
+          return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+        }
+      })
+      .build();
+
+  private volatile double[] buckets;
+
+  @Override
+  protected List<PropertyDescriptor> getMetricPropertyDescriptors() {
+    return Collections.singletonList(BUCKETS);
+  }
+
+  @OnScheduled
+  public void parseBuckets(ProcessContext processContext) {
+    buckets = parseBuckets(processContext.getProperty(BUCKETS).getValue());
+  }
+
+  @Override
+  protected Histogram registerMetric(ProcessContext processContext, CollectorRegistry registry, String metricName,
+                                     String metricHelp, String[] labelNames) {
+    return Histogram.build()
+        .name(metricName)
+        .help(metricHelp)
+        .labelNames(labelNames)
+        .buckets(buckets)
+        .register(registry);
+  }
+
+  @Override
+  protected void observe(Histogram metric, String[] labelValues, double value) {
+    metric.labels(labelValues).observe(value);
+  }
+
+  static double[] parseBuckets(String value) {
+    final String[] items = value.split(LABEL_SEPARATOR);
+    final double[] buckets = new double[items.length];
+    for (int i = 0; i < items.length; i++) {
+      try {
+        buckets[i] = Double.parseDouble(items[i].trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("bucket " + items[i] + " is not a number");
+      }
+      if (i > 0 && buckets[i] <= buckets[i - 1]) {
+        throw new IllegalArgumentException("buckets must be in increasing order");
+      }
+    }
+    return buckets;
+  }
+}
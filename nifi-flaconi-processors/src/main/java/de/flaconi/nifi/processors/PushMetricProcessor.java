@@ -1,30 +1,63 @@
 package de.flaconi.nifi.processors;
 
+import de.flaconi.nifi.prometheus.AsyncPushSender;
+import de.flaconi.nifi.prometheus.CircuitBreaker;
+import de.flaconi.nifi.prometheus.KeepAlivePushGateway;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import de.flaconi.nifi.prometheus.PushGatewayPool;
+import de.flaconi.nifi.prometheus.PushGatewayRing;
+import de.flaconi.nifi.prometheus.PushSpool;
+import de.flaconi.nifi.prometheus.RemoteWriteSink;
 import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.PushGateway;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.util.StandardValidators;
 
-import java.util.Arrays;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ObjDoubleConsumer;
 import java.util.regex.Pattern;
 
 import static de.flaconi.nifi.processors.PushGaugeMetric.LABEL_SEPARATOR;
+import static de.flaconi.nifi.processors.PushGaugeMetric.SOURCE_ATTRIBUTE;
 
 public abstract class PushMetricProcessor extends AbstractProcessor {
 
   private static final Pattern METRIC_NAME_RE = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
   private static final Pattern METRIC_LABEL_NAME_RE = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
   private static final Pattern RESERVED_METRIC_LABEL_NAME_RE = Pattern.compile("__.*");
+  private static final int MAX_VALID_NAMES = 4096;
+  // a valid label name is also a valid metric name, so one set serves both checks
+  private static final Set<String> VALID_NAMES = ConcurrentHashMap.newKeySet();
 
   static final PropertyDescriptor PUSHGATEWAY_HOSTNAME = new PropertyDescriptor.Builder()
       .name("Pushgateway hostname")
-      .description("Hostname or ip address of the Prometheus Pushgateway")
+      .description("Hostname or ip address of the Prometheus Pushgateway; not used when the metrics are written "
+          + "into a Prometheus Exporter Service")
       .required(true)
       .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
       .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
@@ -59,6 +92,169 @@ public abstract class PushMetricProcessor extends AbstractProcessor {
       .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
       .build();
 
+  static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+      .name("Connection timeout")
+      .description("Max wait time for the connection to the Prometheus Pushgateway")
+      .defaultValue("10 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+      .name("Read timeout")
+      .description("Max wait time for the response of the Prometheus Pushgateway")
+      .defaultValue("10 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor ASYNC_PUSH = new PropertyDescriptor.Builder()
+      .name("Asynchronous Push")
+      .description("Hands the pushes to dedicated sender threads instead of pushing on the thread of the processor. "
+          + "FlowFiles are transferred to success once the push is queued, a failed push is only logged. "
+          + "When the push queue is full the processor yields.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor PUSH_QUEUE_SIZE = new PropertyDescriptor.Builder()
+      .name("Push Queue Size")
+      .description("The number of asynchronous pushes that may wait for a sender thread")
+      .defaultValue("100")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor PUSH_WORKERS = new PropertyDescriptor.Builder()
+      .name("Push Workers")
+      .description("The number of threads sending the asynchronous pushes")
+      .defaultValue("2")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor PUSHGATEWAY_ENDPOINTS = new PropertyDescriptor.Builder()
+      .name("Pushgateway Endpoints")
+      .description("Comma separated host:port list of Pushgateway shards. If set, every job and grouping key is routed "
+          + "to one shard by consistent hashing instead of to the Pushgateway hostname and port, so the series of a "
+          + "group always land on the same shard. A shard that fails a push is skipped for the failover cooldown.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SHARD_FAILOVER_COOLDOWN = new PropertyDescriptor.Builder()
+      .name("Shard Failover Cooldown")
+      .description("How long a Pushgateway shard that failed a push is skipped; its groups go to the next shard meanwhile")
+      .defaultValue("30 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor CIRCUIT_FAILURE_THRESHOLD = new PropertyDescriptor.Builder()
+      .name("Circuit Breaker Failure Threshold")
+      .description("The number of consecutive failed pushes to a Pushgateway endpoint that open its circuit. While the "
+          + "circuit is open the FlowFiles are penalized and routed to failure without any network attempt.")
+      .defaultValue("5")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor CIRCUIT_OPEN_DURATION = new PropertyDescriptor.Builder()
+      .name("Circuit Breaker Open Duration")
+      .description("How long a circuit stays open before a single trial push is let through; it doubles, with jitter, "
+          + "every time the trial push fails")
+      .defaultValue("5 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor CIRCUIT_MAX_OPEN_DURATION = new PropertyDescriptor.Builder()
+      .name("Circuit Breaker Max Open Duration")
+      .description("The maximum time a circuit stays open")
+      .defaultValue("5 min")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor EXPORTER_SERVICE = new PropertyDescriptor.Builder()
+      .name("Prometheus Exporter Service")
+      .description("If set, the metrics are written into the /metrics endpoint of this service to be scraped by "
+          + "Prometheus instead of being pushed to the Pushgateway")
+      .required(false)
+      .identifiesControllerService(PrometheusExporterService.class)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_URL = new PropertyDescriptor.Builder()
+      .name("Remote Write URL")
+      .description("If set, the metrics are sent to this Prometheus remote write endpoint, e.g. "
+          + "http://prometheus:9090/api/v1/write, instead of the Pushgateway. The samples are labelled with the job and "
+          + "instance, buffered and sent in snappy-compressed batches by a dedicated thread.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.URL_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_BATCH_SIZE = new PropertyDescriptor.Builder()
+      .name("Remote Write Batch Size")
+      .description("The maximum number of samples sent in one remote write request")
+      .defaultValue("500")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_FLUSH_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Remote Write Flush Interval")
+      .description("How long samples wait for a full batch before they are sent anyway; also the delay before a "
+          + "failed request is retried")
+      .defaultValue("5 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_MAX_PENDING = new PropertyDescriptor.Builder()
+      .name("Remote Write Max Pending Samples")
+      .description("The maximum number of samples waiting to be sent. When it is reached the processor yields and "
+          + "routes the FlowFiles to failure; after failed requests the oldest samples are dropped.")
+      .defaultValue("100000")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor.Builder()
+      .name("Spool Directory")
+      .description("If set, pushes that fail are written to a spool in a sub directory of this directory (named by the "
+          + "processor id) and replayed in order, with exponential backoff, once the Pushgateway is available again. "
+          + "The FlowFiles are then transferred to success instead of failure.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SPOOL_MAX_SIZE = new PropertyDescriptor.Builder()
+      .name("Spool Max Size")
+      .description("The maximum size of the spool on disk; when it is full the oldest spooled pushes are dropped")
+      .defaultValue("100 MB")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+      .build();
+
+  private static final long SPOOL_INITIAL_BACKOFF_MILLIS = 1000L;
+  private static final long SPOOL_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
   static final Relationship REL_SUCCESS = new Relationship.Builder()
       .name("success")
       .description("Successfully the metric is sent to Prometheus Pushgateway")
@@ -72,6 +268,192 @@ public abstract class PushMetricProcessor extends AbstractProcessor {
   Set<Relationship> relationships;
   List<PropertyDescriptor> descriptors;
 
+  private volatile int connectTimeoutMillis;
+  private volatile int readTimeoutMillis;
+  // one client per Pushgateway endpoint, kept between triggers so that its connections are reused
+  volatile PushGatewayPool pushGateways;
+  private volatile AsyncPushSender sender;
+  private volatile PushSpool spool;
+  private volatile PushGatewayRing ring;
+  private volatile RemoteWriteSink remoteWrite;
+  private volatile CircuitBreaker breaker;
+  private volatile List<PropertyDescriptor> dynamicProperties = Collections.emptyList();
+
+  @OnScheduled
+  public void collectDynamicProperties(ProcessContext context) {
+    final List<PropertyDescriptor> dynamic = new ArrayList<>();
+    for (PropertyDescriptor propertyDescriptor : context.getProperties().keySet()) {
+      if (propertyDescriptor.isDynamic()) {
+        dynamic.add(propertyDescriptor);
+      }
+    }
+    dynamicProperties = Collections.unmodifiableList(dynamic);
+  }
+
+  @OnScheduled
+  public void createPushGatewayPool(ProcessContext context) throws IOException {
+    connectTimeoutMillis = context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+    readTimeoutMillis = context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS).intValue();
+    pushGateways = new PushGatewayPool(this::newPushGateway);
+    breaker = new CircuitBreaker(getIdentifier(), context.getProperty(CIRCUIT_FAILURE_THRESHOLD).asInteger(),
+        context.getProperty(CIRCUIT_OPEN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS),
+        context.getProperty(CIRCUIT_MAX_OPEN_DURATION).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+    ring = context.getProperty(PUSHGATEWAY_ENDPOINTS).isSet()
+        ? new PushGatewayRing(PushGatewayRing.parse(context.getProperty(PUSHGATEWAY_ENDPOINTS).evaluateAttributeExpressions().getValue(),
+            context.getProperty(PUSHGATEWAY_PORT).getValue()), context.getProperty(SHARD_FAILOVER_COOLDOWN).asTimePeriod(TimeUnit.MILLISECONDS))
+        : null;
+    if (context.getProperty(REMOTE_WRITE_URL).isSet()) {
+      remoteWrite = new RemoteWriteSink(getIdentifier(), context.getProperty(REMOTE_WRITE_URL).evaluateAttributeExpressions().getValue(),
+          context.getProperty(REMOTE_WRITE_BATCH_SIZE).asInteger(), context.getProperty(REMOTE_WRITE_MAX_PENDING).asInteger(),
+          context.getProperty(REMOTE_WRITE_FLUSH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS,
+          connectTimeoutMillis, readTimeoutMillis,
+          ioException -> getLogger().error("Failed to write metrics to the remote write endpoint", ioException));
+    }
+    if (context.getProperty(ASYNC_PUSH).asBoolean()) {
+      sender = new AsyncPushSender(getIdentifier(),
+          context.getProperty(PUSH_QUEUE_SIZE).asInteger(), context.getProperty(PUSH_WORKERS).asInteger());
+    }
+    if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+      final PushGatewayPool pool = pushGateways;
+      final PushGatewayRing ring = this.ring;
+      final CircuitBreaker breaker = this.breaker;
+      final File directory = new File(context.getProperty(SPOOL_DIRECTORY).evaluateAttributeExpressions().getValue(), getIdentifier());
+      spool = new PushSpool(getIdentifier(), directory, context.getProperty(SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue(),
+          SPOOL_INITIAL_BACKOFF_MILLIS, SPOOL_MAX_BACKOFF_MILLIS,
+          push -> send(pool, ring, breaker, push.host, push.port, push.toRegistry(), push.job, push.groupingKey));
+    }
+  }
+
+  @OnStopped
+  public void closePushGatewayPool() {
+    if (pushGateways != null) {
+      flushPendingMetrics();
+      if (sender != null) {
+        if (!sender.close(connectTimeoutMillis + readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          getLogger().warn("Stopped before all queued metrics were pushed into pushgateway");
+        }
+        sender = null;
+      }
+      if (spool != null) {
+        spool.close();
+        spool = null;
+      }
+      if (remoteWrite != null) {
+        if (!remoteWrite.close(connectTimeoutMillis + readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+          getLogger().warn("Stopped before all buffered metrics were sent to the remote write endpoint");
+        }
+        remoteWrite = null;
+      }
+      breaker.close();
+      breaker = null;
+      pushGateways.close();
+      pushGateways = null;
+    }
+  }
+
+  /**
+   * @return false if asynchronous pushes are enabled and their queue is full, or the remote write buffer is full
+   */
+  boolean hasPushCapacity() {
+    final RemoteWriteSink remoteWrite = this.remoteWrite;
+    if (remoteWrite != null) {
+      return remoteWrite.hasCapacity();
+    }
+    final AsyncPushSender sender = this.sender;
+    return sender == null || sender.hasCapacity();
+  }
+
+  /**
+   * Adds the registry to the metrics of the job on the Pushgateway, on the sender threads if asynchronous push is
+   * enabled. With a spool, a failed push is spooled for replay, and while the spool holds pushes new ones are
+   * appended behind them so the Pushgateway receives them in order. With a remote write endpoint the samples are
+   * buffered for it instead, labelled with the job and grouping key.
+   *
+   * @param onAsyncFailure called on the sender thread when an asynchronous push fails and is not spooled
+   * @return false if the push queue or the remote write buffer is full and nothing was pushed
+   * @throws CircuitBreaker.OpenException if the circuit of the endpoint is open and the push is not spooled
+   * @throws IOException if a synchronous push fails and is not spooled
+   */
+  boolean pushAdd(String host, String port, CollectorRegistry registry, String jobName, Map<String, String> groupingKey,
+                  Consumer<IOException> onAsyncFailure) throws IOException {
+    final RemoteWriteSink remoteWrite = this.remoteWrite;
+    if (remoteWrite != null) {
+      final Map<String, String> labels = new LinkedHashMap<>(groupingKey);
+      labels.put("job", jobName);
+      return remoteWrite.write(registry.metricFamilySamples(), labels, System.currentTimeMillis());
+    }
+
+    final PushSpool spool = this.spool;
+    if (spool != null && !spool.isEmpty()) {
+      spool.append(host, port, jobName, groupingKey, registry.metricFamilySamples());
+      return true;
+    }
+
+    final PushGatewayPool pool = pushGateways;
+    final PushGatewayRing ring = this.ring;
+    final CircuitBreaker breaker = this.breaker;
+    final AsyncPushSender sender = this.sender;
+    if (sender == null) {
+      try {
+        send(pool, ring, breaker, host, port, registry, jobName, groupingKey);
+      } catch (IOException ioException) {
+        if (spool == null) {
+          throw ioException;
+        }
+        getLogger().warn("Failed to push metrics into pushgateway, spooling them for replay", ioException);
+        spool.append(host, port, jobName, groupingKey, registry.metricFamilySamples());
+      }
+      return true;
+    }
+    return sender.submit(() -> send(pool, ring, breaker, host, port, registry, jobName, groupingKey), ioException -> {
+      if (spool == null) {
+        onAsyncFailure.accept(ioException);
+        return;
+      }
+      try {
+        spool.append(host, port, jobName, groupingKey, registry.metricFamilySamples());
+      } catch (IOException spoolException) {
+        onAsyncFailure.accept(spoolException);
+      }
+    });
+  }
+
+  /**
+   * Pushes to the Pushgateway or, with shards, to the shard of the group, failing over to the next shard once. Every
+   * push runs through the circuit of its endpoint, so an endpoint with an open circuit is not even tried.
+   */
+  private void send(PushGatewayPool pool, PushGatewayRing ring, CircuitBreaker breaker, String host, String port,
+                    CollectorRegistry registry, String jobName, Map<String, String> groupingKey) throws IOException {
+    if (ring == null) {
+      breaker.call(host + ":" + port, () -> pool.get(host, port).pushAdd(registry, jobName, groupingKey));
+      return;
+    }
+    final PushGatewayRing.Endpoint endpoint = ring.route(jobName, groupingKey);
+    try {
+      breaker.call(endpoint.toString(), () -> pool.get(endpoint.host, endpoint.port).pushAdd(registry, jobName, groupingKey));
+      ring.markSucceeded(endpoint);
+    } catch (IOException ioException) {
+      ring.markFailed(endpoint);
+      final PushGatewayRing.Endpoint failover = ring.route(jobName, groupingKey);
+      if (failover.equals(endpoint)) {
+        throw ioException;
+      }
+      getLogger().warn("Failed to push metrics into pushgateway {}, failing over to {}", new Object[]{endpoint, failover, ioException});
+      breaker.call(failover.toString(), () -> pool.get(failover.host, failover.port).pushAdd(registry, jobName, groupingKey));
+      ring.markSucceeded(failover);
+    }
+  }
+
+  /**
+   * Called when the processor is stopped, while the Pushgateway clients are still available.
+   */
+  void flushPendingMetrics() {
+  }
+
+  public PushGateway newPushGateway(String host, String port) {
+    return new KeepAlivePushGateway(host + ":" + port, connectTimeoutMillis, readTimeoutMillis);
+  }
+
   @Override
   protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
     return this.descriptors;
@@ -82,44 +464,136 @@ public abstract class PushMetricProcessor extends AbstractProcessor {
     return this.relationships;
   }
 
-  Gauge registerGaugeMetric(CollectorRegistry registry, String metricName, String metricHelp) throws NumberFormatException {
-    return Gauge.build()
-        .name(metricName)
-        .help(metricHelp)
-        .register(registry);
+  /**
+   * Parses a line of comma separated label values followed by the metric value and hands them to the metric. Empty
+   * items are skipped. The line is scanned in place, only the label values array and the items themselves are allocated.
+   */
+  void applyLabelValuesLine(String labelsLine, int maxItem, ObjDoubleConsumer<String[]> metric) throws IllegalArgumentException {
+    // a new array for every line: the metric keeps it as the key of the child
+    final String[] labelValues = new String[maxItem - 1];
+    String value = null;
+    int items = 0;
+    int start = 0;
+    while (start <= labelsLine.length()) {
+      int end = labelsLine.indexOf(LABEL_SEPARATOR, start);
+      if (end < 0) {
+        end = labelsLine.length();
+      }
+      if (end > start) {
+        if (items < labelValues.length) {
+          labelValues[items] = labelsLine.substring(start, end);
+        } else if (items == labelValues.length) {
+          value = labelsLine.substring(start, end);
+        }
+        items++;
+      }
+      start = end + 1;
+    }
+    if (items != maxItem) {
+      throw new IllegalArgumentException("Metric label value line (" + labelsLine + ") should have " + maxItem + " item(s) comma separated.");
+    }
+    metric.accept(labelValues, Double.parseDouble(value));
+  }
+
+  /**
+   * Applies every dynamic property, evaluated against the FlowFile, as a line of label values.
+   */
+  void applyLabelValuesFromAttributes(ProcessContext processContext, FlowFile flowFile, int maxItem, ObjDoubleConsumer<String[]> metric) {
+    for (PropertyDescriptor propertyDescriptor : dynamicProperties) {
+      String value = processContext.getProperty(propertyDescriptor).evaluateAttributeExpressions(flowFile).getValue();
+      applyLabelValuesLine(value, maxItem, metric);
+    }
   }
 
-  Gauge registerGaugeMetric(CollectorRegistry registry, String metricName, String metricHelp,
-                            String[] labelNames) throws NumberFormatException {
-    return Gauge.build()
-        .name(metricName)
-        .help(metricHelp)
-        .labelNames(labelNames)
-        .register(registry);
+  /**
+   * Streams the FlowFile content and applies every line as a line of label values.
+   */
+  void applyLabelValuesFromContent(ProcessSession processSession, FlowFile flowFile, int maxItem, ObjDoubleConsumer<String[]> metric) {
+    if (flowFile.getSize() == 0) {
+      throw new IllegalArgumentException("Flowfile content is empty.");
+    }
+    processSession.read(flowFile, in -> {
+      final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        applyLabelValuesLine(line, maxItem, metric);
+      }
+    });
   }
 
-  void setLabelValuesToGaugeMetric(Gauge metric, String labelsLine, int maxItem) throws IllegalArgumentException {
-    String[] items = StringUtils.split(labelsLine, LABEL_SEPARATOR);
-    if (items.length != maxItem) {
-      throw new IllegalArgumentException("Metric label value line (" + labelsLine + ") should have " + maxItem + " item(s) comma separated.");
+  /**
+   * Checks that label values have a source and that every dynamic property holds one value per label plus the metric value.
+   */
+  static List<ValidationResult> validateLabelValues(ValidationContext validationContext, PropertyDescriptor labelsProperty,
+                                                    PropertyDescriptor sourceProperty) {
+    final List<ValidationResult> reasons = new ArrayList<>();
+
+    if (validationContext.getProperty(labelsProperty).isSet()) {
+      if (!validationContext.getProperty(sourceProperty).isSet()) {
+        reasons.add(new ValidationResult.Builder()
+            .subject("Source of metric label values")
+            .valid(false)
+            .explanation("source of metric label values is not defined").build());
+      }
+
+      String labels = validationContext.getProperty(labelsProperty).getValue();
+      String labelValuesSource = validationContext.getProperty(sourceProperty).getValue();
+      if (labelValuesSource != null && labelValuesSource.equals(SOURCE_ATTRIBUTE) && !StringUtils.isEmpty(labels)) {
+        if (validationContext.getProperties().keySet().stream().noneMatch(PropertyDescriptor::isDynamic)) {
+          reasons.add(new ValidationResult.Builder()
+              .subject("Dynamic property value")
+              .valid(false)
+              .explanation("there is no dynamic property defined for metric label value").build());
+        }
+
+        int labelCount = labels.split(LABEL_SEPARATOR).length;
+        boolean isDynamicPropertyValid = validationContext.getProperties().keySet().stream()
+            .filter(PropertyDescriptor::isDynamic)
+            .noneMatch(propertyDescriptor ->
+                validationContext
+                    .getProperty(propertyDescriptor)
+                    .getValue()
+                    .split(LABEL_SEPARATOR).length != labelCount + 1);
+        if (!isDynamicPropertyValid) {
+          reasons.add(new ValidationResult.Builder()
+              .subject("Dynamic property value")
+              .valid(false)
+              .explanation("the dynamic property values should contain " + (labelCount + 1)
+                  + " items (including metric label value at the end) since there is/are " + labelCount + " label(s) defined.").build());
+        }
+      }
     }
-    metric
-        .labels(Arrays.copyOfRange(items, 0, items.length - 1))
-        .set(Double.parseDouble(items[items.length - 1]));
+
+    return reasons;
   }
 
   static void checkMetricName(String name) throws IllegalArgumentException {
+    if (VALID_NAMES.contains(name)) {
+      return;
+    }
     if (!METRIC_NAME_RE.matcher(name).matches()) {
       throw new IllegalArgumentException("Invalid metric name: " + name);
     }
+    rememberValidName(name);
   }
 
   protected static void checkMetricLabelName(String name) {
+    if (VALID_NAMES.contains(name)) {
+      return;
+    }
     if (!METRIC_LABEL_NAME_RE.matcher(name).matches()) {
       throw new IllegalArgumentException("Invalid metric label name: " + name);
     }
     if (RESERVED_METRIC_LABEL_NAME_RE.matcher(name).matches()) {
       throw new IllegalArgumentException("Invalid metric label name, reserved for internal use: " + name);
     }
+    rememberValidName(name);
+  }
+
+  private static void rememberValidName(String name) {
+    // names may come from attributes, so only a bounded number is remembered
+    if (VALID_NAMES.size() < MAX_VALID_NAMES) {
+      VALID_NAMES.add(name);
+    }
   }
 }
@@ -0,0 +1,349 @@
+package de.flaconi.nifi.processors;
+
+import de.flaconi.nifi.prometheus.CircuitBreaker;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.SimpleCollector;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.expression.AttributeExpression;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleConsumer;
+import java.util.function.ObjDoubleConsumer;
+
+import static de.flaconi.nifi.processors.PushGaugeMetric.LABEL_SEPARATOR;
+import static de.flaconi.nifi.processors.PushGaugeMetric.SOURCE_ATTRIBUTE;
+import static de.flaconi.nifi.processors.PushGaugeMetric.SOURCE_CONTENT;
+
+/**
+ * Base of the processors that record many observations of a FlowFile into one metric and push the aggregated series:
+ * a single value, one value per line of the content, or label values and a value per dynamic property or content line.
+ * <p>
+ * The metric is kept while the processor is scheduled, one per push target, metric name and label names, and every
+ * push carries its cumulative state, since a pushAdd replaces all series of the family on the Pushgateway. The
+ * observations of a FlowFile are recorded before the push; if the push fails they stay recorded and are pushed with
+ * the next FlowFile of the metric or when the processor is stopped, so the FlowFile is not routed to failure and a
+ * retry cannot count it twice. A FlowFile with a malformed line or a value the metric rejects, e.g. a negative counter
+ * increment, is routed to failure before any of its observations is recorded.
+ *
+ * @param <T> the type of the metric
+ */
+public abstract class PushObservedMetricProcessor<T extends SimpleCollector<?>> extends PushMetricProcessor {
+
+  private static final Logger logger = LoggerFactory.getLogger(PushObservedMetricProcessor.class);
+
+  static final PropertyDescriptor METRIC_NAME = new PropertyDescriptor.Builder()
+      .name("Metric Name")
+      .description("The metric name")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_HELP = new PropertyDescriptor.Builder()
+      .name("Metric Help")
+      .description("The metric help")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_VALUE = new PropertyDescriptor.Builder()
+      .name("Metric Value")
+      .description("The value to observe when no metric labels are defined and the values are not taken from the FlowFile content")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_LABELS = new PropertyDescriptor.Builder()
+      .name("Metric Labels")
+      .description("The metric labels, comma-separated labels. If it is set then the source of the label values is required.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_VALUES_SOURCE = new PropertyDescriptor.Builder()
+      .name("Source of metric label values")
+      .description("Indicates whether the observations are taken from the FlowFile content, one per line, or from the dynamic "
+          + "properties. Every line or property holds the comma separated label values followed by the observed value; "
+          + "without metric labels a content line holds only the value.")
+      .required(false)
+      .allowableValues(SOURCE_ATTRIBUTE, SOURCE_CONTENT)
+      .build();
+
+  /**
+   * The cumulative metric of one push target, metric name and label names.
+   */
+  private static final class ObservedMetric<T> {
+    private final String host;
+    private final String port;
+    private final String jobName;
+    private final Map<String, String> groupingKey;
+    private final String metricName;
+    private final CollectorRegistry registry = new CollectorRegistry();
+    private T metric;
+    // set when observations were recorded that are not pushed yet
+    private volatile boolean pending;
+
+    private ObservedMetric(String host, String port, String jobName, Map<String, String> groupingKey, String metricName) {
+      this.host = host;
+      this.port = port;
+      this.jobName = jobName;
+      this.groupingKey = groupingKey;
+      this.metricName = metricName;
+    }
+  }
+
+  /**
+   * The observations of one FlowFile.
+   */
+  private static final class Observations implements ObjDoubleConsumer<String[]> {
+    private final DoubleConsumer check;
+    private String[][] labelValues = new String[16][];
+    private double[] values = new double[16];
+    private int size;
+
+    private Observations(DoubleConsumer check) {
+      this.check = check;
+    }
+
+    @Override
+    public void accept(String[] labelValues, double value) {
+      check.accept(value);
+      if (size == values.length) {
+        this.labelValues = Arrays.copyOf(this.labelValues, size * 2);
+        values = Arrays.copyOf(values, size * 2);
+      }
+      this.labelValues[size] = labelValues;
+      values[size++] = value;
+    }
+  }
+
+  private volatile Map<List<Object>, ObservedMetric<T>> metrics = new ConcurrentHashMap<>();
+
+  @Override
+  protected void init(ProcessorInitializationContext context) {
+    super.init(context);
+
+    final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(PUSHGATEWAY_HOSTNAME);
+    descriptors.add(PUSHGATEWAY_PORT);
+    descriptors.add(PUSHGATEWAY_ENDPOINTS);
+    descriptors.add(SHARD_FAILOVER_COOLDOWN);
+    descriptors.add(CIRCUIT_FAILURE_THRESHOLD);
+    descriptors.add(CIRCUIT_OPEN_DURATION);
+    descriptors.add(CIRCUIT_MAX_OPEN_DURATION);
+    descriptors.add(INSTANCE);
+    descriptors.add(JOB_NAME);
+    descriptors.add(CONNECT_TIMEOUT);
+    descriptors.add(READ_TIMEOUT);
+    descriptors.add(ASYNC_PUSH);
+    descriptors.add(PUSH_QUEUE_SIZE);
+    descriptors.add(PUSH_WORKERS);
+    descriptors.add(SPOOL_DIRECTORY);
+    descriptors.add(SPOOL_MAX_SIZE);
+    descriptors.add(METRIC_NAME);
+    descriptors.add(METRIC_HELP);
+    descriptors.add(METRIC_VALUE);
+    descriptors.add(METRIC_LABELS);
+    descriptors.add(METRIC_VALUES_SOURCE);
+    descriptors.addAll(getMetricPropertyDescriptors());
+    this.descriptors = Collections.unmodifiableList(descriptors);
+
+    final Set<Relationship> relationships = new HashSet<>();
+    relationships.add(REL_SUCCESS);
+    relationships.add(REL_FAILURE);
+    this.relationships = Collections.unmodifiableSet(relationships);
+  }
+
+  @OnScheduled
+  public void createMetrics(ProcessContext processContext) {
+    metrics = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * @return the properties specific to the metric type, e.g. the buckets of a histogram
+   */
+  protected List<PropertyDescriptor> getMetricPropertyDescriptors() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Registers the metric of a FlowFile.
+   */
+  protected abstract T registerMetric(ProcessContext processContext, CollectorRegistry registry, String metricName,
+                                      String metricHelp, String[] labelNames);
+
+  /**
+   * Records one observation.
+   */
+  protected abstract void observe(T metric, String[] labelValues, double value);
+
+  /**
+   * Checks a value before any observation of the FlowFile is recorded, so that {@link #observe} cannot fail halfway.
+   *
+   * @throws IllegalArgumentException if the metric does not accept the value
+   */
+  protected void checkValue(double value) {
+  }
+
+  @Override
+  protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(String propertyDescriptorName) {
+    return new PropertyDescriptor.Builder()
+        .name(propertyDescriptorName)
+        .description("Key is an identifier like sequential numbers, value is comma separated labels " +
+            "with the observed value at the end. e.g. 'get,${application_id},${http_request_duration}")
+        .required(true)
+        .dynamic(true)
+        .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+        .addValidator(StandardValidators.createAttributeExpressionLanguageValidator(AttributeExpression.ResultType.STRING, true))
+        .addValidator(Validator.VALID)
+        .build();
+  }
+
+  @Override
+  public void onTrigger(ProcessContext processContext, ProcessSession processSession) throws ProcessException {
+    if (!hasPushCapacity()) {
+      processContext.yield();
+      return;
+    }
+
+    final FlowFile flowFile = processSession.get();
+    if (flowFile == null) {
+      return;
+    }
+
+    final String host = processContext.getProperty(PUSHGATEWAY_HOSTNAME).evaluateAttributeExpressions(flowFile).getValue();
+    final String port = processContext.getProperty(PUSHGATEWAY_PORT).getValue();
+    final String instance = processContext.getProperty(INSTANCE).evaluateAttributeExpressions(flowFile).getValue();
+    final String jobName = processContext.getProperty(JOB_NAME).getValue();
+    final String metricName = processContext.getProperty(METRIC_NAME).evaluateAttributeExpressions(flowFile).getValue();
+    final String metricHelp = processContext.getProperty(METRIC_HELP).getValue();
+    final String metricLabels = processContext.getProperty(METRIC_LABELS).evaluateAttributeExpressions(flowFile).getValue();
+    final String metricValuesSource = processContext.getProperty(METRIC_VALUES_SOURCE).getValue();
+    final Map<String, String> groupingKey = Collections.singletonMap("instance", instance);
+
+    checkMetricName(metricName);
+    final String[] labelNames = StringUtils.isEmpty(metricLabels) ? new String[0] : metricLabels.split(LABEL_SEPARATOR);
+    final ObservedMetric<T> observed = metrics.computeIfAbsent(
+        Arrays.asList(host, port, jobName, groupingKey, metricName, Arrays.asList(labelNames)),
+        key -> new ObservedMetric<>(host, port, jobName, groupingKey, metricName));
+    // all observations are read and checked before any is recorded, so that a malformed FlowFile leaves the metric untouched
+    final Observations observations = new Observations(this::checkValue);
+    try {
+      if (SOURCE_CONTENT.equals(metricValuesSource)) {
+        applyLabelValuesFromContent(processSession, flowFile, labelNames.length + 1, observations);
+      } else if (labelNames.length > 0) {
+        applyLabelValuesFromAttributes(processContext, flowFile, labelNames.length + 1, observations);
+      } else {
+        observations.accept(labelNames, processContext.getProperty(METRIC_VALUE).evaluateAttributeExpressions(flowFile).asDouble());
+      }
+    } catch (IllegalArgumentException illegalArgument) {
+      logger.error(String.format("Routing the metric \"%s\" to failure: %s", metricName, illegalArgument.getMessage()));
+      processSession.transfer(flowFile, REL_FAILURE);
+      return;
+    }
+    synchronized (observed) {
+      if (observed.metric == null) {
+        observed.metric = registerMetric(processContext, observed.registry, metricName, metricHelp, labelNames);
+      }
+      for (int i = 0; i < observations.size; i++) {
+        observe(observed.metric, observations.labelValues[i], observations.values[i]);
+      }
+      observed.pending = true;
+    }
+    processSession.transfer(flowFile, REL_SUCCESS);
+
+    if (!push(observed)) {
+      processContext.yield();
+    }
+  }
+
+  /**
+   * Pushes the cumulative state of the metric; if the push fails, the metric stays pending for the next push.
+   *
+   * @return false if the push failed or the push queue was full
+   */
+  private boolean push(ObservedMetric<T> observed) {
+    observed.pending = false;
+    try {
+      final boolean queued = pushAdd(observed.host, observed.port, observed.registry, observed.jobName, observed.groupingKey,
+          ioException -> {
+            observed.pending = true;
+            logger.error(String.format("Failed to push the metric \"%s\" into pushgateway due to \"%s\"",
+                observed.metricName, ioException), ioException);
+          });
+      if (!queued) {
+        observed.pending = true;
+        logger.warn(String.format("Push queue is full, pushing the metric \"%s\" later", observed.metricName));
+      }
+      return queued;
+    } catch (CircuitBreaker.OpenException openException) {
+      observed.pending = true;
+      logger.warn(String.format("Pushing the metric \"%s\" later: %s", observed.metricName, openException.getMessage()));
+      return true;
+    } catch (IOException ioException) {
+      observed.pending = true;
+      logger.error(String.format("Failed to push the metric \"%s\" into pushgateway due to \"%s\"", observed.metricName,
+          ioException), ioException);
+      return false;
+    }
+  }
+
+  /**
+   * Pushes the metrics with observations that failed to be pushed before, and forgets the metrics of this schedule.
+   */
+  @Override
+  void flushPendingMetrics() {
+    for (ObservedMetric<T> observed : metrics.values()) {
+      if (observed.pending) {
+        push(observed);
+      }
+    }
+    metrics = new ConcurrentHashMap<>();
+  }
+
+  @Override
+  protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
+    final List<ValidationResult> reasons = new ArrayList<>(super.customValidate(validationContext));
+    reasons.addAll(validateLabelValues(validationContext, METRIC_LABELS, METRIC_VALUES_SOURCE));
+
+    if (!validationContext.getProperty(METRIC_LABELS).isSet()
+        && !SOURCE_CONTENT.equals(validationContext.getProperty(METRIC_VALUES_SOURCE).getValue())
+        && !validationContext.getProperty(METRIC_VALUE).isSet()) {
+      reasons.add(new ValidationResult.Builder()
+          .subject("Metric Value")
+          .valid(false)
+          .explanation("the metric value is required when there are no metric labels and the values are not taken from the content").build());
+    }
+    return reasons;
+  }
+}
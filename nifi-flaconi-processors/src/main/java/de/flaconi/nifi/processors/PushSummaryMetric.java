@@ -0,0 +1,97 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Summary;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.ProcessContext;
+
+import java.util.Collections;
+import java.util.List;
+
+import static de.flaconi.nifi.processors.PushGaugeMetric.LABEL_SEPARATOR;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"Prometheus", "Pushgateway", "Push", "Summary"})
+@CapabilityDescription("Pushes a summary type metric to the Prometheus Pushgateway. All observations of a FlowFile, taken from "
+    + "'Metric Value', the content lines or the dynamic properties, are reduced to the configured quantiles per label "
+    + "values and only the quantile, count and sum series are pushed. The summary is kept while the processor runs, so "
+    + "every push carries the observations of all FlowFiles so far.")
+@DynamicProperty(name = "Key identifier like sequential numbers",
+    value = "Comma separated labels with the observed value at the end. e.g. 'get,${application_id},${request_duration}'",
+    description = "Specifies labels and observation to be sent to the Prometheus Pushgateway",
+    supportsExpressionLanguage = true)
+public class PushSummaryMetric extends PushObservedMetricProcessor<Summary> {
+
+  static final PropertyDescriptor QUANTILES = new PropertyDescriptor.Builder()
+      .name("Summary Quantiles")
+      .description("Comma separated quantiles to compute, each with its tolerated error as quantile:error, e.g. 0.99:0.001")
+      .defaultValue("0.5:0.05,0.9:0.01,0.99:0.001")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator((subject, input, context) -> {
+        try {
+          parseQuantiles(input);
+          return new ValidationResult.Builder().subject(subject).input(input).valid(true).build();
+        } catch (IllegalArgumentException e) {
+          return new ValidationResult.Builder().subject(subject).input(input).valid(false).explanation(e.getMessage()).build();
+        }
+      })
+      .build();
+
+  private volatile double[][] quantiles;
+
+  @Override
+  protected List<PropertyDescriptor> getMetricPropertyDescriptors() {
+    return Collections.singletonList(QUANTILES);
+  }
+
+  @OnScheduled
+  public void parseQuantiles(ProcessContext processContext) {
+    quantiles = parseQuantiles(processContext.getProperty(QUANTILES).getValue());
+  }
+
+  @Override
+  protected Summary registerMetric(ProcessContext processContext, CollectorRegistry registry, String metricName,
+                                   String metricHelp, String[] labelNames) {
+    final Summary.Builder builder = Summary.build()
+        .name(metricName)
+        .help(metricHelp)
+        .labelNames(labelNames);
+    for (double[] quantile : quantiles) {
+      builder.quantile(quantile[0], quantile[1]);
+    }
+    return builder.register(registry);
+  }
+
+  @Override
+  protected void observe(Summary metric, String[] labelValues, double value) {
+    metric.labels(labelValues).observe(value);
+  }
+
+  static double[][] parseQuantiles(String value) {
+    final String[] items = value.split(LABEL_SEPARATOR);
+    final double[][] quantiles = new double[items.length][];
+    for (int i = 0; i < items.length; i++) {
+      final String[] quantileAndError = items[i].split(":");
+      if (quantileAndError.length != 2) {
+        throw new IllegalArgumentException("quantile " + items[i] + " is not given as quantile:error");
+      }
+      try {
+        quantiles[i] = new double[]{Double.parseDouble(quantileAndError[0].trim()), Double.parseDouble(quantileAndError[1].trim())};
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("quantile " + items[i] + " is not a number");
+      }
+      if (quantiles[i][0] < 0 || quantiles[i][0] > 1 || quantiles[i][1] < 0 || quantiles[i][1] > 1) {
+        throw new IllegalArgumentException("quantile and error of " + items[i] + " must be between 0 and 1");
+      }
+    }
+    return quantiles;
+  }
+}
@@ -0,0 +1,178 @@
+package de.flaconi.nifi.processors;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Streams the Prometheus text exposition format (version 0.0.4) line by line into {@link ParsedMetrics}: the
+ * HELP and TYPE comments, samples with labels, special values and optional timestamps.
+ */
+final class TextFormatParser {
+
+  private TextFormatParser() {
+  }
+
+  /**
+   * @throws IllegalArgumentException with the line number if a line is malformed
+   */
+  static void parse(InputStream in, ParsedMetrics metrics) throws IOException {
+    final BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    String family = null;
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      try {
+        if (line.startsWith("#")) {
+          final String declared = parseComment(line, metrics);
+          if (declared != null) {
+            family = declared;
+          }
+        } else if (!line.trim().isEmpty()) {
+          parseSample(line, family, metrics);
+        }
+      } catch (IllegalArgumentException illegalArgumentException) {
+        throw new IllegalArgumentException("Line " + lineNumber + ": " + illegalArgumentException.getMessage(),
+            illegalArgumentException);
+      }
+    }
+  }
+
+  /**
+   * @return the metric name of a HELP or TYPE comment, null for other comments
+   */
+  private static String parseComment(String line, ParsedMetrics metrics) {
+    final String[] tokens = line.substring(1).trim().split("[ \t]+", 3);
+    if (tokens.length < 2 || !("HELP".equals(tokens[0]) || "TYPE".equals(tokens[0]))) {
+      return null;
+    }
+    final String name = tokens[1];
+    final String rest = tokens.length > 2 ? tokens[2] : "";
+    if ("HELP".equals(tokens[0])) {
+      metrics.declare(name, null, unescape(rest, false));
+    } else {
+      metrics.declare(name, ParsedMetrics.parseType(rest.trim()), null);
+    }
+    return name;
+  }
+
+  private static void parseSample(String line, String family, ParsedMetrics metrics) {
+    final int length = line.length();
+    int position = skipWhitespace(line, 0);
+    final int nameStart = position;
+    while (position < length && line.charAt(position) != '{' && !isWhitespace(line.charAt(position))) {
+      position++;
+    }
+    final String name = line.substring(nameStart, position);
+
+    List<String> labelNames = Collections.emptyList();
+    List<String> labelValues = Collections.emptyList();
+    position = skipWhitespace(line, position);
+    if (position < length && line.charAt(position) == '{') {
+      labelNames = new ArrayList<>();
+      labelValues = new ArrayList<>();
+      position = parseLabels(line, position + 1, labelNames, labelValues);
+    }
+
+    final String[] tokens = line.substring(position).trim().split("[ \t]+");
+    if (tokens.length == 0 || tokens[0].isEmpty() || tokens.length > 2) {
+      throw new IllegalArgumentException("Expected a value and an optional timestamp after " + name);
+    }
+    final double value = ParsedMetrics.parseValue(tokens[0]);
+    Long timestampMs = null;
+    if (tokens.length == 2) {
+      try {
+        timestampMs = Long.parseLong(tokens[1]);
+      } catch (NumberFormatException numberFormatException) {
+        throw new IllegalArgumentException("Invalid timestamp: " + tokens[1]);
+      }
+    }
+    metrics.add(family, name, labelNames, labelValues, value, timestampMs);
+  }
+
+  /**
+   * @return the position after the closing brace
+   */
+  private static int parseLabels(String line, int position, List<String> labelNames, List<String> labelValues) {
+    final int length = line.length();
+    while (true) {
+      position = skipWhitespace(line, position);
+      if (position < length && line.charAt(position) == '}') {
+        return position + 1;
+      }
+      final int nameStart = position;
+      while (position < length && line.charAt(position) != '=' && !isWhitespace(line.charAt(position))) {
+        position++;
+      }
+      final String labelName = line.substring(nameStart, position);
+      position = skipWhitespace(line, position);
+      if (position >= length || line.charAt(position) != '=') {
+        throw new IllegalArgumentException("Expected '=' after the label " + labelName);
+      }
+      position = skipWhitespace(line, position + 1);
+      if (position >= length || line.charAt(position) != '"') {
+        throw new IllegalArgumentException("Expected a quoted value of the label " + labelName);
+      }
+      final int valueStart = ++position;
+      while (position < length && line.charAt(position) != '"') {
+        position += line.charAt(position) == '\\' ? 2 : 1;
+      }
+      if (position >= length) {
+        throw new IllegalArgumentException("Unterminated value of the label " + labelName);
+      }
+      labelNames.add(labelName);
+      labelValues.add(unescape(line.substring(valueStart, position), true));
+      position = skipWhitespace(line, position + 1);
+      if (position < length && line.charAt(position) == ',') {
+        position++;
+      } else if (position >= length || line.charAt(position) != '}') {
+        throw new IllegalArgumentException("Expected ',' or '}' after the label " + labelName);
+      }
+    }
+  }
+
+  /**
+   * Replaces the escape sequences "\\", "\n" and, in label values, "\"".
+   */
+  private static String unescape(String value, boolean labelValue) {
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    final StringBuilder unescaped = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        final char next = value.charAt(i + 1);
+        if (next == 'n') {
+          unescaped.append('\n');
+          i++;
+          continue;
+        }
+        if (next == '\\' || (labelValue && next == '"')) {
+          unescaped.append(next);
+          i++;
+          continue;
+        }
+      }
+      unescaped.append(c);
+    }
+    return unescaped.toString();
+  }
+
+  private static int skipWhitespace(String line, int position) {
+    while (position < line.length() && isWhitespace(line.charAt(position))) {
+      position++;
+    }
+    return position;
+  }
+
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t';
+  }
+}
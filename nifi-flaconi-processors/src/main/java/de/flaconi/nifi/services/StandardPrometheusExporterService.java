@@ -0,0 +1,125 @@
+package de.flaconi.nifi.services;
+
+import de.flaconi.nifi.prometheus.ExportedMetrics;
+import de.flaconi.nifi.prometheus.MetricsHttpServer;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@Tags({"Prometheus", "metrics", "exporter", "http"})
+@CapabilityDescription("Runs an embedded HTTP server that exposes the metrics written by the components of this bundle "
+    + "on /metrics in the Prometheus text format, so Prometheus can scrape NiFi directly instead of going through the "
+    + "Pushgateway. The job and grouping key of an update are exposed as labels, so the scrape config should use "
+    + "honor_labels like for the Pushgateway.")
+public class StandardPrometheusExporterService extends AbstractControllerService implements PrometheusExporterService {
+
+  static final PropertyDescriptor PORT = new PropertyDescriptor.Builder()
+      .name("Port")
+      .description("The port the /metrics endpoint listens on")
+      .defaultValue("9092")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.PORT_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor BIND_ADDRESS = new PropertyDescriptor.Builder()
+      .name("Bind Address")
+      .description("The address the /metrics endpoint listens on; all addresses if not set")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SERIES_EXPIRY = new PropertyDescriptor.Builder()
+      .name("Series Expiry")
+      .description("The metrics of a job and instance that were not updated for this long are no longer exposed. "
+          + "If not set they are exposed until the service is disabled.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SERVER_THREADS = new PropertyDescriptor.Builder()
+      .name("Server Threads")
+      .description("The number of threads serving the scrapes")
+      .defaultValue("2")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  private static final List<PropertyDescriptor> DESCRIPTORS;
+
+  static {
+    final List<PropertyDescriptor> descriptors = new ArrayList<>();
+    descriptors.add(PORT);
+    descriptors.add(BIND_ADDRESS);
+    descriptors.add(SERIES_EXPIRY);
+    descriptors.add(SERVER_THREADS);
+    DESCRIPTORS = Collections.unmodifiableList(descriptors);
+  }
+
+  private volatile ExportedMetrics metrics;
+  private volatile MetricsHttpServer server;
+
+  @Override
+  protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+    return DESCRIPTORS;
+  }
+
+  @OnEnabled
+  public void onEnabled(ConfigurationContext context) throws IOException {
+    final int port = context.getProperty(PORT).evaluateAttributeExpressions().asInteger();
+    final InetSocketAddress address = context.getProperty(BIND_ADDRESS).isSet()
+        ? new InetSocketAddress(context.getProperty(BIND_ADDRESS).evaluateAttributeExpressions().getValue(), port)
+        : new InetSocketAddress(port);
+    final long expiryNanos = context.getProperty(SERIES_EXPIRY).isSet()
+        ? context.getProperty(SERIES_EXPIRY).asTimePeriod(TimeUnit.NANOSECONDS)
+        : 0L;
+
+    final ExportedMetrics metrics = new ExportedMetrics(expiryNanos);
+    final CollectorRegistry registry = new CollectorRegistry();
+    metrics.register(registry);
+    this.metrics = metrics;
+    this.server = new MetricsHttpServer(address, registry, context.getProperty(SERVER_THREADS).asInteger());
+    getLogger().info("Exposing Prometheus metrics on {}", new Object[]{address});
+  }
+
+  @OnDisabled
+  public void onDisabled() {
+    if (server != null) {
+      server.close();
+      server = null;
+    }
+    if (metrics != null) {
+      metrics.clear();
+      metrics = null;
+    }
+  }
+
+  @Override
+  public void update(String job, Map<String, String> groupingKey, Enumeration<MetricFamilySamples> families) {
+    final ExportedMetrics metrics = this.metrics;
+    if (metrics != null) {
+      metrics.update(job, groupingKey, families);
+    }
+  }
+}
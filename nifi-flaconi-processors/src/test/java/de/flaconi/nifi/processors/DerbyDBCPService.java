@@ -0,0 +1,48 @@
+package de.flaconi.nifi.processors;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+/**
+ * Connection pool backed by a private in-memory Derby database.
+ */
+public class DerbyDBCPService extends AbstractControllerService implements DBCPService {
+
+  private final String database = "memory:" + UUID.randomUUID().toString().replace("-", "");
+
+  static {
+    System.setProperty("derby.stream.error.file", "target/derby.log");
+  }
+
+  @Override
+  public Connection getConnection() throws ProcessException {
+    try {
+      return DriverManager.getConnection("jdbc:derby:" + database + ";create=true");
+    } catch (SQLException e) {
+      throw new ProcessException(e);
+    }
+  }
+
+  void execute(String... statements) throws SQLException {
+    try (Connection connection = getConnection(); Statement statement = connection.createStatement()) {
+      for (String sql : statements) {
+        statement.execute(sql);
+      }
+    }
+  }
+
+  void drop() {
+    try {
+      DriverManager.getConnection("jdbc:derby:" + database + ";drop=true").close();
+    } catch (SQLException e) {
+      // Derby always reports a dropped database by an exception
+    }
+  }
+}
@@ -0,0 +1,226 @@
+package de.flaconi.nifi.processors;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Runs ConvertJSONToSQL against an embedded Derby database for tables of 5 to 500 columns and JSON arrays of 1 to
+ * 1,000,000 elements. Every generated statement is executed to prove it is valid, and the throughput and peak heap
+ * of each run are logged as a baseline for performance work.
+ * <p>
+ * Run with {@code mvn verify -P integration-tests}. Combinations with more than {@code convertJSONToSQL.it.maxCells}
+ * (columns times records, default 5,000,000) values are skipped; lower it on machines with less than 8 GB of heap.
+ */
+@RunWith(Parameterized.class)
+public class ITConvertJSONToSQL {
+
+  private static final Logger logger = LoggerFactory.getLogger(ITConvertJSONToSQL.class);
+  private static final long MAX_CELLS = Long.getLong("convertJSONToSQL.it.maxCells", 5_000_000L);
+  private static final int BATCH_SIZE = 1000;
+
+  private final int columns;
+  private final int records;
+  private DerbyDBCPService dbcpService;
+  private TestRunner testRunner;
+
+  public ITConvertJSONToSQL(int columns, int records) {
+    this.columns = columns;
+    this.records = records;
+  }
+
+  @Parameterized.Parameters(name = "{0} columns, {1} records")
+  public static Collection<Object[]> parameters() {
+    final List<Object[]> parameters = new ArrayList<>();
+    for (int columns : new int[]{5, 50, 500}) {
+      for (int records : new int[]{1, 100, 10_000, 100_000, 1_000_000}) {
+        parameters.add(new Object[]{columns, records});
+      }
+    }
+    return parameters;
+  }
+
+  @Before
+  public void before() throws Exception {
+    Assume.assumeTrue("more than " + MAX_CELLS + " values", (long) columns * records <= MAX_CELLS);
+
+    dbcpService = new DerbyDBCPService();
+    testRunner = TestRunners.newTestRunner(ConvertJSONToSQL.class);
+    testRunner.addControllerService("dbcp", dbcpService);
+    testRunner.enableControllerService(dbcpService);
+    dbcpService.execute(createTable());
+
+    testRunner.setProperty(ConvertJSONToSQL.CONNECTION_POOL, "dbcp");
+    testRunner.setProperty(ConvertJSONToSQL.TABLE_NAME, "SCALE");
+  }
+
+  @After
+  public void after() {
+    if (dbcpService != null) {
+      dbcpService.drop();
+    }
+  }
+
+  @Test
+  public void testInsertUpdateDelete() throws SQLException {
+    convertAndExecute("INSERT", false, false);
+    assertThat(count("SELECT COUNT(*) FROM SCALE"), is(records));
+
+    convertAndExecute("UPDATE", true, false);
+    assertThat(count("SELECT COUNT(*) FROM SCALE WHERE C1 = 'updated'"), is(records));
+
+    convertAndExecute("DELETE", false, true);
+    assertThat(count("SELECT COUNT(*) FROM SCALE"), is(0));
+  }
+
+  private void convertAndExecute(String statementType, boolean updated, boolean keyOnly) throws SQLException {
+    testRunner.setProperty(ConvertJSONToSQL.STATEMENT_TYPE, statementType);
+    testRunner.enqueue(createJson(updated, keyOnly));
+
+    final long usedBefore = resetPeakHeap();
+    final long start = System.nanoTime();
+    testRunner.run();
+    final long elapsed = System.nanoTime() - start;
+    final long peakHeap = peakHeap();
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, records);
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_ORIGINAL, 1);
+    logger.info(String.format("%s of %d records with %d columns: %.0f records/s, peak heap %d MB (%d MB before)",
+        statementType, records, columns, records / (elapsed / 1e9), peakHeap >> 20, usedBefore >> 20));
+
+    execute(testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL));
+    testRunner.clearTransferState();
+  }
+
+  private String createTable() {
+    final StringBuilder sql = new StringBuilder("CREATE TABLE SCALE (ID INTEGER NOT NULL PRIMARY KEY");
+    for (int column = 1; column < columns; column++) {
+      sql.append(", C").append(column).append(column % 2 == 1 ? " VARCHAR(32)" : " INTEGER");
+    }
+    return sql.append(")").toString();
+  }
+
+  private byte[] createJson(boolean updated, boolean keyOnly) {
+    final StringBuilder json = new StringBuilder(records * columns * 12);
+    json.append('[');
+    for (int record = 0; record < records; record++) {
+      if (record > 0) {
+        json.append(',');
+      }
+      json.append("{\"id\":").append(record);
+      for (int column = 1; column < columns && !keyOnly; column++) {
+        json.append(",\"c").append(column).append("\":");
+        if (column % 2 == 1) {
+          json.append('"').append(updated ? "updated" : "value-" + record).append('"');
+        } else {
+          json.append(updated ? -record : record);
+        }
+      }
+      json.append('}');
+    }
+    return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Executes the generated statements the way PutSQL does, binding the typed sql.args.N attributes.
+   */
+  private void execute(List<MockFlowFile> flowFiles) throws SQLException {
+    try (Connection connection = dbcpService.getConnection()) {
+      connection.setAutoCommit(false);
+      final Map<String, PreparedStatement> statements = new HashMap<>();
+      int pending = 0;
+      for (MockFlowFile flowFile : flowFiles) {
+        final String sql = new String(flowFile.toByteArray(), StandardCharsets.UTF_8);
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+          statement = connection.prepareStatement(sql);
+          statements.put(sql, statement);
+        }
+        for (int index = 1; flowFile.getAttribute("sql.args." + index + ".type") != null; index++) {
+          final int type = Integer.parseInt(flowFile.getAttribute("sql.args." + index + ".type"));
+          final String value = flowFile.getAttribute("sql.args." + index + ".value");
+          if (value == null) {
+            statement.setNull(index, type);
+          } else if (type == Types.INTEGER) {
+            statement.setInt(index, Integer.parseInt(value));
+          } else {
+            statement.setString(index, value);
+          }
+        }
+        statement.addBatch();
+        if (++pending % BATCH_SIZE == 0) {
+          executeBatches(statements.values());
+        }
+      }
+      executeBatches(statements.values());
+      connection.commit();
+      for (PreparedStatement statement : statements.values()) {
+        statement.close();
+      }
+    }
+  }
+
+  private static void executeBatches(Collection<PreparedStatement> statements) throws SQLException {
+    for (PreparedStatement statement : statements) {
+      statement.executeBatch();
+    }
+  }
+
+  private int count(String query) throws SQLException {
+    try (Connection connection = dbcpService.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery(query)) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
+  private static long resetPeakHeap() {
+    System.gc();
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        pool.resetPeakUsage();
+        used += pool.getUsage().getUsed();
+      }
+    }
+    return used;
+  }
+
+  private static long peakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) {
+        peak += pool.getPeakUsage().getUsed();
+      }
+    }
+    return peak;
+  }
+}
@@ -1,17 +1,53 @@
 package de.flaconi.nifi.processors;
 
+import io.prometheus.client.CollectorRegistry;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
 import org.codehaus.jackson.JsonNode;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
 
 public class TestConvertJSONToSQL {
 
+  private TestRunner testRunner;
+  private DerbyDBCPService dbcpService;
+
+  @Before
+  public void before() throws InitializationException, SQLException {
+    dbcpService = new DerbyDBCPService();
+    testRunner = TestRunners.newTestRunner(ConvertJSONToSQL.class);
+    testRunner.addControllerService("dbcp", dbcpService);
+    testRunner.enableControllerService(dbcpService);
+    dbcpService.execute(
+        "CREATE TABLE PERSONS (ID INTEGER NOT NULL PRIMARY KEY, NAME VARCHAR(100), CODE INTEGER)",
+        "CREATE TABLE DOCUMENTS (ID INTEGER NOT NULL PRIMARY KEY, TITLE VARCHAR(100), BODY CLOB)");
+
+    testRunner.setProperty(ConvertJSONToSQL.CONNECTION_POOL, "dbcp");
+    testRunner.setProperty(ConvertJSONToSQL.TABLE_NAME, "PERSONS");
+    testRunner.setProperty(ConvertJSONToSQL.STATEMENT_TYPE, "INSERT");
+  }
+
   @Test
   public void testCreateSqlStringValueDateFormat() throws IOException {
     String payload = "{\"created_at\":\"Fri Aug 17 10:10:10 UTC 2018\"}";
@@ -22,4 +58,253 @@ public class TestConvertJSONToSQL {
 
     assertThat(value, is("2018-08-17 10:10:10.000"));
   }
+
+  @Test
+  public void testStatementTypeField() {
+    testRunner.setProperty(ConvertJSONToSQL.STATEMENT_TYPE_FIELD, "op");
+    testRunner.enqueue("["
+        + "{\"op\":\"INSERT\",\"id\":1,\"name\":\"Mark\",\"code\":48},"
+        + "{\"op\":\"update\",\"id\":1,\"name\":\"Mark\",\"code\":49},"
+        + "{\"op\":\"DELETE\",\"id\":1,\"name\":\"Mark\",\"code\":49},"
+        + "{\"id\":2,\"name\":\"Jane\",\"code\":50}"
+        + "]");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_ORIGINAL, 1);
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 4);
+    final List<MockFlowFile> sql = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL);
+    sql.get(0).assertContentEquals("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (?, ?, ?)");
+    sql.get(1).assertContentEquals("UPDATE PERSONS SET NAME = ?, CODE = ? WHERE ID = ?");
+    sql.get(1).assertAttributeEquals("sql.args.3.value", "1");
+    sql.get(2).assertContentEquals("DELETE FROM PERSONS WHERE ID = ? AND NAME = ? AND CODE = ?");
+    sql.get(3).assertContentEquals("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (?, ?, ?)");
+    sql.get(3).assertAttributeEquals("sql.args.1.value", "2");
+  }
+
+  @Test
+  public void testStatementTypeFieldWithUnknownType() {
+    testRunner.setProperty(ConvertJSONToSQL.STATEMENT_TYPE_FIELD, "op");
+    testRunner.enqueue("[{\"op\":\"INSERT\",\"id\":1,\"name\":\"Mark\",\"code\":48},{\"op\":\"UPSERT\",\"id\":2,\"name\":\"Jane\",\"code\":50}]");
+
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(ConvertJSONToSQL.REL_FAILURE, 1);
+  }
+
+  @Test
+  public void testStatementTypeFieldIgnoresDefaultLocale() {
+    final Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      testRunner.setProperty(ConvertJSONToSQL.STATEMENT_TYPE_FIELD, "op");
+      testRunner.enqueue("{\"op\":\"insert\",\"id\":1,\"name\":\"Mark\",\"code\":48}");
+
+      testRunner.run();
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 1);
+    testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL).get(0)
+        .assertContentEquals("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (?, ?, ?)");
+  }
+
+  @Test
+  public void testDebeziumEnvelope() {
+    testRunner.setProperty(ConvertJSONToSQL.RECORD_ENVELOPE, ConvertJSONToSQL.ENVELOPE_DEBEZIUM.getValue());
+    testRunner.enqueue("["
+        + "{\"op\":\"c\",\"before\":null,\"after\":{\"id\":1,\"name\":\"Mark\",\"code\":48}},"
+        + "{\"payload\":{\"op\":\"u\",\"before\":{\"id\":1,\"name\":\"Mark\",\"code\":48},\"after\":{\"id\":1,\"name\":\"Mark\",\"code\":49}}},"
+        + "{\"op\":\"d\",\"before\":{\"id\":1,\"name\":\"Mark\",\"code\":49},\"after\":null}"
+        + "]");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 3);
+    final List<MockFlowFile> sql = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL);
+    sql.get(0).assertContentEquals("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (?, ?, ?)");
+    sql.get(1).assertContentEquals("UPDATE PERSONS SET NAME = ?, CODE = ? WHERE ID = ?");
+    sql.get(1).assertAttributeEquals("sql.args.2.value", "49");
+    sql.get(2).assertContentEquals("DELETE FROM PERSONS WHERE ID = ? AND NAME = ? AND CODE = ?");
+    sql.get(2).assertAttributeEquals("sql.args.3.value", "49");
+  }
+
+  @Test
+  public void testDebeziumUpdateOfPrimaryKey() throws SQLException {
+    dbcpService.execute("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (1, 'Mark', 48)");
+    testRunner.setProperty(ConvertJSONToSQL.RECORD_ENVELOPE, ConvertJSONToSQL.ENVELOPE_DEBEZIUM.getValue());
+    testRunner.enqueue("{\"op\":\"u\",\"before\":{\"id\":1,\"name\":\"Mark\",\"code\":48},\"after\":{\"id\":2,\"name\":\"Mark\",\"code\":49}}");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 1);
+    final MockFlowFile sql = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL).get(0);
+    sql.assertContentEquals("UPDATE PERSONS SET ID = ?, NAME = ?, CODE = ? WHERE ID = ?");
+    sql.assertAttributeEquals("sql.args.1.value", "2");
+    sql.assertAttributeEquals("sql.args.4.value", "1");
+
+    executeLikePutSQL(Collections.singletonList(sql), Collections.emptyList());
+    try (Connection connection = dbcpService.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT ID, CODE FROM PERSONS")) {
+      assertThat(resultSet.next(), is(true));
+      assertThat(resultSet.getInt(1), is(2));
+      assertThat(resultSet.getInt(2), is(49));
+      assertThat(resultSet.next(), is(false));
+    }
+  }
+
+  @Test
+  public void testDebeziumEnvelopeSkipsUnknownOperations() {
+    testRunner.setProperty(ConvertJSONToSQL.RECORD_ENVELOPE, ConvertJSONToSQL.ENVELOPE_DEBEZIUM.getValue());
+    testRunner.enqueue("["
+        + "{\"op\":\"c\",\"before\":null,\"after\":{\"id\":1,\"name\":\"Mark\",\"code\":48}},"
+        + "{\"op\":\"t\",\"before\":null,\"after\":null},"
+        + "{\"op\":\"m\",\"message\":{\"prefix\":\"audit\",\"content\":\"e30=\"}},"
+        + "{\"payload\":{\"ts_ms\":1589355606100}},"
+        + "{\"op\":\"d\",\"before\":{\"id\":1,\"name\":\"Mark\",\"code\":48},\"after\":null}"
+        + "]");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_FAILURE, 0);
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 2);
+    final List<MockFlowFile> sql = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL);
+    sql.get(0).assertContentEquals("INSERT INTO PERSONS (ID, NAME, CODE) VALUES (?, ?, ?)");
+    sql.get(0).assertAttributeEquals("fragment.count", "2");
+    sql.get(1).assertContentEquals("DELETE FROM PERSONS WHERE ID = ? AND NAME = ? AND CODE = ?");
+    sql.get(1).assertAttributeEquals("fragment.index", "1");
+    testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_ORIGINAL).get(0).assertAttributeEquals("fragment.count", "2");
+    assertThat(testRunner.getCounterValue("Records converted"), is(2L));
+    assertThat(testRunner.getCounterValue("Records skipped"), is(3L));
+  }
+
+  @Test
+  public void testLargeValueThreshold() throws SQLException {
+    final String statement = "INSERT INTO DOCUMENTS (ID, TITLE, BODY) VALUES (?, ?, ?)";
+    final String body = StringUtils.repeat("\u00e9", 20);
+    testRunner.setProperty(ConvertJSONToSQL.TABLE_NAME, "DOCUMENTS");
+    testRunner.setProperty(ConvertJSONToSQL.LARGE_VALUE_THRESHOLD, "32 B");
+    testRunner.enqueue("[{\"id\":1,\"title\":\"large\",\"body\":\"" + body + "\"},{\"id\":2,\"title\":\"small\",\"body\":\"short\"}]");
+
+    testRunner.run();
+
+    // the statement with a large value is kept away from 'sql', where PutSQL would bind NULL for it
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL, 1);
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_SQL_LARGE_VALUES, 1);
+    testRunner.assertTransferCount(ConvertJSONToSQL.REL_LARGE_VALUE, 1);
+    final MockFlowFile large = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL_LARGE_VALUES).get(0);
+    final MockFlowFile value = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_LARGE_VALUE).get(0);
+    large.assertContentEquals(statement);
+    large.assertAttributeNotExists("sql.args.3.value");
+    large.assertAttributeEquals("sql.args.3.value.uuid", value.getAttribute("uuid"));
+    large.assertAttributeEquals("sql.args.2.value", "large");
+    value.assertContentEquals(body);
+    value.assertAttributeEquals("sql.statement.uuid", large.getAttribute("uuid"));
+    value.assertAttributeEquals("sql.args.index", "3");
+    value.assertAttributeNotExists("fragment.identifier");
+    value.assertAttributeNotExists("fragment.index");
+    final MockFlowFile small = testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL).get(0);
+    small.assertContentEquals(statement);
+    small.assertAttributeEquals("sql.args.3.value", "short");
+
+    executeLikePutSQL(testRunner.getFlowFilesForRelationship(ConvertJSONToSQL.REL_SQL), Collections.emptyList());
+    assertThat(queryBodies(), is(Collections.singletonList("2:short")));
+    executeLikePutSQL(Collections.singletonList(large), Collections.singletonList(value));
+    assertThat(queryBodies(), is(Arrays.asList("1:" + body, "2:short")));
+  }
+
+  @Test
+  public void testLargeValueRelationships() {
+    assertThat(testRunner.getProcessor().getRelationships().contains(ConvertJSONToSQL.REL_LARGE_VALUE), is(false));
+    testRunner.setProperty(ConvertJSONToSQL.LARGE_VALUE_THRESHOLD, "1 MB");
+    assertThat(testRunner.getProcessor().getRelationships().contains(ConvertJSONToSQL.REL_LARGE_VALUE), is(true));
+    assertThat(testRunner.getProcessor().getRelationships().contains(ConvertJSONToSQL.REL_SQL_LARGE_VALUES), is(true));
+  }
+
+  @Test
+  public void testIsLargeValue() {
+    assertThat(ConvertJSONToSQL.isLargeValue("abcd", Types.CLOB, -1), is(false));
+    assertThat(ConvertJSONToSQL.isLargeValue("abcd", Types.VARCHAR, 1), is(false));
+    assertThat(ConvertJSONToSQL.isLargeValue("abcd", Types.CLOB, 3), is(true));
+    assertThat(ConvertJSONToSQL.isLargeValue("abcd", Types.BLOB, 12), is(false));
+    assertThat(ConvertJSONToSQL.isLargeValue("\u00e9\u00e9\u00e9\u00e9", Types.LONGVARCHAR, 6), is(true));
+    assertThat(ConvertJSONToSQL.isLargeValue("\u00e9\u00e9\u00e9\u00e9", Types.LONGVARCHAR, 8), is(false));
+  }
+
+  @Test
+  public void testInstrumentation() {
+    testRunner.enqueue("[{\"id\":1,\"name\":\"Mark\",\"code\":48},{\"id\":2,\"name\":\"Jane\",\"code\":50}]");
+    testRunner.enqueue("{\"id\":3,\"name\":\"Mary\",\"code\":52}");
+
+    testRunner.run(2);
+
+    assertThat(testRunner.getCounterValue("Records converted"), is(3L));
+    assertThat(testRunner.getCounterValue("Schema cache misses"), is(1L));
+    assertThat(testRunner.getCounterValue("Schema cache hits"), is(1L));
+
+    final String[] labelNames = {"component_id"};
+    final String[] labelValues = {testRunner.getProcessor().getIdentifier()};
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    assertThat(registry.getSampleValue("nifi_convert_json_to_sql_records_total", labelNames, labelValues), is(3.0));
+    assertThat(registry.getSampleValue("nifi_convert_json_to_sql_flowfiles_total", labelNames, labelValues), is(2.0));
+    assertThat(registry.getSampleValue("nifi_convert_json_to_sql_phase_duration_seconds_count",
+        new String[]{"component_id", "phase"}, new String[]{labelValues[0], "statement_generation"}), is(3.0));
+    assertThat(registry.getSampleValue("nifi_convert_json_to_sql_phase_duration_seconds_count",
+        new String[]{"component_id", "phase"}, new String[]{labelValues[0], "parse"}), is(2.0));
+  }
+
+  @Test
+  public void testDebeziumEnvelopeWithMissingImage() {
+    testRunner.setProperty(ConvertJSONToSQL.RECORD_ENVELOPE, ConvertJSONToSQL.ENVELOPE_DEBEZIUM.getValue());
+    testRunner.enqueue("[{\"op\":\"d\",\"before\":null,\"after\":null}]");
+
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(ConvertJSONToSQL.REL_FAILURE, 1);
+  }
+
+  /**
+   * Executes the statements the way PutSQL does: the content is the statement and every sql.args.N.type attribute
+   * binds a parameter, NULL if it has no value. A value given by sql.args.N.value.uuid is read from that FlowFile.
+   */
+  private void executeLikePutSQL(List<MockFlowFile> statements, List<MockFlowFile> largeValues) throws SQLException {
+    try (Connection connection = dbcpService.getConnection()) {
+      for (MockFlowFile flowFile : statements) {
+        try (PreparedStatement statement = connection.prepareStatement(new String(flowFile.toByteArray(), StandardCharsets.UTF_8))) {
+          for (int index = 1; flowFile.getAttribute("sql.args." + index + ".type") != null; index++) {
+            final int type = Integer.parseInt(flowFile.getAttribute("sql.args." + index + ".type"));
+            String value = flowFile.getAttribute("sql.args." + index + ".value");
+            final String uuid = flowFile.getAttribute("sql.args." + index + ".value.uuid");
+            for (MockFlowFile largeValue : largeValues) {
+              if (largeValue.getAttribute("uuid").equals(uuid)) {
+                value = new String(largeValue.toByteArray(), StandardCharsets.UTF_8);
+              }
+            }
+            if (value == null) {
+              statement.setNull(index, type);
+            } else if (type == Types.INTEGER) {
+              statement.setInt(index, Integer.parseInt(value));
+            } else {
+              statement.setString(index, value);
+            }
+          }
+          statement.executeUpdate();
+        }
+      }
+    }
+  }
+
+  private List<String> queryBodies() throws SQLException {
+    final List<String> bodies = new ArrayList<>();
+    try (Connection connection = dbcpService.getConnection();
+         Statement statement = connection.createStatement();
+         ResultSet resultSet = statement.executeQuery("SELECT ID, BODY FROM DOCUMENTS ORDER BY ID")) {
+      while (resultSet.next()) {
+        bodies.add(resultSet.getInt(1) + ":" + resultSet.getString(2));
+      }
+    }
+    return bodies;
+  }
 }
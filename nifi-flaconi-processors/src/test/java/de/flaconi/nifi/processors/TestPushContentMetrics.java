@@ -0,0 +1,128 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.PushGateway;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TestPushContentMetrics {
+
+  private TestRunner testRunner;
+  private static PushGateway pushGateway;
+  private static final String JOB_NAME = "job_name";
+
+  @Before
+  public void before() {
+    pushGateway = Mockito.mock(PushGateway.class);
+    testRunner = TestRunners.newTestRunner(TestablePushContentMetrics.class);
+    testRunner.setProperty(PushContentMetrics.PUSHGATEWAY_HOSTNAME, "localhost");
+    testRunner.setProperty(PushContentMetrics.INSTANCE, "localhost");
+    testRunner.setProperty(PushContentMetrics.JOB_NAME, JOB_NAME);
+    testRunner.setValidateExpressionUsage(false);
+  }
+
+  @After
+  public void after() {
+    testRunner.shutdown();
+  }
+
+  @Test
+  public void testOnTriggerWithTextFormat() throws IOException {
+    testRunner.enqueue("# HELP http_requests_total The requests.\n"
+        + "# TYPE http_requests_total counter\n"
+        + "http_requests_total{method=\"get\",path=\"/a \\\"b\\\"\"} 1027 1395066363000\n"
+        + "http_requests_total{method=\"post\",path=\"/\",} 3\n"
+        + "\n"
+        + "# A comment\n"
+        + "# TYPE request_duration_seconds histogram\n"
+        + "request_duration_seconds_bucket{le=\"0.5\"} 2\n"
+        + "request_duration_seconds_bucket{le=\"+Inf\"} 5\n"
+        + "request_duration_seconds_sum 3.25\n"
+        + "request_duration_seconds_count 5\n"
+        + "temperature -Inf\n");
+
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(PushContentMetrics.REL_SUCCESS, 1);
+    assertThat(testRunner.getCounterValue("Metric samples parsed"), is(7L));
+    final ArgumentCaptor<CollectorRegistry> captor = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(captor.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    final CollectorRegistry registry = captor.getValue();
+    assertThat(registry.getSampleValue("http_requests_total", new String[]{"method", "path"}, new String[]{"get", "/a \"b\""}), is(1027.0));
+    assertThat(registry.getSampleValue("http_requests_total", new String[]{"method", "path"}, new String[]{"post", "/"}), is(3.0));
+    assertThat(registry.getSampleValue("request_duration_seconds_bucket", new String[]{"le"}, new String[]{"+Inf"}), is(5.0));
+    assertThat(registry.getSampleValue("request_duration_seconds_sum"), is(3.25));
+    assertThat(registry.getSampleValue("temperature"), is(Double.NEGATIVE_INFINITY));
+
+    final List<String> families = new ArrayList<>();
+    for (Collector.MetricFamilySamples family : Collections.list(registry.metricFamilySamples())) {
+      families.add(family.name + ":" + family.type + ":" + family.samples.size());
+      for (Collector.MetricFamilySamples.Sample sample : family.samples) {
+        assertThat(sample.timestampMs, is(nullValue()));
+      }
+    }
+    assertThat(families, contains("http_requests_total:COUNTER:2", "request_duration_seconds:HISTOGRAM:4", "temperature:UNTYPED:1"));
+  }
+
+  @Test
+  public void testOnTriggerWithJson() throws IOException {
+    testRunner.setProperty(PushContentMetrics.CONTENT_FORMAT, PushContentMetrics.FORMAT_JSON.getValue());
+    testRunner.enqueue("[{\"name\": \"queue_size\", \"help\": \"The queue size\", \"type\": \"GAUGE\", \"metrics\": ["
+        + "{\"labels\": {\"queue\": \"a\"}, \"value\": \"12\"}, {\"labels\": {\"queue\": \"b\"}, \"value\": 3.5}]},"
+        + "{\"name\": \"latency_seconds\", \"type\": \"HISTOGRAM\", \"metrics\": ["
+        + "{\"labels\": {\"method\": \"get\"}, \"buckets\": {\"0.1\": \"1\", \"1\": \"4\"}, \"count\": \"6\", \"sum\": \"7.5\"}]},"
+        + "{\"name\": \"rpc_seconds\", \"type\": \"SUMMARY\", \"metrics\": ["
+        + "{\"quantiles\": {\"0.5\": \"0.2\"}, \"count\": 10, \"sum\": 2}]}]");
+
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(PushContentMetrics.REL_SUCCESS, 1);
+    final ArgumentCaptor<CollectorRegistry> captor = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(captor.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    final CollectorRegistry registry = captor.getValue();
+    assertThat(registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"a"}), is(12.0));
+    assertThat(registry.getSampleValue("queue_size", new String[]{"queue"}, new String[]{"b"}), is(3.5));
+    assertThat(registry.getSampleValue("latency_seconds_bucket", new String[]{"method", "le"}, new String[]{"get", "1.0"}), is(4.0));
+    assertThat(registry.getSampleValue("latency_seconds_bucket", new String[]{"method", "le"}, new String[]{"get", "+Inf"}), is(6.0));
+    assertThat(registry.getSampleValue("latency_seconds_sum", new String[]{"method"}, new String[]{"get"}), is(7.5));
+    assertThat(registry.getSampleValue("rpc_seconds", new String[]{"quantile"}, new String[]{"0.5"}), is(0.2));
+    assertThat(registry.getSampleValue("rpc_seconds_count"), is(10.0));
+  }
+
+  @Test
+  public void testOnTriggerWithMalformedContent() throws IOException {
+    testRunner.enqueue("# TYPE requests counter\nrequests{method=\"get} 1\n");
+    testRunner.enqueue("[{\"name\": \"requests\", \"metrics\": [{\"value\": \"many\"}]}]");
+
+    testRunner.run(2);
+
+    testRunner.assertAllFlowFilesTransferred(PushContentMetrics.REL_FAILURE, 2);
+    verify(pushGateway, never()).pushAdd(Mockito.isA(CollectorRegistry.class), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class));
+  }
+
+  public static class TestablePushContentMetrics extends PushContentMetrics {
+    @Override
+    public PushGateway newPushGateway(String host, String port) {
+      return pushGateway;
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.PushGateway;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TestPushCounterMetric {
+
+  private TestRunner testRunner;
+  private static PushGateway pushGateway;
+  private static final String JOB_NAME = "job_name";
+  private static final String METRIC_NAME = "requests_total";
+  private static final String[] LABEL_NAMES = new String[]{"method", "appId"};
+
+  @Before
+  public void before() {
+    pushGateway = Mockito.mock(PushGateway.class);
+    testRunner = TestRunners.newTestRunner(TestablePushCounterMetric.class);
+    testRunner.setProperty(PushCounterMetric.PUSHGATEWAY_HOSTNAME, "localhost");
+    testRunner.setProperty(PushCounterMetric.INSTANCE, "localhost");
+    testRunner.setProperty(PushCounterMetric.JOB_NAME, JOB_NAME);
+    testRunner.setProperty(PushCounterMetric.METRIC_NAME, METRIC_NAME);
+    testRunner.setProperty(PushCounterMetric.METRIC_HELP, "help");
+    testRunner.setValidateExpressionUsage(false);
+  }
+
+  @After
+  public void after() {
+    testRunner.shutdown();
+  }
+
+  @Test
+  public void testOnTriggerWithAttributes() throws IOException {
+    testRunner.setProperty(PushCounterMetric.METRIC_LABELS, "method,appId");
+    testRunner.setProperty(PushCounterMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_ATTRIBUTE);
+    testRunner.setProperty("1", "get,1,2");
+    testRunner.setProperty("2", "get,1,3");
+    testRunner.setProperty("3", "post,1,1");
+    testRunner.enqueue("");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushCounterMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(METRIC_NAME, LABEL_NAMES, new String[]{"get", "1"}), is(5.0));
+    assertThat(collectorRegistry.getValue().getSampleValue(METRIC_NAME, LABEL_NAMES, new String[]{"post", "1"}), is(1.0));
+  }
+
+  @Test
+  public void testOnTriggerAccumulatesFlowFiles() throws IOException {
+    testRunner.setProperty(PushCounterMetric.METRIC_VALUE, "${requests}");
+    testRunner.enqueue("", Collections.singletonMap("requests", "2"));
+    testRunner.enqueue("", Collections.singletonMap("requests", "3"));
+
+    testRunner.run(2);
+
+    testRunner.assertAllFlowFilesTransferred(PushCounterMetric.REL_SUCCESS, 2);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(METRIC_NAME), is(5.0));
+  }
+
+  @Test
+  public void testOnTriggerWithNegativeIncrement() throws IOException {
+    testRunner.setProperty(PushCounterMetric.METRIC_LABELS, "method,appId");
+    testRunner.setProperty(PushCounterMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_CONTENT);
+    testRunner.enqueue("get,1,2\nget,1,-3");
+    testRunner.enqueue("get,1,4");
+
+    testRunner.run(2);
+
+    // the rejected FlowFile counts none of its lines, also not the ones in front of the negative increment
+    testRunner.assertTransferCount(PushCounterMetric.REL_FAILURE, 1);
+    testRunner.assertTransferCount(PushCounterMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(METRIC_NAME, LABEL_NAMES, new String[]{"get", "1"}), is(4.0));
+  }
+
+  @Test
+  public void testOnTriggerWithConnectionFailure() throws IOException {
+    testRunner.setProperty(PushCounterMetric.METRIC_VALUE, "1");
+    Mockito.doThrow(IOException.class).doNothing().when(pushGateway)
+        .pushAdd(Mockito.isA(CollectorRegistry.class), Mockito.anyString(), Mockito.anyMapOf(String.class, String.class));
+    testRunner.enqueue("");
+
+    testRunner.run();
+
+    // the observation stays recorded and is pushed again when the processor is stopped
+    testRunner.assertAllFlowFilesTransferred(PushCounterMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(METRIC_NAME), is(1.0));
+  }
+
+  public static class TestablePushCounterMetric extends PushCounterMetric {
+    @Override
+    public PushGateway newPushGateway(String host, String port) {
+      return pushGateway;
+    }
+  }
+}
@@ -1,21 +1,38 @@
 package de.flaconi.nifi.processors;
 
+import com.sun.net.httpserver.HttpServer;
+import de.flaconi.nifi.services.StandardPrometheusExporterService;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.exporter.PushGateway;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.iq80.snappy.Snappy;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,6 +50,7 @@ public class TestPushGaugeMetric {
 
   private TestRunner testRunner;
   private static PushGateway pushGateway;
+  private static int pushGatewaysCreated;
   private static final String INSTANCE = "localhost";
   private static final String JOB_NAME = "job_name";
   private static final String GAUGE_NAME = "metric";
@@ -48,9 +66,13 @@ public class TestPushGaugeMetric {
   @Rule
   public ExpectedException expectedException = ExpectedException.none();
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Before
   public void before() {
     pushGateway = Mockito.mock(PushGateway.class);
+    pushGatewaysCreated = 0;
     testRunner = TestRunners.newTestRunner(TestablePushGaugeMetric.class);
   }
 
@@ -95,6 +117,88 @@ public class TestPushGaugeMetric {
         is(GAUGE_VALUE));
   }
 
+  @Test
+  public void testOnTriggerReusesPushGateway() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    givenAFlowFile();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 2);
+    verify(pushGateway, times(2)).pushAdd(isA(CollectorRegistry.class), eq(JOB_NAME), anyMap());
+    assertThat(pushGatewaysCreated, is(1));
+  }
+
+  @Test
+  public void testOnTriggerWithAggregation() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.AGGREGATION, PushGaugeMetric.AGGREGATION_SUM.getValue());
+    givenAFlowFile();
+    givenAFlowFile();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(3);
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 3);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), anyMap());
+    assertThat(collectorRegistry.getValue().getSampleValue(GAUGE_NAME), is(GAUGE_VALUE * 3));
+  }
+
+  @Test
+  public void testOnTriggerYieldsWhenIdle() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.AGGREGATION, PushGaugeMetric.AGGREGATION_SUM.getValue());
+
+    testRunner.run();
+
+    assertThat(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled(), is(true));
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+  }
+
+  @Test
+  public void testOnTriggerWithAggregationSizeLimitAndFailure() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.AGGREGATION, PushGaugeMetric.AGGREGATION_MAX.getValue());
+    testRunner.setProperty(PushGaugeMetric.AGGREGATION_MAX_SERIES, "1");
+    doThrow(IOException.class)
+        .doNothing()
+        .when(pushGateway)
+        .pushAdd(isA(CollectorRegistry.class), anyString(), anyMapOf(String.class, String.class));
+    givenAFlowFile();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(2, false);
+
+    // the first flush fails and keeps the buffer, so the second FlowFile waits for the retry
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    verify(pushGateway, times(1)).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+
+    testRunner.run(1, true, false);
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 2);
+    verify(pushGateway, times(3)).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+  }
+
+  @Test
+  public void testOnTriggerWithAsyncPush() throws IOException {
+    givenAProcessorWithValueAndFailedConnection();
+    testRunner.setProperty(PushGaugeMetric.ASYNC_PUSH, "true");
+    givenAFlowFile();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(2);
+
+    // the push fails on the sender thread after the FlowFile is transferred
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 2);
+    verify(pushGateway, times(2)).pushAdd(isA(CollectorRegistry.class), eq(JOB_NAME), anyMap());
+  }
+
   @Test
   public void testOnTriggerWithConnectionFailure() throws IOException {
     givenAProcessorWithValueAndFailedConnection();
@@ -147,6 +251,214 @@ public class TestPushGaugeMetric {
     testRunner.run();
   }
 
+  @Test
+  public void testOnTriggerWithFlowFileContentLines() throws IOException {
+    givenAProcessorWithLabelsSourceFlowContent();
+    testRunner.enqueue("get,,1,42.0\r\n,post,1,42.0,\n");
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMap());
+    assertThat(
+        collectorRegistry.getValue().getSampleValue(GAUGE_NAME, GAUGE_LABEL_NAMES, GAUGE_LABEL_VALUES[0]),
+        is(GAUGE_VALUE));
+    assertThat(
+        collectorRegistry.getValue().getSampleValue(GAUGE_NAME, GAUGE_LABEL_NAMES, GAUGE_LABEL_VALUES[1]),
+        is(GAUGE_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerWithFailedConnectionSpoolsPush() throws IOException {
+    givenAProcessorWithValueAndFailedConnection();
+    final File spoolDirectory = temporaryFolder.newFolder();
+    testRunner.setProperty(PushGaugeMetric.SPOOL_DIRECTORY, spoolDirectory.getAbsolutePath());
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    final File[] segments = new File(spoolDirectory, testRunner.getProcessor().getIdentifier()).listFiles();
+    assertThat(segments, arrayWithSize(1));
+    assertThat(segments[0].length(), greaterThan(0L));
+  }
+
+  @Test
+  public void testOnTriggerWithExporterService() throws IOException, InitializationException {
+    givenAProcessorWithLabelsAndSuccessConnection();
+    final String port = givenAnExporterService();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+    final String metrics = read(new URL("http://localhost:" + port + "/metrics").openStream());
+    assertThat(metrics, containsString(GAUGE_NAME + "{method=\"get\",appId=\"1\",job=\"" + JOB_NAME + "\",instance=\"" + INSTANCE + "\",} 42.0"));
+    assertThat(metrics, containsString(GAUGE_NAME + "{method=\"post\",appId=\"1\",job=\"" + JOB_NAME + "\",instance=\"" + INSTANCE + "\",} 42.0"));
+  }
+
+  @Test
+  public void testOnTriggerWithRemoteWrite() throws IOException {
+    final List<String> requests = new CopyOnWriteArrayList<>();
+    final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v1/write", exchange -> {
+      final byte[] body = readBytes(exchange.getRequestBody());
+      requests.add(exchange.getRequestHeaders().getFirst("Content-Encoding") + " "
+          + new String(Snappy.uncompress(body, 0, body.length), StandardCharsets.UTF_8));
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+    try {
+      givenAProcessorWithLabelsAndSuccessConnection();
+      testRunner.setProperty(PushGaugeMetric.REMOTE_WRITE_URL, "http://localhost:" + server.getAddress().getPort() + "/api/v1/write");
+      givenAFlowFile();
+
+      testRunner.setValidateExpressionUsage(false);
+      testRunner.run();
+    } finally {
+      server.stop(0);
+    }
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+    // the buffered samples are sent when the processor is stopped
+    assertThat(requests, hasSize(1));
+    assertThat(requests.get(0).startsWith("snappy "), is(true));
+    assertThat(requests.get(0), allOf(containsString("__name__"), containsString(GAUGE_NAME), containsString(JOB_NAME),
+        containsString(INSTANCE), containsString("post")));
+  }
+
+  @Test
+  public void testOnTriggerWithCardinalityLimitCollapse() throws IOException {
+    givenAProcessorWithLabelsAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.MAX_SERIES_PER_METRIC, "1");
+    testRunner.setProperty(PushGaugeMetric.CARDINALITY_LIMIT_ACTION, PushGaugeMetric.CARDINALITY_COLLAPSE.getValue());
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMap());
+    assertThat(
+        collectorRegistry.getValue().getSampleValue(GAUGE_NAME, GAUGE_LABEL_NAMES, new String[]{"other", "other"}),
+        is(GAUGE_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerWithCardinalityLimitFailure() throws IOException {
+    givenAProcessorWithLabelsAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.MAX_SERIES_PER_METRIC, "1");
+    testRunner.setProperty(PushGaugeMetric.CARDINALITY_LIMIT_ACTION, PushGaugeMetric.CARDINALITY_FAIL.getValue());
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(PushGaugeMetric.REL_FAILURE, 1);
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+  }
+
+  @Test
+  public void testOnTriggerWithLabelNamesFromAttributes() throws IOException {
+    givenAProcessorWithLabelsAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.GAUGE_LABELS, "method,${label}");
+    testRunner.enqueue("", Collections.singletonMap("label", GAUGE_LABEL_NAMES[1]));
+    testRunner.enqueue("", Collections.singletonMap("label", GAUGE_LABEL_NAMES[1]));
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 2);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), anyString(), anyMap());
+    assertThat(
+        collectorRegistry.getValue().getSampleValue(GAUGE_NAME, GAUGE_LABEL_NAMES, GAUGE_LABEL_VALUES[1]),
+        is(GAUGE_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerSkipsUnchangedValues() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.GAUGE_VALUE, "${value}");
+    testRunner.setProperty(PushGaugeMetric.SKIP_UNCHANGED, "true");
+    testRunner.enqueue("", Collections.singletonMap("value", "1"));
+    testRunner.enqueue("", Collections.singletonMap("value", "1"));
+    testRunner.enqueue("", Collections.singletonMap("value", "2"));
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(3);
+
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 3);
+    assertThat(testRunner.getCounterValue("Unchanged pushes skipped"), is(1L));
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), anyMap());
+    assertThat(collectorRegistry.getAllValues().get(1).getSampleValue(GAUGE_NAME), is(2.0));
+  }
+
+  @Test
+  public void testOnTriggerPushesFamilyReplacedByOtherSeries() throws IOException {
+    givenAProcessorWithLabelsSourceFlowContent();
+    testRunner.setProperty(PushGaugeMetric.GAUGE_LABELS, "table");
+    testRunner.setProperty(PushGaugeMetric.SKIP_UNCHANGED, "true");
+    testRunner.enqueue("a,1");
+    testRunner.enqueue("b,2");
+    testRunner.enqueue("a,1");
+
+    testRunner.run(3);
+
+    // the push of {table=b} replaced {table=a} on the Pushgateway, so the third push restores it
+    testRunner.assertTransferCount(PushGaugeMetric.REL_SUCCESS, 3);
+    assertThat(testRunner.getCounterValue("Unchanged pushes skipped"), nullValue());
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(3)).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), anyMap());
+    assertThat(collectorRegistry.getAllValues().get(2).getSampleValue(GAUGE_NAME, new String[]{"table"}, new String[]{"a"}),
+        is(1.0));
+  }
+
+  @Test
+  public void testOnTriggerWithShardFailover() throws IOException {
+    givenAProcessorWithValueAndSuccessConnection();
+    testRunner.setProperty(PushGaugeMetric.PUSHGATEWAY_ENDPOINTS, "shard1:9091,shard2:9091");
+    doThrow(IOException.class)
+        .doNothing()
+        .when(pushGateway)
+        .pushAdd(isA(CollectorRegistry.class), anyString(), anyMapOf(String.class, String.class));
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run();
+
+    testRunner.assertAllFlowFilesTransferred(PushGaugeMetric.REL_SUCCESS, 1);
+    verify(pushGateway, times(2)).pushAdd(isA(CollectorRegistry.class), eq(JOB_NAME), anyMap());
+    assertThat(pushGatewaysCreated, is(2));
+  }
+
+  @Test
+  public void testOnTriggerWithOpenCircuit() throws IOException {
+    givenAProcessorWithValueAndFailedConnection();
+    testRunner.setProperty(PushGaugeMetric.CIRCUIT_FAILURE_THRESHOLD, "2");
+    givenAFlowFile();
+    givenAFlowFile();
+    givenAFlowFile();
+
+    testRunner.setValidateExpressionUsage(false);
+    testRunner.run(3);
+
+    testRunner.assertAllFlowFilesTransferred(PushGaugeMetric.REL_FAILURE, 3);
+    verify(pushGateway, times(2)).pushAdd(isA(CollectorRegistry.class), anyString(), anyMap());
+    final List<MockFlowFile> flowFiles = testRunner.getFlowFilesForRelationship(PushGaugeMetric.REL_FAILURE);
+    assertThat(flowFiles.get(1).isPenalized(), is(false));
+    assertThat(flowFiles.get(2).isPenalized(), is(true));
+  }
+
   @Test
   public void testOnTriggerWithEmptyFlowFileContent() throws IOException {
     givenAProcessorWithLabelsSourceFlowContent();
@@ -230,6 +542,38 @@ public class TestPushGaugeMetric {
     testRunner.setProperty(PushGaugeMetric.GAUGE_LABEL_VALUES_SOURCE, PushGaugeMetric.SOURCE_ATTRIBUTE);
   }
 
+  private String givenAnExporterService() throws IOException, InitializationException {
+    final String port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = Integer.toString(socket.getLocalPort());
+    }
+    final StandardPrometheusExporterService exporterService = new StandardPrometheusExporterService();
+    testRunner.addControllerService("exporter", exporterService);
+    testRunner.setProperty(exporterService, "Port", port);
+    testRunner.setProperty(exporterService, "Bind Address", "localhost");
+    testRunner.enableControllerService(exporterService);
+    testRunner.setProperty(PushGaugeMetric.EXPORTER_SERVICE, "exporter");
+    return port;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readBytes(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    try {
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
   private void givenAFlowFile() {
     testRunner.enqueue("");
   }
@@ -270,6 +614,7 @@ public class TestPushGaugeMetric {
   public static class TestablePushGaugeMetric extends PushGaugeMetric {
     @Override
     public PushGateway newPushGateway(String host, String port) {
+      pushGatewaysCreated++;
       return pushGateway;
     }
   }
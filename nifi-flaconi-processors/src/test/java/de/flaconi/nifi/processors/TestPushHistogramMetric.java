@@ -0,0 +1,121 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.PushGateway;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class TestPushHistogramMetric {
+
+  private TestRunner testRunner;
+  private static PushGateway pushGateway;
+  private static final String JOB_NAME = "job_name";
+  private static final String METRIC_NAME = "request_duration_seconds";
+  private static final String[] LABEL_NAMES = new String[]{"method"};
+
+  @Before
+  public void before() {
+    pushGateway = Mockito.mock(PushGateway.class);
+    testRunner = TestRunners.newTestRunner(TestablePushHistogramMetric.class);
+    testRunner.setProperty(PushHistogramMetric.PUSHGATEWAY_HOSTNAME, "localhost");
+    testRunner.setProperty(PushHistogramMetric.INSTANCE, "localhost");
+    testRunner.setProperty(PushHistogramMetric.JOB_NAME, JOB_NAME);
+    testRunner.setProperty(PushHistogramMetric.METRIC_NAME, METRIC_NAME);
+    testRunner.setProperty(PushHistogramMetric.METRIC_HELP, "help");
+    testRunner.setProperty(PushHistogramMetric.BUCKETS, "0.1,1,10");
+    testRunner.setValidateExpressionUsage(false);
+  }
+
+  @After
+  public void after() {
+    testRunner.shutdown();
+  }
+
+  @Test
+  public void testOnTriggerWithContentLines() throws IOException {
+    testRunner.setProperty(PushHistogramMetric.METRIC_LABELS, "method");
+    testRunner.setProperty(PushHistogramMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_CONTENT);
+    testRunner.enqueue("get,0.05\nget,0.5\nget,5\nget,50\npost,0.5\n");
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushHistogramMetric.REL_SUCCESS, 1);
+    final CollectorRegistry registry = capturePushedRegistry();
+    assertThat(registry.getSampleValue(METRIC_NAME + "_count", LABEL_NAMES, new String[]{"get"}), is(4.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_sum", LABEL_NAMES, new String[]{"get"}), is(55.55));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"method", "le"}, new String[]{"get", "1.0"}), is(2.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"method", "le"}, new String[]{"get", "+Inf"}), is(4.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_count", LABEL_NAMES, new String[]{"post"}), is(1.0));
+  }
+
+  @Test
+  public void testOnTriggerWithValue() throws IOException {
+    testRunner.setProperty(PushHistogramMetric.METRIC_VALUE, "${duration}");
+    testRunner.enqueue("", Collections.singletonMap("duration", "0.2"));
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushHistogramMetric.REL_SUCCESS, 1);
+    final CollectorRegistry registry = capturePushedRegistry();
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"le"}, new String[]{"1.0"}), is(1.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"le"}, new String[]{"0.1"}), is(0.0));
+  }
+
+  @Test
+  public void testOnTriggerAccumulatesFlowFiles() throws IOException {
+    testRunner.setProperty(PushHistogramMetric.METRIC_LABELS, "method");
+    testRunner.setProperty(PushHistogramMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_CONTENT);
+    testRunner.enqueue("get,0.05\nget,5\n");
+    testRunner.enqueue("get,0.5\nget,50\n");
+
+    testRunner.run(2);
+
+    testRunner.assertTransferCount(PushHistogramMetric.REL_SUCCESS, 2);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    final CollectorRegistry registry = collectorRegistry.getValue();
+    assertThat(registry.getSampleValue(METRIC_NAME + "_count", LABEL_NAMES, new String[]{"get"}), is(4.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_sum", LABEL_NAMES, new String[]{"get"}), is(55.55));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"method", "le"}, new String[]{"get", "1.0"}), is(2.0));
+    assertThat(registry.getSampleValue(METRIC_NAME + "_bucket", new String[]{"method", "le"}, new String[]{"get", "+Inf"}), is(4.0));
+  }
+
+  @Test
+  public void testValidation() {
+    testRunner.setProperty(PushHistogramMetric.BUCKETS, "1,0.5");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(PushHistogramMetric.BUCKETS, "0.5,1");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(PushHistogramMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_CONTENT);
+    testRunner.assertValid();
+  }
+
+  private CollectorRegistry capturePushedRegistry() throws IOException {
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    return collectorRegistry.getValue();
+  }
+
+  public static class TestablePushHistogramMetric extends PushHistogramMetric {
+    @Override
+    public PushGateway newPushGateway(String host, String port) {
+      return pushGateway;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package de.flaconi.nifi.processors;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.PushGateway;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.io.IOException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.verify;
+
+public class TestPushSummaryMetric {
+
+  private TestRunner testRunner;
+  private static PushGateway pushGateway;
+  private static final String JOB_NAME = "job_name";
+  private static final String METRIC_NAME = "request_duration_seconds";
+
+  @Before
+  public void before() {
+    pushGateway = Mockito.mock(PushGateway.class);
+    testRunner = TestRunners.newTestRunner(TestablePushSummaryMetric.class);
+    testRunner.setProperty(PushSummaryMetric.PUSHGATEWAY_HOSTNAME, "localhost");
+    testRunner.setProperty(PushSummaryMetric.INSTANCE, "localhost");
+    testRunner.setProperty(PushSummaryMetric.JOB_NAME, JOB_NAME);
+    testRunner.setProperty(PushSummaryMetric.METRIC_NAME, METRIC_NAME);
+    testRunner.setProperty(PushSummaryMetric.METRIC_HELP, "help");
+    testRunner.setValidateExpressionUsage(false);
+  }
+
+  @After
+  public void after() {
+    testRunner.shutdown();
+  }
+
+  @Test
+  public void testOnTriggerWithContentValues() throws IOException {
+    testRunner.setProperty(PushSummaryMetric.QUANTILES, "0.5:0.01,0.9:0.01");
+    testRunner.setProperty(PushSummaryMetric.METRIC_VALUES_SOURCE, PushGaugeMetric.SOURCE_CONTENT);
+    final StringBuilder content = new StringBuilder();
+    for (int i = 1; i <= 1000; i++) {
+      content.append(i).append('\n');
+    }
+    testRunner.enqueue(content.toString());
+
+    testRunner.run();
+
+    testRunner.assertTransferCount(PushSummaryMetric.REL_SUCCESS, 1);
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), eq(JOB_NAME), Mockito.anyMapOf(String.class, String.class));
+    final CollectorRegistry registry = collectorRegistry.getValue();
+    assertThat(registry.getSampleValue(METRIC_NAME + "_count"), is(1000.0));
+    assertThat(registry.getSampleValue(METRIC_NAME, new String[]{"quantile"}, new String[]{"0.5"}), closeTo(500, 20));
+    assertThat(registry.getSampleValue(METRIC_NAME, new String[]{"quantile"}, new String[]{"0.9"}), closeTo(900, 20));
+  }
+
+  @Test
+  public void testValidation() {
+    testRunner.setProperty(PushSummaryMetric.METRIC_VALUE, "1");
+    testRunner.setProperty(PushSummaryMetric.QUANTILES, "0.5");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(PushSummaryMetric.QUANTILES, "1.5:0.01");
+    testRunner.assertNotValid();
+
+    testRunner.setProperty(PushSummaryMetric.QUANTILES, "0.5:0.05,0.99:0.001");
+    testRunner.assertValid();
+  }
+
+  public static class TestablePushSummaryMetric extends PushSummaryMetric {
+    @Override
+    public PushGateway newPushGateway(String host, String port) {
+      return pushGateway;
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Sends pushes from a bounded queue on a few dedicated threads, so that a slow Pushgateway does not hold the threads of
+ * the NiFi scheduler.
+ * <p>
+ * {@link #submit} never blocks: when the queue is full it returns {@code false} and the caller decides whether to
+ * yield, retry or fail. The depth of the queue and the latency, failures and rejections of the pushes of every sender
+ * are recorded in {@link CollectorRegistry#defaultRegistry}, labelled with the name of the sender.
+ */
+public class AsyncPushSender implements Closeable {
+
+  /**
+   * A push to run on a sender thread.
+   */
+  @FunctionalInterface
+  public interface Push {
+    void push() throws IOException;
+  }
+
+  private static final SenderMetrics METRICS = new SenderMetrics().register();
+
+  private final String name;
+  private final ThreadPoolExecutor executor;
+
+  /**
+   * @param name      names the threads and labels the metrics, e.g. the identifier of the component
+   * @param queueSize the number of pushes that may wait for a worker
+   * @param workers   the number of threads sending the pushes
+   */
+  public AsyncPushSender(String name, int queueSize, int workers) {
+    this.name = name;
+    final AtomicInteger threads = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        runnable -> {
+          final Thread thread = new Thread(runnable, "Prometheus push " + name + "-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+    METRICS.senders.put(name, this);
+  }
+
+  /**
+   * Queues a push.
+   *
+   * @param push      the push
+   * @param onFailure called on the sender thread if the push fails
+   * @return false if the queue is full and the push was not accepted
+   */
+  public boolean submit(Push push, Consumer<IOException> onFailure) {
+    try {
+      executor.execute(() -> {
+        final long start = System.nanoTime();
+        try {
+          push.push();
+        } catch (IOException ioException) {
+          METRICS.failures.labels(name).inc();
+          onFailure.accept(ioException);
+        } finally {
+          METRICS.latency.labels(name).observe((System.nanoTime() - start) / Collector.NANOSECONDS_PER_SECOND);
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      METRICS.rejected.labels(name).inc();
+      return false;
+    }
+  }
+
+  /**
+   * @return the number of pushes waiting for a worker
+   */
+  public int getQueueDepth() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * @return true if another push would be accepted right now
+   */
+  public boolean hasCapacity() {
+    return executor.getQueue().remainingCapacity() > 0;
+  }
+
+  /**
+   * Stops accepting pushes and waits up to the given time for the queued ones to be sent.
+   *
+   * @return true if all queued pushes were sent
+   */
+  public boolean close(long timeout, TimeUnit unit) {
+    executor.shutdown();
+    try {
+      return executor.awaitTermination(timeout, unit);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      executor.shutdownNow();
+      METRICS.senders.remove(name, this);
+      METRICS.latency.remove(name);
+      METRICS.failures.remove(name);
+      METRICS.rejected.remove(name);
+    }
+  }
+
+  @Override
+  public void close() {
+    close(0, TimeUnit.MILLISECONDS);
+  }
+
+  private static final class SenderMetrics extends Collector {
+    private final Map<String, AsyncPushSender> senders = new ConcurrentHashMap<>();
+    private final Histogram latency = Histogram.build()
+        .name("nifi_prometheus_push_duration_seconds")
+        .help("Time taken by the pushes to the Prometheus Pushgateway")
+        .labelNames("sender")
+        .buckets(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+        .create();
+    private final Counter failures = Counter.build()
+        .name("nifi_prometheus_push_failures_total")
+        .help("Number of pushes that failed")
+        .labelNames("sender")
+        .create();
+    private final Counter rejected = Counter.build()
+        .name("nifi_prometheus_push_rejected_total")
+        .help("Number of pushes rejected because the queue was full")
+        .labelNames("sender")
+        .create();
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final List<MetricFamilySamples.Sample> depths = new ArrayList<>();
+      senders.forEach((name, sender) -> depths.add(new MetricFamilySamples.Sample("nifi_prometheus_push_queue_depth",
+          Collections.singletonList("sender"), Collections.singletonList(name), sender.getQueueDepth())));
+
+      final List<MetricFamilySamples> families = new ArrayList<>();
+      families.add(new MetricFamilySamples("nifi_prometheus_push_queue_depth", Type.GAUGE,
+          "Number of pushes waiting to be sent", depths));
+      families.addAll(latency.collect());
+      families.addAll(failures.collect());
+      families.addAll(rejected.collect());
+      return families;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of series, i.e. distinct label value sets, a component creates per metric name, so that an
+ * upstream bug sending unique label values cannot overload the Pushgateway and Prometheus.
+ * <p>
+ * The first label value sets of a metric up to the limit are admitted; any other set is dropped, collapsed into a
+ * single series with every label set to {@value #OTHER}, or rejected, depending on the action. The number of distinct
+ * label value sets observed per metric is estimated with a HyperLogLog sketch and recorded, with the number of limited
+ * samples, in {@link CollectorRegistry#defaultRegistry}, labelled with the name of the guard and the metric.
+ * <p>
+ * The metric names may come from FlowFile attributes as well, so the guard tracks a bounded number of them. The
+ * samples of any further metric name get the action right away and are counted as limited under the metric name
+ * {@value #OTHER}, so the guard exports at most two series per tracked metric name and one more.
+ */
+public class CardinalityGuard implements Closeable {
+
+  public static final String OTHER = "other";
+  public static final int DEFAULT_MAX_METRICS = 100;
+
+  public enum Action {
+    DROP, COLLAPSE, FAIL
+  }
+
+  /**
+   * Thrown by {@link #admit} when a new series exceeds the limit and the action is {@link Action#FAIL}.
+   */
+  public static class LimitExceededException extends RuntimeException {
+    public LimitExceededException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class MetricState {
+    private final Set<List<String>> series = new HashSet<>();
+    private final HyperLogLog observed = new HyperLogLog();
+    private final AtomicLong limited = new AtomicLong();
+  }
+
+  private static final GuardMetrics METRICS = new GuardMetrics().register();
+
+  private final String name;
+  private final int maxSeries;
+  private final int maxMetrics;
+  private final Action action;
+  private final Map<String, MetricState> metrics = new ConcurrentHashMap<>();
+  private final AtomicLong untrackedLimited = new AtomicLong();
+
+  /**
+   * @param name      labels the metrics of the guard, e.g. the identifier of the component
+   * @param maxSeries the number of label value sets admitted per metric name
+   * @param action    what to do with the samples of the other label value sets
+   */
+  public CardinalityGuard(String name, int maxSeries, Action action) {
+    this(name, maxSeries, DEFAULT_MAX_METRICS, action);
+  }
+
+  /**
+   * @param name       labels the metrics of the guard, e.g. the identifier of the component
+   * @param maxSeries  the number of label value sets admitted per metric name
+   * @param maxMetrics the number of metric names tracked; the samples of any further name get the action
+   * @param action     what to do with the samples of the other label value sets and metric names
+   */
+  public CardinalityGuard(String name, int maxSeries, int maxMetrics, Action action) {
+    this.name = name;
+    this.maxSeries = maxSeries;
+    this.maxMetrics = maxMetrics;
+    this.action = action;
+    METRICS.guards.put(name, this);
+  }
+
+  /**
+   * Checks a sample of a metric.
+   *
+   * @return the label values to record the sample with, or null if the sample is dropped
+   * @throws LimitExceededException if the sample exceeds the limit and the action is {@link Action#FAIL}
+   */
+  public String[] admit(String metricName, String[] labelValues) {
+    if (labelValues.length == 0) {
+      return labelValues;
+    }
+    final MetricState state = track(metricName);
+    if (state == null) {
+      untrackedLimited.incrementAndGet();
+      return limit(labelValues, String.format("Metric \"%s\" exceeds the limit of %d metric names", metricName, maxMetrics));
+    }
+    synchronized (state) {
+      state.observed.add(labelValues);
+      final List<String> key = Arrays.asList(labelValues);
+      if (state.series.contains(key)) {
+        return labelValues;
+      }
+      if (state.series.size() < maxSeries) {
+        // copy, the caller may reuse the array
+        state.series.add(Arrays.asList(labelValues.clone()));
+        return labelValues;
+      }
+    }
+
+    state.limited.incrementAndGet();
+    return limit(labelValues, String.format("Metric \"%s\" exceeds the limit of %d label value sets", metricName, maxSeries));
+  }
+
+  /**
+   * @return the state of the metric, or null if it is not tracked and the limit of tracked metric names is reached
+   */
+  private MetricState track(String metricName) {
+    final MetricState state = metrics.get(metricName);
+    if (state != null) {
+      return state;
+    }
+    synchronized (metrics) {
+      if (!metrics.containsKey(metricName) && metrics.size() >= maxMetrics) {
+        return null;
+      }
+      return metrics.computeIfAbsent(metricName, m -> new MetricState());
+    }
+  }
+
+  private String[] limit(String[] labelValues, String message) {
+    switch (action) {
+      case DROP:
+        return null;
+      case COLLAPSE:
+        final String[] other = new String[labelValues.length];
+        Arrays.fill(other, OTHER);
+        return other;
+      default:
+        throw new LimitExceededException(message);
+    }
+  }
+
+  /**
+   * @return the estimated number of distinct label value sets observed for the metric
+   */
+  public long getObservedCardinality(String metricName) {
+    final MetricState state = metrics.get(metricName);
+    if (state == null) {
+      return 0;
+    }
+    synchronized (state) {
+      return state.observed.estimate();
+    }
+  }
+
+  @Override
+  public void close() {
+    METRICS.guards.remove(name, this);
+  }
+
+  private static final class GuardMetrics extends Collector {
+    private final Map<String, CardinalityGuard> guards = new ConcurrentHashMap<>();
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final List<String> labelNames = Arrays.asList("guard", "metric");
+      final List<MetricFamilySamples.Sample> cardinality = new ArrayList<>();
+      final List<MetricFamilySamples.Sample> limited = new ArrayList<>();
+      guards.forEach((name, guard) -> {
+        final long untracked = guard.untrackedLimited.get();
+        guard.metrics.forEach((metricName, state) -> {
+          final List<String> labelValues = Arrays.asList(name, metricName);
+          cardinality.add(new MetricFamilySamples.Sample("nifi_prometheus_label_cardinality", labelNames, labelValues,
+              guard.getObservedCardinality(metricName)));
+          limited.add(new MetricFamilySamples.Sample("nifi_prometheus_label_cardinality_limited_total", labelNames,
+              labelValues, state.limited.get() + (OTHER.equals(metricName) ? untracked : 0)));
+        });
+        if (untracked > 0 && !guard.metrics.containsKey(OTHER)) {
+          limited.add(new MetricFamilySamples.Sample("nifi_prometheus_label_cardinality_limited_total", labelNames,
+              Arrays.asList(name, OTHER), untracked));
+        }
+      });
+
+      final List<MetricFamilySamples> families = new ArrayList<>();
+      families.add(new MetricFamilySamples("nifi_prometheus_label_cardinality", Type.GAUGE,
+          "Estimated number of distinct label value sets observed per metric", cardinality));
+      families.add(new MetricFamilySamples("nifi_prometheus_label_cardinality_limited_total", Type.COUNTER,
+          "Number of samples dropped, collapsed or rejected because their metric exceeded the series limit or was "
+              + "beyond the limit of metric names", limited));
+      return families;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops pushing to an endpoint that keeps failing, so that the pushes fail immediately instead of waiting for the
+ * connect timeout of a gateway that is down.
+ * <p>
+ * Every endpoint has its own circuit. It is closed until the given number of consecutive pushes failed, then open:
+ * pushes are rejected with an {@link OpenException} without any network attempt. Once the open duration has elapsed
+ * the circuit is half-open and lets a single trial push through; its success closes the circuit, its failure opens it
+ * again for twice the previous duration, up to the maximum. Every open duration is randomized by up to 20% so that
+ * components do not retry in lockstep. The state of every circuit and the number of rejected pushes are recorded in
+ * {@link CollectorRegistry#defaultRegistry}, labelled with the name of the breaker and the endpoint.
+ */
+public class CircuitBreaker implements Closeable {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Thrown instead of pushing while the circuit of the endpoint is open.
+   */
+  public static class OpenException extends IOException {
+    public OpenException(String message) {
+      super(message);
+    }
+  }
+
+  private static final double JITTER = 0.2;
+
+  private static final class Circuit {
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openNanos;
+    private long openUntilNanos;
+    private boolean trialInFlight;
+    private long rejected;
+  }
+
+  private static final BreakerMetrics METRICS = new BreakerMetrics().register();
+
+  private final String name;
+  private final int failureThreshold;
+  private final long initialOpenNanos;
+  private final long maxOpenNanos;
+  private final Map<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+  /**
+   * @param name             labels the metrics of the breaker, e.g. the identifier of the component
+   * @param failureThreshold the number of consecutive failures that open the circuit of an endpoint
+   * @param initialOpen      how long a circuit stays open the first time
+   * @param maxOpen          the maximum time a circuit stays open
+   */
+  public CircuitBreaker(String name, int failureThreshold, long initialOpen, long maxOpen, TimeUnit unit) {
+    this.name = name;
+    this.failureThreshold = failureThreshold;
+    this.initialOpenNanos = unit.toNanos(initialOpen);
+    this.maxOpenNanos = Math.max(initialOpenNanos, unit.toNanos(maxOpen));
+    METRICS.breakers.put(name, this);
+  }
+
+  /**
+   * Runs the push through the circuit of the endpoint.
+   *
+   * @throws OpenException if the circuit is open, or half-open with its trial push still running
+   * @throws IOException   if the push fails
+   */
+  public void call(String endpoint, AsyncPushSender.Push push) throws IOException {
+    final Circuit circuit = circuits.computeIfAbsent(endpoint, e -> new Circuit());
+    final boolean trial;
+    synchronized (circuit) {
+      if (circuit.state == State.OPEN && System.nanoTime() - circuit.openUntilNanos >= 0) {
+        circuit.state = State.HALF_OPEN;
+      }
+      if (circuit.state == State.OPEN || (circuit.state == State.HALF_OPEN && circuit.trialInFlight)) {
+        circuit.rejected++;
+        throw new OpenException("Circuit to " + endpoint + " is open for another "
+            + Math.max(0, TimeUnit.NANOSECONDS.toMillis(circuit.openUntilNanos - System.nanoTime())) + " ms");
+      }
+      trial = circuit.state == State.HALF_OPEN;
+      circuit.trialInFlight = trial;
+    }
+
+    try {
+      push.push();
+    } catch (IOException | RuntimeException e) {
+      synchronized (circuit) {
+        circuit.trialInFlight = false;
+        circuit.consecutiveFailures++;
+        if (trial || circuit.consecutiveFailures >= failureThreshold) {
+          open(circuit);
+        }
+      }
+      throw e;
+    }
+    synchronized (circuit) {
+      circuit.trialInFlight = false;
+      circuit.state = State.CLOSED;
+      circuit.consecutiveFailures = 0;
+      circuit.openNanos = 0;
+    }
+  }
+
+  private void open(Circuit circuit) {
+    circuit.openNanos = circuit.openNanos == 0 ? initialOpenNanos : Math.min(maxOpenNanos, circuit.openNanos * 2);
+    final double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    circuit.openUntilNanos = System.nanoTime() + (long) (circuit.openNanos * jitter);
+    circuit.state = State.OPEN;
+  }
+
+  /**
+   * @return the state of the circuit of the endpoint, which is only half-open once a push was attempted
+   */
+  public State getState(String endpoint) {
+    final Circuit circuit = circuits.get(endpoint);
+    if (circuit == null) {
+      return State.CLOSED;
+    }
+    synchronized (circuit) {
+      return circuit.state;
+    }
+  }
+
+  @Override
+  public void close() {
+    METRICS.breakers.remove(name, this);
+  }
+
+  private static final class BreakerMetrics extends Collector {
+    private final Map<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final List<String> labelNames = Arrays.asList("breaker", "endpoint");
+      final List<MetricFamilySamples.Sample> states = new ArrayList<>();
+      final List<MetricFamilySamples.Sample> rejected = new ArrayList<>();
+      breakers.forEach((name, breaker) -> breaker.circuits.forEach((endpoint, circuit) -> {
+        final List<String> labelValues = Arrays.asList(name, endpoint);
+        synchronized (circuit) {
+          states.add(new MetricFamilySamples.Sample("nifi_prometheus_push_circuit_state", labelNames, labelValues,
+              circuit.state.ordinal()));
+          rejected.add(new MetricFamilySamples.Sample("nifi_prometheus_push_circuit_rejected_total", labelNames,
+              labelValues, circuit.rejected));
+        }
+      }));
+
+      final List<MetricFamilySamples> families = new ArrayList<>();
+      families.add(new MetricFamilySamples("nifi_prometheus_push_circuit_state", Type.GAUGE,
+          "State of the circuit to a push endpoint: 0 closed, 1 open, 2 half-open", states));
+      families.add(new MetricFamilySamples("nifi_prometheus_push_circuit_rejected_total", Type.COUNTER,
+          "Number of pushes rejected without a network attempt because the circuit was open", rejected));
+      return families;
+    }
+  }
+}
@@ -0,0 +1,117 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the metrics written into an exporter, grouped by job and grouping key the way the Pushgateway groups them.
+ * <p>
+ * An update replaces the families of the same names within its group. Unlike on the Pushgateway, a group that has not
+ * been updated within the expiry is no longer collected, so series of stopped flows disappear.
+ */
+public class ExportedMetrics extends Collector {
+
+  private static final String JOB_LABEL = "job";
+
+  private static final class Group {
+    private final String job;
+    private final Map<String, String> groupingKey;
+    private final Map<String, MetricFamilySamples> families = new ConcurrentHashMap<>();
+    private volatile long updatedNanos;
+
+    private Group(String job, Map<String, String> groupingKey) {
+      this.job = job;
+      this.groupingKey = groupingKey;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Group)) {
+        return false;
+      }
+      final Group group = (Group) o;
+      return job.equals(group.job) && groupingKey.equals(group.groupingKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(job, groupingKey);
+    }
+  }
+
+  private final long expiryNanos;
+  private final Map<Group, Group> groups = new ConcurrentHashMap<>();
+
+  /**
+   * @param expiryNanos how long a group is collected after its last update, 0 to keep it until it is cleared
+   */
+  public ExportedMetrics(long expiryNanos) {
+    this.expiryNanos = expiryNanos;
+  }
+
+  public void update(String job, Map<String, String> groupingKey, Enumeration<MetricFamilySamples> families) {
+    final Map<String, String> key = groupingKey == null ? Collections.emptyMap() : groupingKey;
+    final Group lookup = new Group(job, key);
+    final Group group = groups.computeIfAbsent(lookup, g -> g);
+    while (families.hasMoreElements()) {
+      final MetricFamilySamples family = families.nextElement();
+      group.families.put(family.name, withGroupLabels(family, job, key));
+    }
+    group.updatedNanos = System.nanoTime();
+  }
+
+  public void clear() {
+    groups.clear();
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final long now = System.nanoTime();
+    if (expiryNanos > 0) {
+      groups.values().removeIf(group -> now - group.updatedNanos > expiryNanos);
+    }
+
+    // a family may be written by several groups but must be exposed once
+    final Map<String, MetricFamilySamples> merged = new LinkedHashMap<>();
+    for (Group group : groups.values()) {
+      for (MetricFamilySamples family : group.families.values()) {
+        merged.computeIfAbsent(family.name, name -> new MetricFamilySamples(name, family.type, family.help, new ArrayList<>()))
+            .samples.addAll(family.samples);
+      }
+    }
+    return new ArrayList<>(merged.values());
+  }
+
+  private static MetricFamilySamples withGroupLabels(MetricFamilySamples family, String job, Map<String, String> groupingKey) {
+    final List<MetricFamilySamples.Sample> samples = new ArrayList<>(family.samples.size());
+    for (MetricFamilySamples.Sample sample : family.samples) {
+      final List<String> labelNames = new ArrayList<>(sample.labelNames.size() + groupingKey.size() + 1);
+      final List<String> labelValues = new ArrayList<>(labelNames.size());
+      labelNames.addAll(sample.labelNames);
+      labelValues.addAll(sample.labelValues);
+      if (!labelNames.contains(JOB_LABEL)) {
+        labelNames.add(JOB_LABEL);
+        labelValues.add(job);
+      }
+      groupingKey.forEach((name, value) -> {
+        if (!labelNames.contains(name)) {
+          labelNames.add(name);
+          labelValues.add(value);
+        }
+      });
+      samples.add(new MetricFamilySamples.Sample(sample.name, labelNames, labelValues, sample.value, sample.timestampMs));
+    }
+    return new MetricFamilySamples(family.name, family.type, family.help, samples);
+  }
+}
@@ -0,0 +1,29 @@
+package de.flaconi.nifi.prometheus;
+
+final class Hashing {
+
+  private Hashing() {
+  }
+
+  /**
+   * 64-bit FNV-1a over the values, separated so that ("ab", "c") and ("a", "bc") differ, with a final mix step so
+   * that the high bits depend on every input bit.
+   */
+  static long hash64(String... values) {
+    long hash = 0xcbf29ce484222325L;
+    for (String value : values) {
+      for (int i = 0; i < value.length(); i++) {
+        hash ^= value.charAt(i);
+        hash *= 0x100000001b3L;
+      }
+      hash ^= 0xffff;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
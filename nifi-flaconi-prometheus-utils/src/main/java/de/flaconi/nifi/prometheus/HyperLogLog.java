@@ -0,0 +1,40 @@
+package de.flaconi.nifi.prometheus;
+
+/**
+ * A HyperLogLog sketch estimating the number of distinct label value sets in a fixed 4 KiB, whatever the cardinality.
+ * Not thread safe.
+ */
+class HyperLogLog {
+
+  private static final int PRECISION = 12;
+  private static final int REGISTERS = 1 << PRECISION;
+  private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+  private final byte[] registers = new byte[REGISTERS];
+
+  void add(String[] values) {
+    final long hash = Hashing.hash64(values);
+    final int index = (int) (hash >>> (64 - PRECISION));
+    final int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+    if (rank > registers[index]) {
+      registers[index] = (byte) rank;
+    }
+  }
+
+  long estimate() {
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    final double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+    if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      return Math.round(REGISTERS * Math.log((double) REGISTERS / zeros));
+    }
+    return Math.round(estimate);
+  }
+}
@@ -0,0 +1,206 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.PushGateway;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A {@link PushGateway} that keeps its HTTP connections alive and applies configurable timeouts.
+ * <p>
+ * The stock client disconnects after every request and always uses timeouts of ten seconds. This one reads the
+ * response to the end and leaves the connection open, so that the JDK returns it to its keep-alive cache and the
+ * next push to the same endpoint skips the TCP handshake. Optionally the pushed metrics are gzip-compressed, which
+ * the Pushgateway accepts since version 1.2.
+ * <p>
+ * A connection that fails is disconnected instead of being returned to the cache. Closing the client disconnects the
+ * requests in flight and rejects further ones; its idle connections are closed by the keep-alive cache of the JDK once
+ * they time out.
+ */
+public class KeepAlivePushGateway extends PushGateway implements Closeable {
+
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final boolean gzip;
+  private final Set<HttpURLConnection> inFlight = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed;
+
+  public KeepAlivePushGateway(String address, int connectTimeoutMillis, int readTimeoutMillis) {
+    this(address, connectTimeoutMillis, readTimeoutMillis, false);
+  }
+
+  public KeepAlivePushGateway(String address, int connectTimeoutMillis, int readTimeoutMillis, boolean gzip) {
+    super(address);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.gzip = gzip;
+  }
+
+  @Override
+  public void push(CollectorRegistry registry, String job) throws IOException {
+    request(registry, job, null, "PUT");
+  }
+
+  @Override
+  public void push(Collector collector, String job) throws IOException {
+    push(collector, job, (Map<String, String>) null);
+  }
+
+  @Override
+  public void push(CollectorRegistry registry, String job, Map<String, String> groupingKey) throws IOException {
+    request(registry, job, groupingKey, "PUT");
+  }
+
+  @Override
+  public void push(Collector collector, String job, Map<String, String> groupingKey) throws IOException {
+    final CollectorRegistry registry = new CollectorRegistry();
+    collector.register(registry);
+    push(registry, job, groupingKey);
+  }
+
+  @Override
+  public void pushAdd(CollectorRegistry registry, String job) throws IOException {
+    request(registry, job, null, "POST");
+  }
+
+  @Override
+  public void pushAdd(Collector collector, String job) throws IOException {
+    pushAdd(collector, job, (Map<String, String>) null);
+  }
+
+  @Override
+  public void pushAdd(CollectorRegistry registry, String job, Map<String, String> groupingKey) throws IOException {
+    request(registry, job, groupingKey, "POST");
+  }
+
+  @Override
+  public void pushAdd(Collector collector, String job, Map<String, String> groupingKey) throws IOException {
+    final CollectorRegistry registry = new CollectorRegistry();
+    collector.register(registry);
+    pushAdd(registry, job, groupingKey);
+  }
+
+  @Override
+  public void delete(String job) throws IOException {
+    request(null, job, null, "DELETE");
+  }
+
+  @Override
+  public void delete(String job, Map<String, String> groupingKey) throws IOException {
+    request(null, job, groupingKey, "DELETE");
+  }
+
+  String url(String job, Map<String, String> groupingKey) throws IOException {
+    final StringBuilder url = new StringBuilder(gatewayBaseURL);
+    if (job.contains("/")) {
+      url.append("job@base64/").append(base64url(job));
+    } else {
+      url.append("job/").append(URLEncoder.encode(job, "UTF-8"));
+    }
+
+    if (groupingKey != null) {
+      for (Map.Entry<String, String> entry : groupingKey.entrySet()) {
+        url.append('/').append(entry.getKey());
+        if (entry.getValue().isEmpty()) {
+          url.append("@base64/=");
+        } else if (entry.getValue().contains("/")) {
+          url.append("@base64/").append(base64url(entry.getValue()));
+        } else {
+          url.append('/').append(URLEncoder.encode(entry.getValue(), "UTF-8"));
+        }
+      }
+    }
+    return url.toString();
+  }
+
+  /**
+   * Disconnects the requests in flight; later requests fail.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (HttpURLConnection connection : inFlight) {
+      connection.disconnect();
+    }
+    inFlight.clear();
+  }
+
+  private void request(CollectorRegistry registry, String job, Map<String, String> groupingKey, String method) throws IOException {
+    if (closed) {
+      throw new IOException("Client of " + gatewayBaseURL + " is closed");
+    }
+    final String url = url(job, groupingKey);
+    final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    inFlight.add(connection);
+    try {
+      connection.setRequestProperty("Content-Type", TextFormat.CONTENT_TYPE_004);
+      if (registry != null) {
+        connection.setDoOutput(true);
+        if (gzip) {
+          connection.setRequestProperty("Content-Encoding", "gzip");
+        }
+      }
+      connection.setRequestMethod(method);
+      connection.setConnectTimeout(connectTimeoutMillis);
+      connection.setReadTimeout(readTimeoutMillis);
+      connection.connect();
+
+      if (registry != null) {
+        final OutputStream out = gzip ? new GZIPOutputStream(connection.getOutputStream()) : connection.getOutputStream();
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+          TextFormat.write004(writer, registry.metricFamilySamples());
+        }
+      }
+
+      final int response = connection.getResponseCode();
+      // the body has to be consumed completely, otherwise the connection cannot be reused
+      final String body = readFully(response >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream());
+      if (response / 100 != 2) {
+        throw new IOException("Response code from " + url + " was " + response + ", response body: " + body);
+      }
+    } catch (IOException | RuntimeException e) {
+      // a connection in an unknown state must not be reused
+      connection.disconnect();
+      throw e;
+    } finally {
+      inFlight.remove(connection);
+    }
+  }
+
+  static String readFully(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    try (InputStream body = in) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = body.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  private static String base64url(String value) {
+    return Base64.getUrlEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+}
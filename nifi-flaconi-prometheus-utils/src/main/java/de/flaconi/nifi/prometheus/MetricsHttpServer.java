@@ -0,0 +1,129 @@
+package de.flaconi.nifi.prometheus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A lightweight HTTP server exposing a registry in the Prometheus text format on {@code /metrics}, gzip compressed
+ * when the scraper accepts it.
+ */
+public class MetricsHttpServer implements Closeable {
+
+  private static final int INITIAL_BUFFER_BYTES = 1 << 16;
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final CollectorRegistry registry;
+
+  /**
+   * Binds the server and starts serving.
+   *
+   * @param address the address to bind, port 0 picks a free port
+   * @param threads the number of threads serving the scrapes
+   */
+  public MetricsHttpServer(InetSocketAddress address, CollectorRegistry registry, int threads) throws IOException {
+    this.registry = registry;
+    this.server = HttpServer.create(address, 0);
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+      final Thread thread = new Thread(runnable, "Prometheus exporter " + address.getPort() + "-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    server.createContext("/metrics", this::handle);
+    server.createContext("/", this::handle);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * @return the port the server is bound to
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try {
+      final String path = exchange.getRequestURI().getPath();
+      if (!"/".equals(path) && !"/metrics".equals(path)) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+      final boolean gzip = acceptsGzip(exchange.getRequestHeaders().get("Accept-Encoding"));
+      final OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes;
+      try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+        TextFormat.write004(writer, registry.metricFamilySamples());
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", TextFormat.CONTENT_TYPE_004);
+      if (gzip) {
+        exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      }
+      if ("HEAD".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(200, -1);
+      } else {
+        exchange.sendResponseHeaders(200, bytes.size());
+        bytes.writeTo(exchange.getResponseBody());
+      }
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Whether an Accept-Encoding header lists gzip with a quality above zero; "gzip;q=0" refuses it.
+   */
+  private static boolean acceptsGzip(List<String> acceptEncodings) {
+    if (acceptEncodings != null) {
+      for (String acceptEncoding : acceptEncodings) {
+        for (String encoding : acceptEncoding.split(",")) {
+          final String[] parameters = encoding.split(";");
+          if (parameters[0].trim().equalsIgnoreCase("gzip")) {
+            return quality(parameters) > 0;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static double quality(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      final String parameter = parameters[i].trim();
+      if (parameter.toLowerCase(Locale.ROOT).startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2).trim());
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
@@ -0,0 +1,19 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import org.apache.nifi.controller.ControllerService;
+
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Exposes metrics on an HTTP endpoint to be scraped by Prometheus, as an alternative to pushing them to the Pushgateway.
+ */
+public interface PrometheusExporterService extends ControllerService {
+
+  /**
+   * Replaces the metric families of the same names within the group of the job and grouping key, like pushAdd does on
+   * the Pushgateway. The job and the grouping key are added to the samples as labels.
+   */
+  void update(String job, Map<String, String> groupingKey, Enumeration<MetricFamilySamples> families);
+}
@@ -0,0 +1,85 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.exporter.PushGateway;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Hands out one {@link PushGateway} per endpoint, so that repeated pushes to the same gateway share a client and,
+ * with a {@link KeepAlivePushGateway}, its open connections.
+ * <p>
+ * The endpoints may come from FlowFile attributes, so the pool is bounded: once it holds the maximum number of
+ * clients, the least recently used one is evicted. An evicted client is only forgotten, not closed: a push that took
+ * it from the pool just before may still be in flight on it, and a {@link KeepAlivePushGateway} leaves its idle
+ * connections to the keep-alive cache of the JDK anyway. On close, all clients still in the pool are closed if they
+ * are {@link Closeable}.
+ */
+public class PushGatewayPool implements Closeable {
+
+  public static final int DEFAULT_MAX_GATEWAYS = 100;
+
+  private final BiFunction<String, String, PushGateway> factory;
+  private final Map<String, PushGateway> gateways;
+
+  /**
+   * @param factory creates the client of an endpoint from its host and port
+   */
+  public PushGatewayPool(BiFunction<String, String, PushGateway> factory) {
+    this(DEFAULT_MAX_GATEWAYS, factory);
+  }
+
+  /**
+   * @param maxGateways the number of clients kept; the least recently used are evicted beyond it
+   * @param factory     creates the client of an endpoint from its host and port
+   */
+  public PushGatewayPool(int maxGateways, BiFunction<String, String, PushGateway> factory) {
+    this.factory = factory;
+    this.gateways = new LinkedHashMap<String, PushGateway>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PushGateway> eldest) {
+        return size() > maxGateways;
+      }
+    };
+  }
+
+  public PushGateway get(String host, String port) {
+    synchronized (gateways) {
+      return gateways.computeIfAbsent(host + ":" + port, endpoint -> factory.apply(host, port));
+    }
+  }
+
+  public int size() {
+    synchronized (gateways) {
+      return gateways.size();
+    }
+  }
+
+  /**
+   * Closes and forgets all clients.
+   */
+  @Override
+  public void close() {
+    final List<PushGateway> closed;
+    synchronized (gateways) {
+      closed = new ArrayList<>(gateways.values());
+      gateways.clear();
+    }
+    closed.forEach(PushGatewayPool::closeQuietly);
+  }
+
+  private static void closeQuietly(PushGateway gateway) {
+    if (gateway instanceof Closeable) {
+      try {
+        ((Closeable) gateway).close();
+      } catch (IOException e) {
+        // nothing left to release
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package de.flaconi.nifi.prometheus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routes pushes across several Pushgateway shards by consistent hashing of the job and grouping key, so that every
+ * group always lands on the same shard and adding a shard only moves the groups it takes over.
+ * <p>
+ * A shard that fails a push is considered down for the cooldown; meanwhile its groups go to the next shard on the
+ * ring. After the cooldown the shard gets its groups back and the next push checks whether it is healthy again.
+ */
+public class PushGatewayRing {
+
+  /**
+   * A Pushgateway shard.
+   */
+  public static final class Endpoint {
+    public final String host;
+    public final String port;
+
+    public Endpoint(String host, String port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Endpoint)) {
+        return false;
+      }
+      final Endpoint endpoint = (Endpoint) o;
+      return host.equals(endpoint.host) && port.equals(endpoint.port);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(host, port);
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
+  private static final int VIRTUAL_NODES = 128;
+
+  private final TreeMap<Long, Endpoint> ring = new TreeMap<>();
+  private final int endpointCount;
+  private final long cooldownNanos;
+  private final Map<Endpoint, Long> downUntilNanos = new ConcurrentHashMap<>();
+
+  /**
+   * @param endpoints      the shards
+   * @param cooldownMillis how long a shard that failed a push is skipped
+   */
+  public PushGatewayRing(List<Endpoint> endpoints, long cooldownMillis) {
+    if (endpoints.isEmpty()) {
+      throw new IllegalArgumentException("At least one Pushgateway endpoint is required");
+    }
+    for (Endpoint endpoint : endpoints) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(Hashing.hash64(endpoint.toString(), Integer.toString(i)), endpoint);
+      }
+    }
+    this.endpointCount = new HashSet<>(endpoints).size();
+    this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+  }
+
+  /**
+   * Parses a comma separated list of host:port endpoints.
+   *
+   * @param defaultPort the port of the endpoints without one
+   */
+  public static List<Endpoint> parse(String endpoints, String defaultPort) {
+    final List<Endpoint> parsed = new ArrayList<>();
+    for (String endpoint : endpoints.split(",")) {
+      final String trimmed = endpoint.trim();
+      if (trimmed.isEmpty()) {
+        continue;
+      }
+      final int colon = trimmed.lastIndexOf(':');
+      parsed.add(colon < 0
+          ? new Endpoint(trimmed, defaultPort)
+          : new Endpoint(trimmed.substring(0, colon), trimmed.substring(colon + 1)));
+    }
+    return parsed;
+  }
+
+  /**
+   * @return the shard of the group, or the next healthy one while it is down; the shard of the group if all are down
+   */
+  public Endpoint route(String job, Map<String, String> groupingKey) {
+    final long hash = Hashing.hash64(groupKey(job, groupingKey));
+    final long now = System.nanoTime();
+    final Set<Endpoint> visited = new HashSet<>();
+    Endpoint primary = null;
+    // clockwise from the hash of the group
+    for (Collection<Endpoint> part : Arrays.asList(ring.tailMap(hash).values(), ring.headMap(hash).values())) {
+      for (Endpoint endpoint : part) {
+        if (primary == null) {
+          primary = endpoint;
+        }
+        if (visited.add(endpoint)) {
+          if (isUp(endpoint, now)) {
+            return endpoint;
+          }
+          if (visited.size() == endpointCount) {
+            return primary;
+          }
+        }
+      }
+    }
+    return primary;
+  }
+
+  public void markFailed(Endpoint endpoint) {
+    downUntilNanos.put(endpoint, System.nanoTime() + cooldownNanos);
+  }
+
+  public void markSucceeded(Endpoint endpoint) {
+    downUntilNanos.remove(endpoint);
+  }
+
+  private boolean isUp(Endpoint endpoint, long now) {
+    final Long downUntil = downUntilNanos.get(endpoint);
+    return downUntil == null || now - downUntil >= 0;
+  }
+
+  private static String[] groupKey(String job, Map<String, String> groupingKey) {
+    final List<String> key = new ArrayList<>();
+    key.add(job);
+    if (groupingKey != null) {
+      // the order of the grouping key must not change the shard
+      final List<String> names = new ArrayList<>(groupingKey.keySet());
+      Collections.sort(names);
+      for (String name : names) {
+        key.add(name);
+        key.add(groupingKey.get(name));
+      }
+    }
+    return key.toArray(new String[0]);
+  }
+}
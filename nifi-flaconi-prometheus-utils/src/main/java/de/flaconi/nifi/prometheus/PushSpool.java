@@ -0,0 +1,484 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only spool on disk for the pushes that could not be delivered while the Pushgateway was unavailable.
+ * <p>
+ * Every push is written as one checksummed record to the newest segment file of the directory. A background thread
+ * replays the records in the order they were written and deletes a segment once all of its records are delivered; a
+ * failed replay is retried with exponential backoff. The spool is bounded: when it would grow beyond its maximum size
+ * the oldest segment is dropped. Segments survive a restart and are replayed from their start, which repeats at most
+ * the pushes of one segment; pushAdd replaces the pushed series, so a repeated push is harmless. A record torn by a
+ * crash during an append is cut off when the spool is opened, so that the records appended after it stay readable.
+ * <p>
+ * The size and the number of dropped segments of every spool are recorded in {@link CollectorRegistry#defaultRegistry}.
+ */
+public class PushSpool implements Closeable {
+
+  /**
+   * Delivers a spooled push.
+   */
+  @FunctionalInterface
+  public interface Replay {
+    void push(SpooledPush push) throws IOException;
+  }
+
+  /**
+   * A push read back from the spool.
+   */
+  public static final class SpooledPush {
+    public final String host;
+    public final String port;
+    public final String job;
+    public final Map<String, String> groupingKey;
+    public final List<MetricFamilySamples> families;
+
+    SpooledPush(String host, String port, String job, Map<String, String> groupingKey, List<MetricFamilySamples> families) {
+      this.host = host;
+      this.port = port;
+      this.job = job;
+      this.groupingKey = groupingKey;
+      this.families = families;
+    }
+
+    /**
+     * @return a registry holding the spooled samples, to be passed to pushAdd
+     */
+    public CollectorRegistry toRegistry() {
+      final CollectorRegistry registry = new CollectorRegistry();
+      new Collector() {
+        @Override
+        public List<MetricFamilySamples> collect() {
+          return families;
+        }
+      }.register(registry);
+      return registry;
+    }
+  }
+
+  private static final String SUFFIX = ".spool";
+  private static final int HEADER_BYTES = 8;
+  private static final SpoolMetrics METRICS = new SpoolMetrics().register();
+
+  private final String name;
+  private final File directory;
+  private final long maxSegmentBytes;
+  private final long maxTotalBytes;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final Replay replay;
+  private final ScheduledExecutorService replayer;
+
+  // oldest first; the last one is written to, the first one is replayed
+  private final Deque<File> segments = new ArrayDeque<>();
+  private final AtomicLong droppedSegments = new AtomicLong();
+  private long nextSegment;
+  private long totalBytes;
+  private long readOffset;
+  private long backoffMillis;
+  private boolean replayScheduled;
+  private boolean closed;
+
+  /**
+   * Opens the spool of the directory, picking up the segments left from a previous run, and starts replaying them.
+   *
+   * @param name                 labels the metrics of the spool, e.g. the identifier of the component
+   * @param directory            directory of the segment files, created if missing and used by this spool only
+   * @param maxTotalBytes        the maximum size of all segments; a quarter of it is the size of one segment
+   * @param initialBackoffMillis the delay of the first retry after a failed replay
+   * @param maxBackoffMillis     the maximum delay between the retries
+   * @param replay               delivers the spooled pushes
+   */
+  public PushSpool(String name, File directory, long maxTotalBytes, long initialBackoffMillis, long maxBackoffMillis,
+                   Replay replay) throws IOException {
+    this.name = name;
+    this.directory = directory;
+    this.maxTotalBytes = maxTotalBytes;
+    this.maxSegmentBytes = Math.max(maxTotalBytes / 4, 1);
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.backoffMillis = initialBackoffMillis;
+    this.replay = replay;
+
+    Files.createDirectories(directory.toPath());
+    final File[] files = directory.listFiles((dir, fileName) -> fileName.endsWith(SUFFIX));
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        nextSegment = Math.max(nextSegment, sequenceOf(file) + 1);
+        final long length = truncateTornTail(file);
+        if (length == 0) {
+          Files.deleteIfExists(file.toPath());
+          continue;
+        }
+        segments.add(file);
+        totalBytes += length;
+      }
+    }
+
+    this.replayer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "Prometheus push spool " + name);
+      thread.setDaemon(true);
+      return thread;
+    });
+    METRICS.spools.put(name, this);
+    synchronized (this) {
+      scheduleReplay(0);
+    }
+  }
+
+  /**
+   * Appends a push to the spool.
+   *
+   * @throws IOException if the push cannot be written or is larger than the spool
+   */
+  public synchronized void append(String host, String port, String job, Map<String, String> groupingKey,
+                                  Enumeration<MetricFamilySamples> families) throws IOException {
+    if (closed) {
+      throw new IOException("Spool " + directory + " is closed");
+    }
+    final byte[] record = serialize(host, port, job, groupingKey, families);
+    final long recordBytes = HEADER_BYTES + record.length;
+    if (recordBytes > maxTotalBytes) {
+      throw new IOException("Push of " + recordBytes + " bytes exceeds the spool size of " + maxTotalBytes + " bytes");
+    }
+
+    File segment = segments.peekLast();
+    if (segment == null || segment.length() + recordBytes > maxSegmentBytes) {
+      segment = new File(directory, String.format("%020d%s", nextSegment++, SUFFIX));
+      segments.addLast(segment);
+    }
+    while (totalBytes + recordBytes > maxTotalBytes && segments.size() > 1) {
+      dropOldestSegment();
+    }
+
+    final CRC32 crc = new CRC32();
+    crc.update(record);
+    final ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + record.length);
+    buffer.putInt(record.length).putInt((int) crc.getValue()).put(record).flip();
+    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+      final long end = channel.size();
+      try {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer, end + buffer.position());
+        }
+      } catch (IOException e) {
+        // do not leave a partial record in front of the next append
+        channel.truncate(end);
+        throw e;
+      }
+    }
+    totalBytes += recordBytes;
+    scheduleReplay(0);
+  }
+
+  /**
+   * @return true if no push is waiting for replay; while pushes wait, new ones should be appended to keep their order
+   */
+  public synchronized boolean isEmpty() {
+    return totalBytes == 0;
+  }
+
+  public synchronized long getSizeBytes() {
+    return totalBytes;
+  }
+
+  public long getDroppedSegments() {
+    return droppedSegments.get();
+  }
+
+  /**
+   * Stops replaying. The segments stay on disk and are replayed when the spool is opened again.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    replayer.shutdownNow();
+    try {
+      replayer.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    METRICS.spools.remove(name, this);
+  }
+
+  private void scheduleReplay(long delayMillis) {
+    if (!replayScheduled && !closed && totalBytes > 0) {
+      replayScheduled = true;
+      replayer.schedule(this::replay, delayMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void replay() {
+    synchronized (this) {
+      replayScheduled = false;
+    }
+    while (!Thread.currentThread().isInterrupted()) {
+      final byte[] record;
+      final File segment;
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        segment = segments.peekFirst();
+        if (segment == null) {
+          return;
+        }
+        try {
+          record = readRecord(segment, readOffset);
+        } catch (IOException e) {
+          // unreadable segment, skip it
+          dropOldestSegment();
+          continue;
+        }
+        if (record == null) {
+          if (segment == segments.peekLast()) {
+            return;
+          }
+          // segment fully replayed
+          deleteOldestSegment();
+          continue;
+        }
+      }
+
+      try {
+        replay.push(deserialize(record));
+      } catch (IOException e) {
+        synchronized (this) {
+          final long delay = backoffMillis;
+          backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+          scheduleReplay(delay);
+        }
+        return;
+      }
+
+      synchronized (this) {
+        backoffMillis = initialBackoffMillis;
+        if (segment == segments.peekFirst()) {
+          readOffset += HEADER_BYTES + record.length;
+          if (segment == segments.peekLast() && readOffset >= segment.length()) {
+            // everything is delivered, start over with an empty segment
+            deleteOldestSegment();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the record at the offset, or null at the end of the segment or at a partially written record
+   */
+  private static byte[] readRecord(File segment, long offset) throws IOException {
+    if (!segment.exists()) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+      return readRecord(channel, segment, offset);
+    }
+  }
+
+  private static byte[] readRecord(FileChannel channel, File segment, long offset) throws IOException {
+    if (channel.size() < offset + HEADER_BYTES) {
+      return null;
+    }
+    final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    while (header.hasRemaining()) {
+      if (channel.read(header, offset + header.position()) < 0) {
+        return null;
+      }
+    }
+    header.flip();
+    final int length = header.getInt();
+    final int checksum = header.getInt();
+    if (length < 0 || channel.size() < offset + HEADER_BYTES + length) {
+      return null;
+    }
+    final ByteBuffer record = ByteBuffer.allocate(length);
+    while (record.hasRemaining()) {
+      if (channel.read(record, offset + HEADER_BYTES + record.position()) < 0) {
+        return null;
+      }
+    }
+    final CRC32 crc = new CRC32();
+    crc.update(record.array());
+    if ((int) crc.getValue() != checksum) {
+      throw new IOException("Corrupt record in " + segment + " at " + offset);
+    }
+    return record.array();
+  }
+
+  /**
+   * Cuts a segment off after its last valid record, dropping a partially written or corrupt tail.
+   *
+   * @return the length of the valid records
+   */
+  private static long truncateTornTail(File segment) throws IOException {
+    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long offset = 0;
+      try {
+        byte[] record;
+        while ((record = readRecord(channel, segment, offset)) != null) {
+          offset += HEADER_BYTES + record.length;
+        }
+      } catch (IOException e) {
+        // the valid records end in front of the corrupt one
+      }
+      if (offset < channel.size()) {
+        channel.truncate(offset);
+      }
+      return offset;
+    }
+  }
+
+  private void dropOldestSegment() {
+    droppedSegments.incrementAndGet();
+    deleteOldestSegment();
+  }
+
+  private void deleteOldestSegment() {
+    final File segment = segments.pollFirst();
+    if (segment != null) {
+      totalBytes -= segment.length();
+      if (!segment.delete() && segment.exists()) {
+        segment.deleteOnExit();
+      }
+    }
+    readOffset = 0;
+    if (segments.isEmpty()) {
+      totalBytes = 0;
+    }
+  }
+
+  private static long sequenceOf(File segment) {
+    final String fileName = segment.getName();
+    try {
+      return Long.parseLong(fileName.substring(0, fileName.length() - SUFFIX.length()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  static byte[] serialize(String host, String port, String job, Map<String, String> groupingKey,
+                          Enumeration<MetricFamilySamples> families) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(bytes);
+    out.writeUTF(host);
+    out.writeUTF(port);
+    out.writeUTF(job);
+    final Map<String, String> key = groupingKey == null ? Collections.emptyMap() : groupingKey;
+    out.writeInt(key.size());
+    for (Map.Entry<String, String> entry : key.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeUTF(entry.getValue());
+    }
+    final List<MetricFamilySamples> list = Collections.list(families);
+    out.writeInt(list.size());
+    for (MetricFamilySamples family : list) {
+      out.writeUTF(family.name);
+      out.writeUTF(family.type.name());
+      out.writeUTF(family.help);
+      out.writeInt(family.samples.size());
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        out.writeUTF(sample.name);
+        out.writeInt(sample.labelNames.size());
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+          out.writeUTF(sample.labelNames.get(i));
+          out.writeUTF(sample.labelValues.get(i));
+        }
+        out.writeDouble(sample.value);
+      }
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  static SpooledPush deserialize(byte[] record) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    final String host = in.readUTF();
+    final String port = in.readUTF();
+    final String job = in.readUTF();
+    final int keys = in.readInt();
+    final Map<String, String> groupingKey = new LinkedHashMap<>();
+    for (int i = 0; i < keys; i++) {
+      groupingKey.put(in.readUTF(), in.readUTF());
+    }
+    final int familyCount = in.readInt();
+    final List<MetricFamilySamples> families = new ArrayList<>(familyCount);
+    for (int f = 0; f < familyCount; f++) {
+      final String name = in.readUTF();
+      final Collector.Type type = Collector.Type.valueOf(in.readUTF());
+      final String help = in.readUTF();
+      final int sampleCount = in.readInt();
+      final List<MetricFamilySamples.Sample> samples = new ArrayList<>(sampleCount);
+      for (int s = 0; s < sampleCount; s++) {
+        final String sampleName = in.readUTF();
+        final int labels = in.readInt();
+        final List<String> labelNames = new ArrayList<>(labels);
+        final List<String> labelValues = new ArrayList<>(labels);
+        for (int l = 0; l < labels; l++) {
+          labelNames.add(in.readUTF());
+          labelValues.add(in.readUTF());
+        }
+        samples.add(new MetricFamilySamples.Sample(sampleName, labelNames, labelValues, in.readDouble()));
+      }
+      families.add(new MetricFamilySamples(name, type, help, samples));
+    }
+    return new SpooledPush(host, port, job, groupingKey, families);
+  }
+
+  private static final class SpoolMetrics extends Collector {
+    private final Map<String, PushSpool> spools = new ConcurrentHashMap<>();
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final List<String> labelNames = Collections.singletonList("spool");
+      final List<MetricFamilySamples.Sample> sizes = new ArrayList<>();
+      final List<MetricFamilySamples.Sample> dropped = new ArrayList<>();
+      spools.forEach((name, spool) -> {
+        final List<String> labelValues = Collections.singletonList(name);
+        sizes.add(new MetricFamilySamples.Sample("nifi_prometheus_push_spool_bytes", labelNames, labelValues,
+            spool.getSizeBytes()));
+        dropped.add(new MetricFamilySamples.Sample("nifi_prometheus_push_spool_dropped_segments_total", labelNames,
+            labelValues, spool.getDroppedSegments()));
+      });
+      final List<MetricFamilySamples> families = new ArrayList<>();
+      families.add(new MetricFamilySamples("nifi_prometheus_push_spool_bytes", Type.GAUGE,
+          "Size of the pushes waiting in the spool for the Pushgateway", sizes));
+      families.add(new MetricFamilySamples("nifi_prometheus_push_spool_dropped_segments_total", Type.COUNTER,
+          "Number of spool segments dropped because the spool was full", dropped));
+      return families;
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package de.flaconi.nifi.prometheus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes the protobuf WriteRequest of the Prometheus remote write protocol (version 0.1.0) without a protobuf
+ * runtime; the message is small and fixed:
+ * <pre>
+ * message WriteRequest { repeated TimeSeries timeseries = 1; }
+ * message TimeSeries { repeated Label labels = 1; repeated Sample samples = 2; }
+ * message Label { string name = 1; string value = 2; }
+ * message Sample { double value = 1; int64 timestamp = 2; }
+ * </pre>
+ */
+final class RemoteWriteEncoder {
+
+  private static final int LENGTH_DELIMITED = 2;
+  private static final int FIXED_64 = 1;
+  private static final int VARINT = 0;
+
+  private RemoteWriteEncoder() {
+  }
+
+  /**
+   * @return the uncompressed WriteRequest with one time series, holding one sample, per series
+   */
+  static byte[] encode(List<RemoteWriteSink.Series> series) {
+    final byte[][][] labels = new byte[series.size()][][];
+    final int[] timeSeriesSizes = new int[series.size()];
+    int size = 0;
+    for (int i = 0; i < series.size(); i++) {
+      final RemoteWriteSink.Series current = series.get(i);
+      labels[i] = new byte[current.labels.length][];
+      for (int j = 0; j < current.labels.length; j++) {
+        labels[i][j] = current.labels[j].getBytes(StandardCharsets.UTF_8);
+      }
+      final int timeSeriesSize = timeSeriesSize(labels[i], current.timestampMs);
+      timeSeriesSizes[i] = timeSeriesSize;
+      size += 1 + varintSize(timeSeriesSize) + timeSeriesSize;
+    }
+
+    final Buffer buffer = new Buffer(size);
+    for (int i = 0; i < series.size(); i++) {
+      final RemoteWriteSink.Series current = series.get(i);
+      buffer.tag(1, LENGTH_DELIMITED);
+      buffer.varint(timeSeriesSizes[i]);
+      for (int j = 0; j < labels[i].length; j += 2) {
+        buffer.tag(1, LENGTH_DELIMITED);
+        buffer.varint(labelSize(labels[i][j], labels[i][j + 1]));
+        buffer.bytes(1, labels[i][j]);
+        buffer.bytes(2, labels[i][j + 1]);
+      }
+      buffer.tag(2, LENGTH_DELIMITED);
+      buffer.varint(sampleSize(current.timestampMs));
+      buffer.tag(1, FIXED_64);
+      buffer.fixed64(Double.doubleToRawLongBits(current.value));
+      buffer.tag(2, VARINT);
+      buffer.varint(current.timestampMs);
+    }
+    return buffer.bytes;
+  }
+
+  private static int timeSeriesSize(byte[][] labels, long timestampMs) {
+    int size = 0;
+    for (int j = 0; j < labels.length; j += 2) {
+      final int labelSize = labelSize(labels[j], labels[j + 1]);
+      size += 1 + varintSize(labelSize) + labelSize;
+    }
+    final int sampleSize = sampleSize(timestampMs);
+    return size + 1 + varintSize(sampleSize) + sampleSize;
+  }
+
+  private static int labelSize(byte[] name, byte[] value) {
+    return 1 + varintSize(name.length) + name.length + 1 + varintSize(value.length) + value.length;
+  }
+
+  private static int sampleSize(long timestampMs) {
+    return 1 + 8 + 1 + varintSize(timestampMs);
+  }
+
+  private static int varintSize(long value) {
+    int size = 1;
+    while ((value & ~0x7FL) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static final class Buffer {
+    final byte[] bytes;
+    int position;
+
+    Buffer(int size) {
+      this.bytes = new byte[size];
+    }
+
+    void tag(int field, int wireType) {
+      bytes[position++] = (byte) (field << 3 | wireType);
+    }
+
+    void varint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      bytes[position++] = (byte) value;
+    }
+
+    void fixed64(long value) {
+      for (int i = 0; i < 8; i++) {
+        bytes[position++] = (byte) (value >>> (8 * i));
+      }
+    }
+
+    void bytes(int field, byte[] value) {
+      tag(field, LENGTH_DELIMITED);
+      varint(value.length);
+      System.arraycopy(value, 0, bytes, position, value.length);
+      position += value.length;
+    }
+  }
+}
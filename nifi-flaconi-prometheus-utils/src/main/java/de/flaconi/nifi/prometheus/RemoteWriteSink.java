@@ -0,0 +1,349 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.iq80.snappy.Snappy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Writes samples to an endpoint of the Prometheus remote write protocol, e.g. of Prometheus, Cortex, Thanos or
+ * VictoriaMetrics, instead of a Pushgateway.
+ * <p>
+ * {@link #write} never blocks: it buffers the samples and returns {@code false} when the buffer is full. A dedicated
+ * thread sends them as snappy-compressed protobuf WriteRequests of up to the batch size, as soon as a batch is full or
+ * when the oldest buffered sample has waited for the flush interval. A batch rejected with a server error or 429 is
+ * retried after the flush interval, one rejected with another client error is dropped. The buffered, sent and dropped
+ * samples of every sink are recorded in {@link CollectorRegistry#defaultRegistry}, labelled with the name of the sink.
+ */
+public class RemoteWriteSink implements Closeable {
+
+  /**
+   * One sample with its sorted label names and values, including "__name__".
+   */
+  static final class Series {
+    final String[] labels;
+    final double value;
+    final long timestampMs;
+
+    Series(String[] labels, double value, long timestampMs) {
+      this.labels = labels;
+      this.value = value;
+      this.timestampMs = timestampMs;
+    }
+  }
+
+  private static final class RejectedException extends IOException {
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  private static final SinkMetrics METRICS = new SinkMetrics().register();
+  private static final String NAME_LABEL = "__name__";
+
+  private final String name;
+  private final URL url;
+  private final int batchSize;
+  private final int maxPending;
+  private final long flushIntervalNanos;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final Consumer<IOException> onFailure;
+  private final Thread thread;
+
+  private final Object lock = new Object();
+  private final ArrayDeque<Series> pending = new ArrayDeque<>();
+  private long oldestPendingNanos;
+  private boolean closing;
+
+  /**
+   * @param name        names the thread and labels the metrics, e.g. the identifier of the component
+   * @param url         the remote write endpoint, e.g. http://prometheus:9090/api/v1/write
+   * @param batchSize   the maximum number of samples per request
+   * @param maxPending  the maximum number of samples waiting to be sent
+   * @param onFailure   called on the sink thread when a request fails
+   */
+  public RemoteWriteSink(String name, String url, int batchSize, int maxPending, long flushInterval, TimeUnit unit,
+                         int connectTimeoutMillis, int readTimeoutMillis, Consumer<IOException> onFailure) throws IOException {
+    this.name = name;
+    this.url = new URL(url);
+    this.batchSize = batchSize;
+    this.maxPending = maxPending;
+    this.flushIntervalNanos = unit.toNanos(flushInterval);
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+    this.onFailure = onFailure;
+    this.thread = new Thread(this::run, "Prometheus remote write " + name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+    METRICS.sinks.put(name, this);
+  }
+
+  /**
+   * Buffers the samples of the families with the given labels, e.g. the job and instance, added unless a sample has
+   * a label of the same name.
+   *
+   * @param timestampMs the timestamp of the samples without one
+   * @return false if the buffer has no room for all samples and none was accepted
+   */
+  public boolean write(Enumeration<Collector.MetricFamilySamples> families, Map<String, String> labels, long timestampMs) {
+    final List<Series> series = new ArrayList<>();
+    while (families.hasMoreElements()) {
+      for (Collector.MetricFamilySamples.Sample sample : families.nextElement().samples) {
+        final Map<String, String> sorted = new TreeMap<>(labels);
+        for (int i = 0; i < sample.labelNames.size(); i++) {
+          sorted.put(sample.labelNames.get(i), sample.labelValues.get(i));
+        }
+        sorted.put(NAME_LABEL, sample.name);
+        final String[] pairs = new String[sorted.size() * 2];
+        int i = 0;
+        for (Map.Entry<String, String> label : sorted.entrySet()) {
+          pairs[i++] = label.getKey();
+          pairs[i++] = label.getValue();
+        }
+        series.add(new Series(pairs, sample.value, sample.timestampMs != null ? sample.timestampMs : timestampMs));
+      }
+    }
+
+    synchronized (lock) {
+      if (closing || pending.size() + series.size() > maxPending) {
+        METRICS.rejected.labels(name).inc(series.size());
+        return false;
+      }
+      if (pending.isEmpty()) {
+        oldestPendingNanos = System.nanoTime();
+      }
+      pending.addAll(series);
+      if (pending.size() >= batchSize) {
+        lock.notifyAll();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if at least one more sample would be accepted right now
+   */
+  public boolean hasCapacity() {
+    synchronized (lock) {
+      return pending.size() < maxPending;
+    }
+  }
+
+  /**
+   * @return the number of samples waiting to be sent
+   */
+  public int getPending() {
+    synchronized (lock) {
+      return pending.size();
+    }
+  }
+
+  private void run() {
+    while (true) {
+      final List<Series> batch;
+      synchronized (lock) {
+        try {
+          while (!closing && !isFlushDue()) {
+            if (pending.isEmpty()) {
+              lock.wait();
+            } else {
+              TimeUnit.NANOSECONDS.timedWait(lock, oldestPendingNanos + flushIntervalNanos - System.nanoTime());
+            }
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          closing = true;
+        }
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch = new ArrayList<>(Math.min(batchSize, pending.size()));
+        while (batch.size() < batchSize && !pending.isEmpty()) {
+          batch.add(pending.poll());
+        }
+        oldestPendingNanos = System.nanoTime();
+      }
+
+      final long start = System.nanoTime();
+      IOException failure = null;
+      try {
+        send(RemoteWriteEncoder.encode(batch));
+        METRICS.sent.labels(name).inc(batch.size());
+      } catch (IOException ioException) {
+        METRICS.failures.labels(name).inc();
+        failure = ioException;
+      } finally {
+        METRICS.latency.labels(name).observe((System.nanoTime() - start) / Collector.NANOSECONDS_PER_SECOND);
+      }
+      if (failure != null) {
+        onFailure.accept(failure);
+        retryOrDrop(batch, failure);
+      }
+    }
+  }
+
+  private boolean isFlushDue() {
+    return pending.size() >= batchSize
+        || (!pending.isEmpty() && System.nanoTime() - oldestPendingNanos >= flushIntervalNanos);
+  }
+
+  /**
+   * Puts a batch that may succeed later back in front of the buffer, dropping the oldest samples beyond its size,
+   * and waits for the flush interval before the next request.
+   */
+  private void retryOrDrop(List<Series> batch, IOException ioException) {
+    synchronized (lock) {
+      if (closing || ioException instanceof RejectedException) {
+        METRICS.dropped.labels(name).inc(batch.size());
+        return;
+      }
+      for (int i = batch.size() - 1; i >= 0; i--) {
+        pending.addFirst(batch.get(i));
+      }
+      int dropped = 0;
+      while (pending.size() > maxPending) {
+        pending.pollFirst();
+        dropped++;
+      }
+      METRICS.dropped.labels(name).inc(dropped);
+      oldestPendingNanos = System.nanoTime();
+      try {
+        final long deadline = System.nanoTime() + flushIntervalNanos;
+        long remaining;
+        while (!closing && (remaining = deadline - System.nanoTime()) > 0) {
+          TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        closing = true;
+      }
+    }
+  }
+
+  void send(byte[] request) throws IOException {
+    final byte[] body = Snappy.compress(request);
+    final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setFixedLengthStreamingMode(body.length);
+    connection.setRequestProperty("Content-Type", "application/x-protobuf");
+    connection.setRequestProperty("Content-Encoding", "snappy");
+    connection.setRequestProperty("X-Prometheus-Remote-Write-Version", "0.1.0");
+    connection.setConnectTimeout(connectTimeoutMillis);
+    connection.setReadTimeout(readTimeoutMillis);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(body);
+    }
+
+    final int response = connection.getResponseCode();
+    // the body has to be consumed completely, otherwise the connection cannot be reused
+    final String responseBody = KeepAlivePushGateway.readFully(
+        response >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream());
+    if (response / 100 == 2) {
+      return;
+    }
+    final String message = "Response code from " + url + " was " + response + ", response body: " + responseBody;
+    if (response / 100 == 4 && response != 429) {
+      throw new RejectedException(message);
+    }
+    throw new IOException(message);
+  }
+
+  /**
+   * Stops accepting samples and waits up to the given time for the buffered ones to be sent; a batch that fails now
+   * is dropped.
+   *
+   * @return true if all buffered samples were sent or dropped
+   */
+  public boolean close(long timeout, TimeUnit unit) {
+    synchronized (lock) {
+      closing = true;
+      lock.notifyAll();
+    }
+    try {
+      thread.join(Math.max(1, unit.toMillis(timeout)));
+      return !thread.isAlive();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } finally {
+      thread.interrupt();
+      METRICS.sinks.remove(name, this);
+      METRICS.latency.remove(name);
+      METRICS.sent.remove(name);
+      METRICS.dropped.remove(name);
+      METRICS.rejected.remove(name);
+      METRICS.failures.remove(name);
+    }
+  }
+
+  @Override
+  public void close() {
+    close(0, TimeUnit.MILLISECONDS);
+  }
+
+  private static final class SinkMetrics extends Collector {
+    private final Map<String, RemoteWriteSink> sinks = new ConcurrentHashMap<>();
+    private final Histogram latency = Histogram.build()
+        .name("nifi_prometheus_remote_write_duration_seconds")
+        .help("Time taken by the remote write requests")
+        .labelNames("sink")
+        .buckets(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30)
+        .create();
+    private final Counter sent = Counter.build()
+        .name("nifi_prometheus_remote_write_samples_total")
+        .help("Number of samples sent by remote write")
+        .labelNames("sink")
+        .create();
+    private final Counter dropped = Counter.build()
+        .name("nifi_prometheus_remote_write_dropped_samples_total")
+        .help("Number of buffered samples dropped after a failed remote write request")
+        .labelNames("sink")
+        .create();
+    private final Counter rejected = Counter.build()
+        .name("nifi_prometheus_remote_write_rejected_samples_total")
+        .help("Number of samples not accepted because the remote write buffer was full")
+        .labelNames("sink")
+        .create();
+    private final Counter failures = Counter.build()
+        .name("nifi_prometheus_remote_write_failures_total")
+        .help("Number of remote write requests that failed")
+        .labelNames("sink")
+        .create();
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      final List<MetricFamilySamples.Sample> pending = new ArrayList<>();
+      sinks.forEach((name, sink) -> pending.add(new MetricFamilySamples.Sample("nifi_prometheus_remote_write_pending_samples",
+          Collections.singletonList("sink"), Collections.singletonList(name), sink.getPending())));
+
+      final List<MetricFamilySamples> families = new ArrayList<>();
+      families.add(new MetricFamilySamples("nifi_prometheus_remote_write_pending_samples", Type.GAUGE,
+          "Number of samples waiting to be sent by remote write", pending));
+      families.addAll(latency.collect());
+      families.addAll(sent.collect());
+      families.addAll(dropped.collect());
+      families.addAll(rejected.collect());
+      families.addAll(failures.collect());
+      return families;
+    }
+  }
+}
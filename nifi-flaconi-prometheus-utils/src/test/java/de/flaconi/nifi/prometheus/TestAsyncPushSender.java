@@ -0,0 +1,77 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TestAsyncPushSender {
+
+  private static final String[] SENDER_LABEL = {"sender"};
+
+  @Test
+  public void testSubmitAppliesBackpressure() throws InterruptedException {
+    final AsyncPushSender sender = new AsyncPushSender("backpressure", 1, 1);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicReference<IOException> failure = new AtomicReference<>();
+
+    assertThat(sender.submit(() -> {
+      started.countDown();
+      awaitQuietly(release);
+    }, failure::set), is(true));
+    started.await();
+    assertThat(sender.submit(() -> {
+      throw new IOException("unavailable");
+    }, failure::set), is(true));
+    assertThat(sender.hasCapacity(), is(false));
+    assertThat(sender.submit(() -> {
+    }, failure::set), is(false));
+
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    final String[] labelValues = {"backpressure"};
+    assertThat(registry.getSampleValue("nifi_prometheus_push_queue_depth", SENDER_LABEL, labelValues), is(1.0));
+    assertThat(registry.getSampleValue("nifi_prometheus_push_rejected_total", SENDER_LABEL, labelValues), is(1.0));
+
+    release.countDown();
+    assertThat(sender.close(5, TimeUnit.SECONDS), is(true));
+
+    assertThat(failure.get(), instanceOf(IOException.class));
+    assertThat(registry.getSampleValue("nifi_prometheus_push_queue_depth", SENDER_LABEL, labelValues), nullValue());
+  }
+
+  @Test
+  public void testPushLatencyIsRecorded() throws InterruptedException {
+    final AsyncPushSender sender = new AsyncPushSender("latency", 10, 2);
+    final CountDownLatch pushed = new CountDownLatch(3);
+    for (int i = 0; i < 3; i++) {
+      sender.submit(pushed::countDown, e -> {
+      });
+    }
+    pushed.await(5, TimeUnit.SECONDS);
+
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    // the latency is observed right after the push returns
+    for (int i = 0; i < 100 && registry.getSampleValue("nifi_prometheus_push_duration_seconds_count", SENDER_LABEL, new String[]{"latency"}) < 3.0; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(registry.getSampleValue("nifi_prometheus_push_duration_seconds_count", SENDER_LABEL, new String[]{"latency"}), is(3.0));
+    sender.close();
+  }
+
+  private static void awaitQuietly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
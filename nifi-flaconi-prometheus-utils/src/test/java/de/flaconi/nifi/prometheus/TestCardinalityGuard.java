@@ -0,0 +1,85 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.arrayContaining;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TestCardinalityGuard {
+
+  private static final String[] GUARD_LABELS = {"guard", "metric"};
+
+  @Test
+  public void testAdmitsUpToTheLimit() {
+    final CardinalityGuard guard = new CardinalityGuard("drop", 2, CardinalityGuard.Action.DROP);
+
+    assertThat(guard.admit("metric", new String[]{"a"}), arrayContaining("a"));
+    assertThat(guard.admit("metric", new String[]{"b"}), arrayContaining("b"));
+    assertThat(guard.admit("metric", new String[]{"c"}), nullValue());
+    assertThat(guard.admit("metric", new String[]{"a"}), arrayContaining("a"));
+    // the limit applies per metric name
+    assertThat(guard.admit("other_metric", new String[]{"c"}), arrayContaining("c"));
+
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    assertThat(registry.getSampleValue("nifi_prometheus_label_cardinality", GUARD_LABELS, new String[]{"drop", "metric"}), is(3.0));
+    assertThat(registry.getSampleValue("nifi_prometheus_label_cardinality_limited_total", GUARD_LABELS,
+        new String[]{"drop", "metric"}), is(1.0));
+    guard.close();
+    assertThat(registry.getSampleValue("nifi_prometheus_label_cardinality", GUARD_LABELS, new String[]{"drop", "metric"}), nullValue());
+  }
+
+  @Test
+  public void testCollapsesToOther() {
+    final CardinalityGuard guard = new CardinalityGuard("collapse", 1, CardinalityGuard.Action.COLLAPSE);
+
+    assertThat(guard.admit("metric", new String[]{"a", "1"}), arrayContaining("a", "1"));
+    assertThat(guard.admit("metric", new String[]{"b", "2"}), arrayContaining(CardinalityGuard.OTHER, CardinalityGuard.OTHER));
+    guard.close();
+  }
+
+  @Test(expected = CardinalityGuard.LimitExceededException.class)
+  public void testFailsBeyondTheLimit() {
+    final CardinalityGuard guard = new CardinalityGuard("fail", 1, CardinalityGuard.Action.FAIL);
+    try {
+      guard.admit("metric", new String[]{"a"});
+      guard.admit("metric", new String[]{"b"});
+    } finally {
+      guard.close();
+    }
+  }
+
+  @Test
+  public void testLimitsTrackedMetricNames() {
+    final CardinalityGuard guard = new CardinalityGuard("names", 10, 2, CardinalityGuard.Action.COLLAPSE);
+
+    assertThat(guard.admit("metric_1", new String[]{"a"}), arrayContaining("a"));
+    assertThat(guard.admit("metric_2", new String[]{"a"}), arrayContaining("a"));
+    for (int i = 3; i < 100; i++) {
+      assertThat(guard.admit("metric_" + i, new String[]{"a"}), arrayContaining(CardinalityGuard.OTHER));
+    }
+    assertThat(guard.admit("metric_1", new String[]{"b"}), arrayContaining("b"));
+
+    // the untracked names are neither kept nor exported one by one
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    assertThat(guard.getObservedCardinality("metric_3"), is(0L));
+    assertThat(registry.getSampleValue("nifi_prometheus_label_cardinality", GUARD_LABELS, new String[]{"names", "metric_3"}), nullValue());
+    assertThat(registry.getSampleValue("nifi_prometheus_label_cardinality_limited_total", GUARD_LABELS,
+        new String[]{"names", CardinalityGuard.OTHER}), is(97.0));
+    guard.close();
+  }
+
+  @Test
+  public void testEstimatesLargeCardinality() {
+    final CardinalityGuard guard = new CardinalityGuard("estimate", 10, CardinalityGuard.Action.DROP);
+    for (int i = 0; i < 100000; i++) {
+      guard.admit("metric", new String[]{"app", Integer.toString(i)});
+    }
+
+    assertThat((double) guard.getObservedCardinality("metric"), closeTo(100000, 5000));
+    guard.close();
+  }
+}
@@ -0,0 +1,94 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.fail;
+
+public class TestCircuitBreaker {
+
+  private static final String[] BREAKER_LABELS = {"breaker", "endpoint"};
+
+  @Test
+  public void testOpensAfterTheThresholdAndRejectsWithoutCalling() throws IOException {
+    final CircuitBreaker breaker = new CircuitBreaker("threshold", 2, 1, 1, TimeUnit.MINUTES);
+    final AtomicInteger calls = new AtomicInteger();
+
+    breaker.call("gateway:9091", calls::incrementAndGet);
+    failing(breaker, "gateway:9091", calls);
+    assertThat(breaker.getState("gateway:9091"), is(CircuitBreaker.State.CLOSED));
+    failing(breaker, "gateway:9091", calls);
+    assertThat(breaker.getState("gateway:9091"), is(CircuitBreaker.State.OPEN));
+
+    try {
+      breaker.call("gateway:9091", calls::incrementAndGet);
+      fail("the open circuit let the push through");
+    } catch (CircuitBreaker.OpenException expected) {
+      assertThat(calls.get(), is(3));
+    }
+    // every endpoint has its own circuit
+    breaker.call("other:9091", calls::incrementAndGet);
+    assertThat(calls.get(), is(4));
+
+    final CollectorRegistry registry = CollectorRegistry.defaultRegistry;
+    assertThat(registry.getSampleValue("nifi_prometheus_push_circuit_state", BREAKER_LABELS,
+        new String[]{"threshold", "gateway:9091"}), is(1.0));
+    assertThat(registry.getSampleValue("nifi_prometheus_push_circuit_rejected_total", BREAKER_LABELS,
+        new String[]{"threshold", "gateway:9091"}), is(1.0));
+    // the counter family carries the same name as its samples
+    assertThat(Collections.list(registry.metricFamilySamples()).stream()
+        .anyMatch(family -> family.name.equals("nifi_prometheus_push_circuit_rejected_total")), is(true));
+    breaker.close();
+    assertThat(registry.getSampleValue("nifi_prometheus_push_circuit_state", BREAKER_LABELS,
+        new String[]{"threshold", "gateway:9091"}), nullValue());
+  }
+
+  @Test
+  public void testHalfOpenTrialClosesOrReopensTheCircuit() throws IOException, InterruptedException {
+    final CircuitBreaker breaker = new CircuitBreaker("trial", 1, 100, 1000, TimeUnit.MILLISECONDS);
+    final AtomicInteger calls = new AtomicInteger();
+
+    failing(breaker, "gateway:9091", calls);
+    Thread.sleep(130);
+    // the failed trial opens the circuit again, for 200 ms +- 20%
+    failing(breaker, "gateway:9091", calls);
+    assertThat(breaker.getState("gateway:9091"), is(CircuitBreaker.State.OPEN));
+    Thread.sleep(100);
+    try {
+      breaker.call("gateway:9091", calls::incrementAndGet);
+      fail("the open duration did not grow");
+    } catch (CircuitBreaker.OpenException expected) {
+      assertThat(calls.get(), is(2));
+    }
+
+    Thread.sleep(160);
+    breaker.call("gateway:9091", calls::incrementAndGet);
+    assertThat(breaker.getState("gateway:9091"), is(CircuitBreaker.State.CLOSED));
+    // the backoff starts over once the circuit closed
+    failing(breaker, "gateway:9091", calls);
+    Thread.sleep(130);
+    breaker.call("gateway:9091", calls::incrementAndGet);
+    assertThat(calls.get(), is(5));
+    breaker.close();
+  }
+
+  private static void failing(CircuitBreaker breaker, String endpoint, AtomicInteger calls) {
+    try {
+      breaker.call(endpoint, () -> {
+        calls.incrementAndGet();
+        throw new IOException("Connection refused");
+      });
+      fail("the failing push succeeded");
+    } catch (IOException expected) {
+      assertThat(expected instanceof CircuitBreaker.OpenException, is(false));
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package de.flaconi.nifi.prometheus;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.exporter.PushGateway;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.fail;
+
+public class TestKeepAlivePushGateway {
+
+  private HttpServer server;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+  private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<>());
+  private volatile int responseCode = 202;
+  private String address;
+
+  @Before
+  public void before() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", exchange -> {
+      requests.add(exchange.getRequestMethod() + " " + exchange.getRequestURI().getRawPath() + "\n" + read(exchange.getRequestBody()));
+      clientPorts.add(exchange.getRemoteAddress().getPort());
+      final byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(responseCode, body.length);
+      exchange.getResponseBody().write(body);
+      exchange.close();
+    });
+    server.start();
+    address = "localhost:" + server.getAddress().getPort();
+  }
+
+  @After
+  public void after() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testPushAddReusesConnection() throws IOException {
+    final KeepAlivePushGateway pushGateway = new KeepAlivePushGateway(address, 1000, 1000);
+    final CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name("metric").help("help").register(registry).set(42);
+
+    pushGateway.pushAdd(registry, "job", Collections.singletonMap("instance", "localhost"));
+    pushGateway.push(registry, "job", Collections.singletonMap("instance", "localhost"));
+    pushGateway.delete("job");
+
+    assertThat(requests, hasSize(3));
+    assertThat(requests.get(0), containsString("POST /metrics/job/job/instance/localhost\n"));
+    assertThat(requests.get(0), containsString("metric 42.0"));
+    assertThat(requests.get(1), containsString("PUT /metrics/job/job/instance/localhost\n"));
+    assertThat(requests.get(2), is("DELETE /metrics/job/job\n"));
+    assertThat(clientPorts.get(1), is(clientPorts.get(0)));
+    assertThat(clientPorts.get(2), is(clientPorts.get(0)));
+  }
+
+  @Test
+  public void testPushAddWithGzip() throws IOException {
+    final List<String> encodings = Collections.synchronizedList(new ArrayList<>());
+    server.createContext("/metrics/job/gzip", exchange -> {
+      encodings.add(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+      requests.add(read(new GZIPInputStream(exchange.getRequestBody())));
+      exchange.sendResponseHeaders(202, -1);
+      exchange.close();
+    });
+    final CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name("metric").help("help").register(registry).set(42);
+
+    new KeepAlivePushGateway(address, 1000, 1000, true).pushAdd(registry, "gzip");
+
+    assertThat(encodings, hasSize(1));
+    assertThat(encodings.get(0), is("gzip"));
+    assertThat(requests.get(0), containsString("metric 42.0"));
+  }
+
+  @Test(expected = IOException.class)
+  public void testPushAddWithErrorResponse() throws IOException {
+    responseCode = 500;
+
+    new KeepAlivePushGateway(address, 1000, 1000).pushAdd(new CollectorRegistry(), "job");
+  }
+
+  @Test
+  public void testUrlEncoding() throws IOException {
+    final KeepAlivePushGateway pushGateway = new KeepAlivePushGateway("localhost:9091", 1000, 1000);
+    final Map<String, String> groupingKey = new LinkedHashMap<>();
+    groupingKey.put("instance", "a b");
+    groupingKey.put("path", "/var");
+    groupingKey.put("empty", "");
+
+    assertThat(pushGateway.url("a/b", groupingKey),
+        is("http://localhost:9091/metrics/job@base64/YS9i/instance/a+b/path@base64/L3Zhcg==/empty@base64/="));
+  }
+
+  @Test
+  public void testPoolCreatesOneClientPerEndpoint() {
+    final PushGatewayPool pool = new PushGatewayPool((host, port) -> new KeepAlivePushGateway(host + ":" + port, 1000, 1000));
+
+    assertThat(pool.get("localhost", "9091"), sameInstance(pool.get("localhost", "9091")));
+    pool.get("localhost", "9092");
+    assertThat(pool.size(), is(2));
+
+    pool.close();
+    assertThat(pool.size(), is(0));
+  }
+
+  @Test
+  public void testPoolKeepsEvictedClientsOpenAndClosesRemainingClients() throws IOException {
+    final PushGatewayPool pool = new PushGatewayPool(1, (host, port) -> new KeepAlivePushGateway(host + ":" + port, 1000, 1000));
+    final CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name("metric").help("help").register(registry).set(42);
+    final String port = String.valueOf(server.getAddress().getPort());
+
+    final PushGateway evicted = pool.get("localhost", port);
+    evicted.pushAdd(registry, "job");
+    final PushGateway current = pool.get("127.0.0.1", port);
+    assertThat(pool.size(), is(1));
+    // a push that took the client before the eviction still goes through
+    evicted.pushAdd(registry, "job");
+
+    current.pushAdd(registry, "job");
+    pool.close();
+    assertClosed(current, registry);
+    assertThat(requests, hasSize(3));
+  }
+
+  private static void assertClosed(PushGateway pushGateway, CollectorRegistry registry) {
+    try {
+      pushGateway.pushAdd(registry, "job");
+      fail("push of a closed client succeeded");
+    } catch (IOException e) {
+      assertThat(e.getMessage(), containsString("closed"));
+    }
+  }
+
+    private static String read(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
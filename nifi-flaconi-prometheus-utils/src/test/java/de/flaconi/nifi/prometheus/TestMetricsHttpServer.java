@@ -0,0 +1,111 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TestMetricsHttpServer {
+
+  private ExportedMetrics metrics;
+  private MetricsHttpServer server;
+
+  @Before
+  public void before() throws IOException {
+    metrics = new ExportedMetrics(0);
+    final CollectorRegistry registry = new CollectorRegistry();
+    metrics.register(registry);
+    server = new MetricsHttpServer(new InetSocketAddress("localhost", 0), registry, 1);
+  }
+
+  @After
+  public void after() {
+    server.close();
+  }
+
+  @Test
+  public void testScrapeExposesGroupLabels() throws IOException {
+    metrics.update("job", Collections.singletonMap("instance", "a"), gauge("metric", 1).metricFamilySamples());
+    metrics.update("job", Collections.singletonMap("instance", "b"), gauge("metric", 2).metricFamilySamples());
+    metrics.update("job", Collections.singletonMap("instance", "a"), gauge("metric", 3).metricFamilySamples());
+
+    final HttpURLConnection connection = open();
+    final String body = read(connection.getInputStream());
+
+    assertThat(connection.getResponseCode(), is(200));
+    assertThat(connection.getHeaderField("Content-Encoding"), nullValue());
+    assertThat(body, containsString("metric{job=\"job\",instance=\"a\",} 3.0"));
+    assertThat(body, containsString("metric{job=\"job\",instance=\"b\",} 2.0"));
+    assertThat(body, not(containsString("1.0")));
+    // one family even though two groups wrote it
+    assertThat(body.indexOf("# TYPE metric gauge"), is(body.lastIndexOf("# TYPE metric gauge")));
+  }
+
+  @Test
+  public void testScrapeWithGzip() throws IOException {
+    metrics.update("job", Collections.emptyMap(), gauge("metric", 42).metricFamilySamples());
+
+    final HttpURLConnection connection = open();
+    connection.setRequestProperty("Accept-Encoding", "deflate, gzip");
+
+    assertThat(connection.getHeaderField("Content-Encoding"), is("gzip"));
+    assertThat(read(new GZIPInputStream(connection.getInputStream())), containsString("metric{job=\"job\",} 42.0"));
+  }
+
+  @Test
+  public void testScrapeWithRefusedGzip() throws IOException {
+    metrics.update("job", Collections.emptyMap(), gauge("metric", 42).metricFamilySamples());
+
+    final HttpURLConnection connection = open();
+    connection.setRequestProperty("Accept-Encoding", "gzip;q=0, identity");
+
+    assertThat(connection.getHeaderField("Content-Encoding"), nullValue());
+    assertThat(read(connection.getInputStream()), containsString("metric{job=\"job\",} 42.0"));
+  }
+
+  @Test
+  public void testExpiredGroupsAreNotCollected() throws InterruptedException {
+    final ExportedMetrics expiring = new ExportedMetrics(1_000_000L);
+    expiring.update("job", Collections.emptyMap(), gauge("metric", 42).metricFamilySamples());
+    Thread.sleep(5);
+
+    assertThat(expiring.collect().isEmpty(), is(true));
+  }
+
+  private HttpURLConnection open() throws IOException {
+    return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + "/metrics").openConnection();
+  }
+
+  private static CollectorRegistry gauge(String name, double value) {
+    final CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name(name).help("help").register(registry).set(value);
+    return registry;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
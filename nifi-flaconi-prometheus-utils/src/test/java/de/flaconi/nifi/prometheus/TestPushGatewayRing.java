@@ -0,0 +1,91 @@
+package de.flaconi.nifi.prometheus;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+
+public class TestPushGatewayRing {
+
+  private static final List<PushGatewayRing.Endpoint> ENDPOINTS = PushGatewayRing.parse("a:9091, b:9092,c", "9091");
+
+  @Test
+  public void testParse() {
+    assertThat(ENDPOINTS, contains(new PushGatewayRing.Endpoint("a", "9091"), new PushGatewayRing.Endpoint("b", "9092"),
+        new PushGatewayRing.Endpoint("c", "9091")));
+  }
+
+  @Test
+  public void testRoutesGroupsStablyAndEvenly() {
+    final PushGatewayRing ring = new PushGatewayRing(ENDPOINTS, 1000);
+    final Map<PushGatewayRing.Endpoint, Integer> counts = new HashMap<>();
+    for (int i = 0; i < 3000; i++) {
+      final PushGatewayRing.Endpoint endpoint = ring.route("job", Collections.singletonMap("instance", "host" + i));
+      assertThat(ring.route("job", Collections.singletonMap("instance", "host" + i)), is(endpoint));
+      counts.merge(endpoint, 1, Integer::sum);
+    }
+
+    for (PushGatewayRing.Endpoint endpoint : ENDPOINTS) {
+      assertThat(counts.get(endpoint), allOf(greaterThan(700), lessThan(1300)));
+    }
+  }
+
+  @Test
+  public void testGroupingKeyOrderDoesNotMatter() {
+    final PushGatewayRing ring = new PushGatewayRing(ENDPOINTS, 1000);
+    final Map<String, String> ab = new LinkedHashMap<>();
+    ab.put("a", "1");
+    ab.put("b", "2");
+    final Map<String, String> ba = new LinkedHashMap<>();
+    ba.put("b", "2");
+    ba.put("a", "1");
+
+    assertThat(ring.route("job", ab), is(ring.route("job", ba)));
+  }
+
+  @Test
+  public void testAddingAShardMovesOnlyItsGroups() {
+    final PushGatewayRing ring = new PushGatewayRing(ENDPOINTS, 1000);
+    final PushGatewayRing.Endpoint d = new PushGatewayRing.Endpoint("d", "9091");
+    final PushGatewayRing grown = new PushGatewayRing(Arrays.asList(ENDPOINTS.get(0), ENDPOINTS.get(1), ENDPOINTS.get(2), d), 1000);
+    for (int i = 0; i < 1000; i++) {
+      final Map<String, String> groupingKey = Collections.singletonMap("instance", "host" + i);
+      final PushGatewayRing.Endpoint after = grown.route("job", groupingKey);
+      if (!after.equals(d)) {
+        assertThat(after, is(ring.route("job", groupingKey)));
+      }
+    }
+  }
+
+  @Test
+  public void testFailsOverWhileAShardIsDown() throws InterruptedException {
+    final PushGatewayRing ring = new PushGatewayRing(ENDPOINTS, 50);
+    final Map<String, String> groupingKey = Collections.singletonMap("instance", "host");
+    final PushGatewayRing.Endpoint primary = ring.route("job", groupingKey);
+
+    ring.markFailed(primary);
+    final PushGatewayRing.Endpoint failover = ring.route("job", groupingKey);
+    assertThat(failover, not(primary));
+
+    // all down: the group stays on its shard
+    for (PushGatewayRing.Endpoint endpoint : ENDPOINTS) {
+      ring.markFailed(endpoint);
+    }
+    assertThat(ring.route("job", groupingKey), is(primary));
+
+    Thread.sleep(60);
+    assertThat(ring.route("job", groupingKey), is(primary));
+  }
+}
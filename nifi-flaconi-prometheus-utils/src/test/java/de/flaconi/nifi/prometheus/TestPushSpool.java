@@ -0,0 +1,133 @@
+package de.flaconi.nifi.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class TestPushSpool {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testReplaysInOrderAfterFailures() throws IOException, InterruptedException {
+    final List<Double> replayed = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger failures = new AtomicInteger(2);
+    final PushSpool spool = new PushSpool("order", temporaryFolder.newFolder(), 1024 * 1024, 10, 40, push -> {
+      if (failures.getAndDecrement() > 0) {
+        throw new IOException("unavailable");
+      }
+      assertThat(push.host, is("localhost"));
+      assertThat(push.groupingKey.get("instance"), is("a"));
+      replayed.add(push.toRegistry().getSampleValue("metric"));
+    });
+
+    for (int i = 1; i <= 3; i++) {
+      spool.append("localhost", "9091", "job", Collections.singletonMap("instance", "a"), registry(i).metricFamilySamples());
+    }
+    awaitEmpty(spool);
+    spool.close();
+
+    assertThat(replayed, contains(1.0, 2.0, 3.0));
+    assertThat(spool.getSizeBytes(), is(0L));
+  }
+
+  @Test
+  public void testDropsOldestSegmentWhenFull() throws IOException {
+    final byte[] record = PushSpool.serialize("localhost", "9091", "job", Collections.emptyMap(), registry(1).metricFamilySamples());
+    // room for four records, one per segment
+    final PushSpool spool = new PushSpool("full", temporaryFolder.newFolder(), 4 * (record.length + 8), 60000, 60000, push -> {
+      throw new IOException("unavailable");
+    });
+
+    for (int i = 1; i <= 6; i++) {
+      spool.append("localhost", "9091", "job", Collections.emptyMap(), registry(i).metricFamilySamples());
+    }
+
+    assertThat(spool.getDroppedSegments(), is(2L));
+    assertThat(spool.getSizeBytes(), is(4L * (record.length + 8)));
+    assertThat(CollectorRegistry.defaultRegistry.getSampleValue("nifi_prometheus_push_spool_bytes",
+        new String[]{"spool"}, new String[]{"full"}), is((double) spool.getSizeBytes()));
+    assertThat(CollectorRegistry.defaultRegistry.getSampleValue("nifi_prometheus_push_spool_dropped_segments_total",
+        new String[]{"spool"}, new String[]{"full"}), is(2.0));
+    assertThat(Collections.list(CollectorRegistry.defaultRegistry.metricFamilySamples()).stream()
+        .anyMatch(family -> family.name.equals("nifi_prometheus_push_spool_dropped_segments_total")), is(true));
+    spool.close();
+  }
+
+  @Test
+  public void testKeepsSegmentsAcrossRestart() throws IOException, InterruptedException {
+    final File directory = temporaryFolder.newFolder();
+    final PushSpool spool = new PushSpool("restart", directory, 1024 * 1024, 60000, 60000, push -> {
+      throw new IOException("unavailable");
+    });
+    spool.append("localhost", "9091", "job", Collections.emptyMap(), registry(42).metricFamilySamples());
+    spool.close();
+    assertThat(spool.getSizeBytes(), greaterThan(0L));
+
+    final List<Double> replayed = Collections.synchronizedList(new ArrayList<>());
+    final PushSpool reopened = new PushSpool("restart", directory, 1024 * 1024, 10, 10,
+        push -> replayed.add(push.toRegistry().getSampleValue("metric")));
+    awaitEmpty(reopened);
+    reopened.close();
+
+    assertThat(replayed, contains(42.0));
+  }
+
+  @Test
+  public void testTruncatesTornRecordOnOpen() throws IOException, InterruptedException {
+    final File directory = temporaryFolder.newFolder();
+    final PushSpool spool = new PushSpool("torn", directory, 1024 * 1024, 60000, 60000, push -> {
+      throw new IOException("unavailable");
+    });
+    spool.append("localhost", "9091", "job", Collections.emptyMap(), registry(42).metricFamilySamples());
+    spool.close();
+
+    // a crash in the middle of an append leaves the header and half of the next record
+    final byte[] record = PushSpool.serialize("localhost", "9091", "job", Collections.emptyMap(), registry(7).metricFamilySamples());
+    final ByteBuffer torn = ByteBuffer.allocate(8 + record.length / 2);
+    torn.putInt(record.length).putInt(0).put(record, 0, record.length / 2);
+    final File[] segments = directory.listFiles();
+    assertThat(segments.length, is(1));
+    Files.write(segments[0].toPath(), torn.array(), StandardOpenOption.APPEND);
+
+    final List<Double> replayed = Collections.synchronizedList(new ArrayList<>());
+    final PushSpool reopened = new PushSpool("torn", directory, 1024 * 1024, 10, 10,
+        push -> replayed.add(push.toRegistry().getSampleValue("metric")));
+    reopened.append("localhost", "9091", "job", Collections.emptyMap(), registry(43).metricFamilySamples());
+    awaitEmpty(reopened);
+    reopened.close();
+
+    assertThat(replayed, contains(42.0, 43.0));
+    assertThat(reopened.getDroppedSegments(), is(0L));
+  }
+
+  private static CollectorRegistry registry(double value) {
+    final CollectorRegistry registry = new CollectorRegistry();
+    Gauge.build().name("metric").help("help").register(registry).set(value);
+    return registry;
+  }
+
+  private static void awaitEmpty(PushSpool spool) throws InterruptedException {
+    for (int i = 0; i < 500 && !spool.isEmpty(); i++) {
+      Thread.sleep(10);
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package de.flaconi.nifi.prometheus;
+
+import com.sun.net.httpserver.HttpServer;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
+import org.iq80.snappy.Snappy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+public class TestRemoteWriteSink {
+
+  private HttpServer server;
+  private final List<List<String>> requests = new CopyOnWriteArrayList<>();
+  private final ConcurrentLinkedQueue<Integer> responses = new ConcurrentLinkedQueue<>();
+  private final List<IOException> failures = new CopyOnWriteArrayList<>();
+
+  @Before
+  public void before() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v1/write", exchange -> {
+      final byte[] body = readFully(exchange.getRequestBody());
+      final Integer status = responses.poll();
+      if (status == null || status / 100 == 2) {
+        assertThat(exchange.getRequestHeaders().getFirst("Content-Encoding"), is("snappy"));
+        assertThat(exchange.getRequestHeaders().getFirst("Content-Type"), is("application/x-protobuf"));
+        requests.add(decode(Snappy.uncompress(body, 0, body.length)));
+      }
+      exchange.sendResponseHeaders(status == null ? 204 : status, -1);
+      exchange.close();
+    });
+    server.start();
+  }
+
+  @After
+  public void after() {
+    server.stop(0);
+  }
+
+  @Test
+  public void testSendsFullBatchesAndFlushesTheRest() throws IOException, InterruptedException {
+    final RemoteWriteSink sink = sink("batches", 2, 100, 200);
+    final Map<String, String> labels = new LinkedHashMap<>();
+    labels.put("job", "nifi");
+    labels.put("instance", "host");
+
+    assertThat(sink.write(gauge(1, 2, 3).metricFamilySamples(), labels, 1000L), is(true));
+    awaitRequests(1);
+    assertThat(requests.get(0), contains(
+        "__name__=metric,instance=host,job=nifi,path=/0 1.0@1000",
+        "__name__=metric,instance=host,job=nifi,path=/1 2.0@1000"));
+
+    // the third sample waits for the flush interval
+    awaitRequests(2);
+    assertThat(requests.get(1), contains("__name__=metric,instance=host,job=nifi,path=/2 3.0@1000"));
+    assertThat(sink.close(1, TimeUnit.SECONDS), is(true));
+    assertThat(CollectorRegistry.defaultRegistry.getSampleValue("nifi_prometheus_remote_write_samples_total",
+        new String[]{"sink"}, new String[]{"batches"}), is((Double) null));
+  }
+
+  @Test
+  public void testRetriesServerErrorsAndDropsClientErrors() throws IOException, InterruptedException {
+    responses.add(503);
+    final RemoteWriteSink sink = sink("retries", 1, 100, 20);
+    sink.write(gauge(1).metricFamilySamples(), Collections.emptyMap(), 1L);
+    awaitRequests(1);
+    assertThat(requests.get(0), contains("__name__=metric,path=/0 1.0@1"));
+
+    responses.add(400);
+    sink.write(gauge(2).metricFamilySamples(), Collections.emptyMap(), 2L);
+    sink.write(gauge(3).metricFamilySamples(), Collections.emptyMap(), 3L);
+    awaitRequests(2);
+    sink.close(1, TimeUnit.SECONDS);
+
+    assertThat(requests, hasSize(2));
+    assertThat(requests.get(1), contains("__name__=metric,path=/0 3.0@3"));
+    assertThat(failures, hasSize(2));
+  }
+
+  @Test
+  public void testRejectsWritesWhenTheBufferIsFull() throws IOException {
+    final RemoteWriteSink sink = sink("full", 10, 3, 60000);
+
+    assertThat(sink.write(gauge(1, 2).metricFamilySamples(), Collections.emptyMap(), 1L), is(true));
+    assertThat(sink.write(gauge(3, 4).metricFamilySamples(), Collections.emptyMap(), 1L), is(false));
+    assertThat(sink.hasCapacity(), is(true));
+    assertThat(sink.getPending(), is(2));
+    assertThat(CollectorRegistry.defaultRegistry.getSampleValue("nifi_prometheus_remote_write_rejected_samples_total",
+        new String[]{"sink"}, new String[]{"full"}), is(2.0));
+    sink.close();
+  }
+
+  private RemoteWriteSink sink(String name, int batchSize, int maxPending, long flushIntervalMillis) throws IOException {
+    return new RemoteWriteSink(name, "http://localhost:" + server.getAddress().getPort() + "/api/v1/write", batchSize,
+        maxPending, flushIntervalMillis, TimeUnit.MILLISECONDS, 1000, 1000, failures::add);
+  }
+
+  private void awaitRequests(int count) throws InterruptedException {
+    for (int i = 0; i < 500 && requests.size() < count; i++) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static CollectorRegistry gauge(double... values) {
+    final CollectorRegistry registry = new CollectorRegistry();
+    final Gauge gauge = Gauge.build().name("metric").help("help").labelNames("path").register(registry);
+    for (int i = 0; i < values.length; i++) {
+      gauge.labels("/" + i).set(values[i]);
+    }
+    return registry;
+  }
+
+  /**
+   * @return every time series of the WriteRequest as "name=value,... sample@timestamp"
+   */
+  private static List<String> decode(byte[] request) {
+    final ByteBuffer buffer = ByteBuffer.wrap(request).order(ByteOrder.LITTLE_ENDIAN);
+    final List<String> series = new ArrayList<>();
+    while (buffer.hasRemaining()) {
+      assertThat(buffer.get(), is((byte) 0x0A));
+      final ByteBuffer timeSeries = slice(buffer);
+      final List<String> labels = new ArrayList<>();
+      String sample = null;
+      while (timeSeries.hasRemaining()) {
+        final byte tag = timeSeries.get();
+        final ByteBuffer message = slice(timeSeries);
+        if (tag == 0x0A) {
+          assertThat(message.get(), is((byte) 0x0A));
+          final String name = string(slice(message));
+          assertThat(message.get(), is((byte) 0x12));
+          labels.add(name + "=" + string(slice(message)));
+        } else {
+          assertThat(message.get(), is((byte) 0x09));
+          final double value = message.getDouble();
+          assertThat(message.get(), is((byte) 0x10));
+          sample = value + "@" + varint(message);
+        }
+      }
+      series.add(String.join(",", labels) + " " + sample);
+    }
+    return series;
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer) {
+    final int length = (int) varint(buffer);
+    final ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    slice.limit(length);
+    buffer.position(buffer.position() + length);
+    return slice;
+  }
+
+  private static long varint(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; ; shift += 7) {
+      final byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+
+  private static String string(ByteBuffer buffer) {
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[1024];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,194 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.Collector;
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Predicts which connections are about to apply back pressure. For every connection it keeps the queue sizes of the
+ * last reports in a ring buffer and exposes how full the queue is relative to its object and data size thresholds,
+ * its ingress and egress rates, and, by a linear regression over the buffered queue sizes, the estimated time until
+ * a threshold is reached. The samples carry the same labels as the {@link ComponentStatusCollector}; connections
+ * whose names the filter rejects are not tracked.
+ */
+final class BackpressurePredictor extends Collector {
+
+  private static final List<String> LABEL_NAMES = Arrays.asList("component_id", "component_name", "group_path", "component_type");
+  // the counts of the status are those of the last five minutes
+  private static final double STATUS_WINDOW_SECONDS = 300;
+
+  private final int maxDepth;
+  private final int capacity;
+  private final Predicate<String> componentFilter;
+  private final Map<String, History> histories = new HashMap<>();
+  private long update;
+
+  /**
+   * @param maxDepth the number of sub group levels whose connections are included
+   * @param capacity the number of queue sizes kept per connection for the prediction
+   * @param componentFilter decides by the name of a connection whether it is reported
+   */
+  BackpressurePredictor(int maxDepth, int capacity, Predicate<String> componentFilter) {
+    this.maxDepth = maxDepth;
+    this.capacity = Math.max(2, capacity);
+    this.componentFilter = componentFilter;
+  }
+
+  /**
+   * Adds the queue sizes of all connections in the status, and forgets the connections that are not in it anymore.
+   */
+  synchronized void update(ProcessGroupStatus status, long timeNanos) {
+    update++;
+    walk(status, status.getName(), 0, timeNanos);
+    histories.values().removeIf(history -> history.update != update);
+  }
+
+  private void walk(ProcessGroupStatus group, String path, int depth, long timeNanos) {
+    if (group.getConnectionStatus() != null) {
+      for (ConnectionStatus connection : group.getConnectionStatus()) {
+        if (!componentFilter.test(connection.getName() == null ? "" : connection.getName())) {
+          continue;
+        }
+        final History history = histories.computeIfAbsent(connection.getId(), id -> new History(capacity));
+        history.add(connection, path, timeNanos);
+        history.update = update;
+      }
+    }
+    if (depth < maxDepth && group.getProcessGroupStatus() != null) {
+      for (ProcessGroupStatus child : group.getProcessGroupStatus()) {
+        walk(child, path + "/" + child.getName(), depth + 1, timeNanos);
+      }
+    }
+  }
+
+  @Override
+  public synchronized List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples.Sample> objectRatios = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> bytesRatios = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> ingress = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> egress = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> predictions = new ArrayList<>();
+    for (History history : histories.values()) {
+      final List<String> labelValues = Arrays.asList(history.id, history.name, history.path, "connection");
+      if (history.objectThreshold > 0) {
+        objectRatios.add(new MetricFamilySamples.Sample("nifi_connection_backpressure_object_ratio", LABEL_NAMES,
+            labelValues, history.latest(history.counts) / history.objectThreshold));
+      }
+      if (history.bytesThreshold > 0) {
+        bytesRatios.add(new MetricFamilySamples.Sample("nifi_connection_backpressure_bytes_ratio", LABEL_NAMES,
+            labelValues, history.latest(history.bytes) / history.bytesThreshold));
+      }
+      ingress.add(new MetricFamilySamples.Sample("nifi_connection_ingress_flowfiles_per_second", LABEL_NAMES,
+          labelValues, history.inputCount / STATUS_WINDOW_SECONDS));
+      egress.add(new MetricFamilySamples.Sample("nifi_connection_egress_flowfiles_per_second", LABEL_NAMES,
+          labelValues, history.outputCount / STATUS_WINDOW_SECONDS));
+      if (history.size >= 2) {
+        predictions.add(new MetricFamilySamples.Sample("nifi_connection_backpressure_predicted_seconds", LABEL_NAMES,
+            labelValues, Math.min(history.secondsUntil(history.counts, history.objectThreshold),
+            history.secondsUntil(history.bytes, history.bytesThreshold))));
+      }
+    }
+
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    families.add(new MetricFamilySamples("nifi_connection_backpressure_object_ratio", Type.GAUGE,
+        "Queued FlowFiles relative to the back pressure object threshold", objectRatios));
+    families.add(new MetricFamilySamples("nifi_connection_backpressure_bytes_ratio", Type.GAUGE,
+        "Queued size relative to the back pressure data size threshold", bytesRatios));
+    families.add(new MetricFamilySamples("nifi_connection_ingress_flowfiles_per_second", Type.GAUGE,
+        "FlowFiles queued into the connection per second over the last five minutes", ingress));
+    families.add(new MetricFamilySamples("nifi_connection_egress_flowfiles_per_second", Type.GAUGE,
+        "FlowFiles taken from the connection per second over the last five minutes", egress));
+    families.add(new MetricFamilySamples("nifi_connection_backpressure_predicted_seconds", Type.GAUGE,
+        "Estimated time until the connection applies back pressure, +Inf if its queue is not growing", predictions));
+    return families;
+  }
+
+  /**
+   * The queue sizes of the last reports of one connection, oldest first from {@code next - size}.
+   */
+  private static final class History {
+    private final long[] times;
+    private final double[] counts;
+    private final double[] bytes;
+    private int next;
+    private int size;
+    private long update;
+
+    private String id;
+    private String name;
+    private String path;
+    private long objectThreshold;
+    private long bytesThreshold;
+    private int inputCount;
+    private int outputCount;
+
+    private History(int capacity) {
+      times = new long[capacity];
+      counts = new double[capacity];
+      bytes = new double[capacity];
+    }
+
+    private void add(ConnectionStatus connection, String path, long timeNanos) {
+      id = connection.getId();
+      name = connection.getName() == null ? "" : connection.getName();
+      this.path = path == null ? "" : path;
+      objectThreshold = connection.getBackPressureObjectThreshold();
+      bytesThreshold = connection.getBackPressureBytesThreshold();
+      inputCount = connection.getInputCount();
+      outputCount = connection.getOutputCount();
+
+      times[next] = timeNanos;
+      counts[next] = connection.getQueuedCount();
+      bytes[next] = connection.getQueuedBytes();
+      next = (next + 1) % times.length;
+      size = Math.min(size + 1, times.length);
+    }
+
+    private double latest(double[] values) {
+      return values[(next - 1 + values.length) % values.length];
+    }
+
+    /**
+     * @return the seconds until the values reach the threshold at the slope of their least squares line, 0 if they
+     * reached it already, +Inf without a threshold or if they are not growing
+     */
+    private double secondsUntil(double[] values, long threshold) {
+      if (threshold <= 0) {
+        return Double.POSITIVE_INFINITY;
+      }
+      final double latest = latest(values);
+      if (latest >= threshold) {
+        return 0;
+      }
+      final long origin = times[(next - 1 + times.length) % times.length];
+      double meanX = 0;
+      double meanY = 0;
+      for (int i = 0; i < size; i++) {
+        final int index = (next - 1 - i + times.length) % times.length;
+        meanX += (times[index] - origin) / NANOSECONDS_PER_SECOND;
+        meanY += values[index];
+      }
+      meanX /= size;
+      meanY /= size;
+      double covariance = 0;
+      double variance = 0;
+      for (int i = 0; i < size; i++) {
+        final int index = (next - 1 - i + times.length) % times.length;
+        final double x = (times[index] - origin) / NANOSECONDS_PER_SECOND - meanX;
+        covariance += x * (values[index] - meanY);
+        variance += x * x;
+      }
+      if (variance == 0 || covariance <= 0) {
+        return Double.POSITIVE_INFINITY;
+      }
+      return (threshold - latest) / (covariance / variance);
+    }
+  }
+}
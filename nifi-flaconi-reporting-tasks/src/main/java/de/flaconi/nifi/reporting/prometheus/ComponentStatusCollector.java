@@ -0,0 +1,209 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.Collector;
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.PortStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
+import org.apache.nifi.controller.status.RemoteProcessGroupStatus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Exposes the status of the processors, connections, ports and remote process groups of a process group and its
+ * sub groups as labelled gauges, one family per status value, instead of the flat, pre-named metrics of the
+ * MetricsService. Every sample is labelled with the id, name and type of the component and the path of names of the
+ * process groups it is in. The counts and sizes are those of the status, i.e. of the last five minutes. Components
+ * whose names the filter rejects are left out.
+ */
+final class ComponentStatusCollector extends Collector {
+
+  private static final List<String> LABEL_NAMES = Arrays.asList("component_id", "component_name", "group_path", "component_type");
+
+  private static final List<Metric<ProcessorStatus>> PROCESSOR_METRICS = Arrays.asList(
+      new Metric<>("nifi_processor_input_flowfiles", "FlowFiles the processor took from its queues",
+          ProcessorStatus::getInputCount),
+      new Metric<>("nifi_processor_input_bytes", "Size of the FlowFiles the processor took from its queues",
+          ProcessorStatus::getInputBytes),
+      new Metric<>("nifi_processor_output_flowfiles", "FlowFiles the processor transferred",
+          ProcessorStatus::getOutputCount),
+      new Metric<>("nifi_processor_output_bytes", "Size of the FlowFiles the processor transferred",
+          ProcessorStatus::getOutputBytes),
+      new Metric<>("nifi_processor_read_bytes", "Bytes the processor read from the content repository",
+          ProcessorStatus::getBytesRead),
+      new Metric<>("nifi_processor_written_bytes", "Bytes the processor wrote to the content repository",
+          ProcessorStatus::getBytesWritten),
+      new Metric<>("nifi_processor_invocations", "Number of times the processor was triggered",
+          ProcessorStatus::getInvocations),
+      new Metric<>("nifi_processor_processing_seconds", "Time the processor spent processing",
+          status -> status.getProcessingNanos() / NANOSECONDS_PER_SECOND),
+      new Metric<>("nifi_processor_active_threads", "Threads currently running the processor",
+          ProcessorStatus::getActiveThreadCount));
+
+  private static final List<Metric<ConnectionStatus>> CONNECTION_METRICS = Arrays.asList(
+      new Metric<>("nifi_connection_queued_flowfiles", "FlowFiles queued in the connection",
+          ConnectionStatus::getQueuedCount),
+      new Metric<>("nifi_connection_queued_bytes", "Size of the FlowFiles queued in the connection",
+          ConnectionStatus::getQueuedBytes),
+      new Metric<>("nifi_connection_input_flowfiles", "FlowFiles queued into the connection",
+          ConnectionStatus::getInputCount),
+      new Metric<>("nifi_connection_output_flowfiles", "FlowFiles taken from the connection",
+          ConnectionStatus::getOutputCount),
+      new Metric<>("nifi_connection_backpressure_object_threshold", "Queued FlowFiles at which back pressure is applied",
+          ConnectionStatus::getBackPressureObjectThreshold),
+      new Metric<>("nifi_connection_backpressure_bytes_threshold", "Queued size at which back pressure is applied",
+          ConnectionStatus::getBackPressureBytesThreshold));
+
+  private static final List<Metric<PortStatus>> PORT_METRICS = Arrays.asList(
+      new Metric<>("nifi_port_input_flowfiles", "FlowFiles the port received", PortStatus::getInputCount),
+      new Metric<>("nifi_port_input_bytes", "Size of the FlowFiles the port received", PortStatus::getInputBytes),
+      new Metric<>("nifi_port_output_flowfiles", "FlowFiles the port transferred", PortStatus::getOutputCount),
+      new Metric<>("nifi_port_output_bytes", "Size of the FlowFiles the port transferred", PortStatus::getOutputBytes),
+      new Metric<>("nifi_port_active_threads", "Threads currently running the port",
+          status -> value(status.getActiveThreadCount())));
+
+  private static final List<Metric<RemoteProcessGroupStatus>> REMOTE_PROCESS_GROUP_METRICS = Arrays.asList(
+      new Metric<>("nifi_remote_process_group_sent_flowfiles", "FlowFiles sent to the remote instance",
+          status -> value(status.getSentCount())),
+      new Metric<>("nifi_remote_process_group_sent_bytes", "Size of the FlowFiles sent to the remote instance",
+          status -> value(status.getSentContentSize())),
+      new Metric<>("nifi_remote_process_group_received_flowfiles", "FlowFiles received from the remote instance",
+          status -> value(status.getReceivedCount())),
+      new Metric<>("nifi_remote_process_group_received_bytes", "Size of the FlowFiles received from the remote instance",
+          status -> value(status.getReceivedContentSize())),
+      new Metric<>("nifi_remote_process_group_active_threads", "Threads currently communicating with the remote instance",
+          status -> value(status.getActiveThreadCount())),
+      new Metric<>("nifi_remote_process_group_active_remote_ports", "Remote ports that are transmitting",
+          status -> value(status.getActiveRemotePortCount())));
+
+  private final int maxDepth;
+  private final Predicate<String> componentFilter;
+  private volatile ProcessGroupStatus status;
+
+  /**
+   * @param maxDepth the number of sub group levels whose components are included; 0 includes only the components
+   *                 of the group itself
+   * @param componentFilter decides by the name of a component whether it is reported
+   */
+  ComponentStatusCollector(int maxDepth, Predicate<String> componentFilter) {
+    this.maxDepth = maxDepth;
+    this.componentFilter = componentFilter;
+  }
+
+  /**
+   * Replaces the status the next collection reports.
+   */
+  void setStatus(ProcessGroupStatus status) {
+    this.status = status;
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final ProcessGroupStatus status = this.status;
+    if (status == null) {
+      return new ArrayList<>();
+    }
+    final Families<ProcessorStatus> processors = new Families<>(PROCESSOR_METRICS, componentFilter);
+    final Families<ConnectionStatus> connections = new Families<>(CONNECTION_METRICS, componentFilter);
+    final Families<PortStatus> ports = new Families<>(PORT_METRICS, componentFilter);
+    final Families<RemoteProcessGroupStatus> remoteProcessGroups = new Families<>(REMOTE_PROCESS_GROUP_METRICS, componentFilter);
+    walk(status, status.getName(), 0, processors, connections, ports, remoteProcessGroups);
+
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    processors.addTo(families);
+    connections.addTo(families);
+    ports.addTo(families);
+    remoteProcessGroups.addTo(families);
+    return families;
+  }
+
+  private void walk(ProcessGroupStatus group, String path, int depth, Families<ProcessorStatus> processors,
+                    Families<ConnectionStatus> connections, Families<PortStatus> ports,
+                    Families<RemoteProcessGroupStatus> remoteProcessGroups) {
+    for (ProcessorStatus processor : nonNull(group.getProcessorStatus())) {
+      processors.add(processor, processor.getId(), processor.getName(), path, processor.getType());
+    }
+    for (ConnectionStatus connection : nonNull(group.getConnectionStatus())) {
+      connections.add(connection, connection.getId(), connection.getName(), path, "connection");
+    }
+    for (PortStatus port : nonNull(group.getInputPortStatus())) {
+      ports.add(port, port.getId(), port.getName(), path, "input_port");
+    }
+    for (PortStatus port : nonNull(group.getOutputPortStatus())) {
+      ports.add(port, port.getId(), port.getName(), path, "output_port");
+    }
+    for (RemoteProcessGroupStatus remoteProcessGroup : nonNull(group.getRemoteProcessGroupStatus())) {
+      remoteProcessGroups.add(remoteProcessGroup, remoteProcessGroup.getId(), remoteProcessGroup.getName(), path,
+          "remote_process_group");
+    }
+    if (depth < maxDepth) {
+      for (ProcessGroupStatus child : nonNull(group.getProcessGroupStatus())) {
+        walk(child, path + "/" + child.getName(), depth + 1, processors, connections, ports, remoteProcessGroups);
+      }
+    }
+  }
+
+  private static <T> Collection<T> nonNull(Collection<T> collection) {
+    return collection == null ? new ArrayList<>() : collection;
+  }
+
+  private static double value(Number number) {
+    return number == null ? 0 : number.doubleValue();
+  }
+
+  private static final class Metric<T> {
+    private final String name;
+    private final String help;
+    private final ToDoubleFunction<T> value;
+
+    private Metric(String name, String help, ToDoubleFunction<T> value) {
+      this.name = name;
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  /**
+   * The samples of one kind of component, one list per metric.
+   */
+  private static final class Families<T> {
+    private final List<Metric<T>> metrics;
+    private final Predicate<String> filter;
+    private final List<List<MetricFamilySamples.Sample>> samples = new ArrayList<>();
+
+    private Families(List<Metric<T>> metrics, Predicate<String> filter) {
+      this.metrics = metrics;
+      this.filter = filter;
+      for (int i = 0; i < metrics.size(); i++) {
+        samples.add(new ArrayList<>());
+      }
+    }
+
+    private void add(T status, String id, String name, String path, String type) {
+      if (!filter.test(name == null ? "" : name)) {
+        return;
+      }
+      final List<String> labelValues = Arrays.asList(id, name == null ? "" : name, path == null ? "" : path,
+          type == null ? "" : type);
+      for (int i = 0; i < metrics.size(); i++) {
+        final Metric<T> metric = metrics.get(i);
+        samples.get(i).add(new MetricFamilySamples.Sample(metric.name, LABEL_NAMES, labelValues,
+            metric.value.applyAsDouble(status)));
+      }
+    }
+
+    private void addTo(List<MetricFamilySamples> families) {
+      for (int i = 0; i < metrics.size(); i++) {
+        if (!samples.get(i).isEmpty()) {
+          final Metric<T> metric = metrics.get(i);
+          families.add(new MetricFamilySamples(metric.name, Type.GAUGE, metric.help, samples.get(i)));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the last pushed samples of every metric family, so that a report only pushes the families that changed.
+ * <p>
+ * A pushAdd replaces all series of a pushed family on the Pushgateway, so a family is pushed completely as soon as one
+ * of its samples changed, appeared or disappeared, and not at all otherwise. Families that are not reported anymore
+ * stay on the Pushgateway until the next full resync, which replaces the whole group.
+ */
+final class DeltaTracker {
+
+  private final long resyncIntervalNanos;
+  private final Map<String, Map<List<Object>, Double>> pushed = new HashMap<>();
+  private long lastResyncNanos;
+  private boolean resynced;
+
+  DeltaTracker(long resyncIntervalNanos) {
+    this.resyncIntervalNanos = resyncIntervalNanos;
+  }
+
+  /**
+   * @return true if all families have to be pushed to replace the group, which is the case for the first push
+   */
+  synchronized boolean isResyncDue() {
+    return !resynced || System.nanoTime() - lastResyncNanos >= resyncIntervalNanos;
+  }
+
+  /**
+   * @return the families with at least one sample that differs from the last pushed ones
+   */
+  synchronized List<MetricFamilySamples> changed(List<MetricFamilySamples> families) {
+    final List<MetricFamilySamples> changed = new ArrayList<>();
+    for (MetricFamilySamples family : families) {
+      final Map<List<Object>, Double> last = pushed.get(family.name);
+      if (last == null || last.size() != family.samples.size()) {
+        changed.add(family);
+        continue;
+      }
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        final Double value = last.get(key(sample));
+        if (value == null || Double.compare(value, sample.value) != 0) {
+          changed.add(family);
+          break;
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Records the families as pushed; after a full resync only the given families are remembered.
+   */
+  synchronized void record(List<MetricFamilySamples> families, boolean resync) {
+    if (resync) {
+      pushed.clear();
+      lastResyncNanos = System.nanoTime();
+      resynced = true;
+    }
+    for (MetricFamilySamples family : families) {
+      final Map<List<Object>, Double> samples = new HashMap<>();
+      for (MetricFamilySamples.Sample sample : family.samples) {
+        samples.put(key(sample), sample.value);
+      }
+      pushed.put(family.name, samples);
+    }
+  }
+
+  private static List<Object> key(MetricFamilySamples.Sample sample) {
+    return Arrays.asList(sample.name, sample.labelValues);
+  }
+}
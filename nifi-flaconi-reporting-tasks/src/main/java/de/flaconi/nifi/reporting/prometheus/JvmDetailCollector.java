@@ -0,0 +1,186 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Closeable;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instruments the garbage collection and memory of the JVM in more detail than the JmxJvmMetrics snapshot. Pauses,
+ * allocation and promotion are taken from the notifications the collectors send at the end of every collection, so
+ * nothing is polled for them; the usage of the memory pools after their last collection, the buffer pools and the
+ * thread states are read when the metrics are collected.
+ * <p>
+ * The allocated bytes are the growth of the young generation between two collections, the promoted bytes the growth of
+ * the old generation during a collection, as far as the collectors in use have such pools.
+ */
+final class JvmDetailCollector extends Collector implements Closeable {
+
+  private static final String MAJOR_GC = "end of major GC";
+
+  private final Histogram pauses = Histogram.build()
+      .name("jvm_gc_pause_seconds")
+      .help("Duration of the garbage collections")
+      .labelNames("gc", "action")
+      .buckets(0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10)
+      .create();
+  private final Counter allocated = Counter.build()
+      .name("jvm_gc_memory_allocated_bytes_total")
+      .help("Bytes allocated in the young generation between garbage collections")
+      .create();
+  private final Counter promoted = Counter.build()
+      .name("jvm_gc_memory_promoted_bytes_total")
+      .help("Bytes promoted to the old generation by garbage collections")
+      .create();
+
+  private final List<NotificationEmitter> emitters = new ArrayList<>();
+  private final NotificationListener listener = this::handleNotification;
+  private final List<MemoryPoolMXBean> memoryPools = ManagementFactory.getMemoryPoolMXBeans();
+  private final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+  private final String youngPool;
+  private final String oldPool;
+
+  private long youngUsedAfterLastGc;
+  private double liveDataSize = Double.NaN;
+
+  JvmDetailCollector() {
+    String young = null;
+    String old = null;
+    for (MemoryPoolMXBean pool : memoryPools) {
+      if (pool.getName().endsWith("Eden Space")) {
+        young = pool.getName();
+      } else if (pool.getName().endsWith("Old Gen") || pool.getName().endsWith("Tenured Gen")) {
+        old = pool.getName();
+      }
+    }
+    this.youngPool = young;
+    this.oldPool = old;
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gc instanceof NotificationEmitter) {
+        final NotificationEmitter emitter = (NotificationEmitter) gc;
+        emitter.addNotificationListener(listener, notification ->
+            GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()), null);
+        emitters.add(emitter);
+      }
+    }
+  }
+
+  private void handleNotification(Notification notification, Object handback) {
+    final GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+    pauses.labels(info.getGcName(), info.getGcAction()).observe(info.getGcInfo().getDuration() / 1000.0);
+
+    final Map<String, MemoryUsage> before = info.getGcInfo().getMemoryUsageBeforeGc();
+    final Map<String, MemoryUsage> after = info.getGcInfo().getMemoryUsageAfterGc();
+    synchronized (this) {
+      if (youngPool != null && before.containsKey(youngPool) && after.containsKey(youngPool)) {
+        allocated.inc(Math.max(0, before.get(youngPool).getUsed() - youngUsedAfterLastGc));
+        youngUsedAfterLastGc = after.get(youngPool).getUsed();
+      }
+      if (oldPool != null && before.containsKey(oldPool) && after.containsKey(oldPool)) {
+        final long oldBefore = before.get(oldPool).getUsed();
+        final long oldAfter = after.get(oldPool).getUsed();
+        if (oldAfter > oldBefore) {
+          promoted.inc(oldAfter - oldBefore);
+        }
+        if (oldAfter < oldBefore || MAJOR_GC.equals(info.getGcAction())) {
+          liveDataSize = oldAfter;
+        }
+      }
+    }
+  }
+
+  @Override
+  public List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    families.addAll(pauses.collect());
+    families.addAll(allocated.collect());
+    families.addAll(promoted.collect());
+    synchronized (this) {
+      if (!Double.isNaN(liveDataSize)) {
+        families.add(new MetricFamilySamples("jvm_gc_live_data_size_bytes", Type.GAUGE,
+            "Size of the old generation after its last reduction by a garbage collection", Collections.singletonList(
+            new MetricFamilySamples.Sample("jvm_gc_live_data_size_bytes", Collections.emptyList(), Collections.emptyList(), liveDataSize))));
+      }
+    }
+
+    final List<String> poolLabel = Collections.singletonList("pool");
+    final List<MetricFamilySamples.Sample> collectionUsed = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> collectionMax = new ArrayList<>();
+    for (MemoryPoolMXBean pool : memoryPools) {
+      final MemoryUsage usage = pool.getCollectionUsage();
+      if (usage != null) {
+        final List<String> labelValues = Collections.singletonList(pool.getName());
+        collectionUsed.add(new MetricFamilySamples.Sample("jvm_memory_pool_collection_used_bytes", poolLabel, labelValues, usage.getUsed()));
+        collectionMax.add(new MetricFamilySamples.Sample("jvm_memory_pool_collection_max_bytes", poolLabel, labelValues, usage.getMax()));
+      }
+    }
+    families.add(new MetricFamilySamples("jvm_memory_pool_collection_used_bytes", Type.GAUGE,
+        "Used bytes of the memory pool after its last garbage collection", collectionUsed));
+    families.add(new MetricFamilySamples("jvm_memory_pool_collection_max_bytes", Type.GAUGE,
+        "Maximum bytes of the memory pool after its last garbage collection, -1 if undefined", collectionMax));
+
+    final List<MetricFamilySamples.Sample> bufferUsed = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> bufferCapacity = new ArrayList<>();
+    final List<MetricFamilySamples.Sample> bufferCount = new ArrayList<>();
+    for (BufferPoolMXBean pool : bufferPools) {
+      final List<String> labelValues = Collections.singletonList(pool.getName());
+      bufferUsed.add(new MetricFamilySamples.Sample("jvm_buffer_pool_used_bytes", poolLabel, labelValues, pool.getMemoryUsed()));
+      bufferCapacity.add(new MetricFamilySamples.Sample("jvm_buffer_pool_capacity_bytes", poolLabel, labelValues, pool.getTotalCapacity()));
+      bufferCount.add(new MetricFamilySamples.Sample("jvm_buffer_pool_buffers", poolLabel, labelValues, pool.getCount()));
+    }
+    families.add(new MetricFamilySamples("jvm_buffer_pool_used_bytes", Type.GAUGE,
+        "Memory used by the direct or mapped buffers of the pool", bufferUsed));
+    families.add(new MetricFamilySamples("jvm_buffer_pool_capacity_bytes", Type.GAUGE,
+        "Total capacity of the direct or mapped buffers of the pool", bufferCapacity));
+    families.add(new MetricFamilySamples("jvm_buffer_pool_buffers", Type.GAUGE,
+        "Number of direct or mapped buffers in the pool", bufferCount));
+
+    final Map<Thread.State, Integer> states = new EnumMap<>(Thread.State.class);
+    for (Thread.State state : Thread.State.values()) {
+      states.put(state, 0);
+    }
+    for (ThreadInfo thread : threads.getThreadInfo(threads.getAllThreadIds(), 0)) {
+      if (thread != null) {
+        states.merge(thread.getThreadState(), 1, Integer::sum);
+      }
+    }
+    final List<MetricFamilySamples.Sample> threadStates = new ArrayList<>();
+    states.forEach((state, count) -> threadStates.add(new MetricFamilySamples.Sample("jvm_threads_state",
+        Collections.singletonList("state"), Collections.singletonList(state.name()), count)));
+    families.add(new MetricFamilySamples("jvm_threads_state", Type.GAUGE, "Number of JVM threads per state", threadStates));
+    return families;
+  }
+
+  @Override
+  public void close() {
+    for (NotificationEmitter emitter : emitters) {
+      try {
+        emitter.removeNotificationListener(listener);
+      } catch (ListenerNotFoundException e) {
+        // already removed
+      }
+    }
+    emitters.clear();
+  }
+}
@@ -0,0 +1,55 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Decides by an include and an exclude regular expression whether a metric or component name is reported. A name is
+ * reported if it matches the include pattern, if any, and does not match the exclude pattern, if any. The patterns are
+ * compiled once and the decision per name is cached, since the same names are tested on every report; the cache is
+ * cleared when it grows beyond a bound, e.g. when component names keep changing.
+ */
+final class NameFilter implements Predicate<String> {
+
+  static final NameFilter ALL = new NameFilter(null, null);
+
+  private static final int MAX_CACHED_DECISIONS = 10000;
+
+  private final Pattern include;
+  private final Pattern exclude;
+  private final Map<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+  /**
+   * @param include the pattern the whole name has to match, or null to include all names
+   * @param exclude the pattern of the names to leave out, or null to exclude none
+   */
+  NameFilter(String include, String exclude) {
+    this.include = include == null ? null : Pattern.compile(include);
+    this.exclude = exclude == null ? null : Pattern.compile(exclude);
+  }
+
+  /**
+   * @return true if every name is reported, so the filter can be skipped
+   */
+  boolean acceptsAll() {
+    return include == null && exclude == null;
+  }
+
+  @Override
+  public boolean test(String name) {
+    if (acceptsAll()) {
+      return true;
+    }
+    Boolean decision = decisions.get(name);
+    if (decision == null) {
+      decision = (include == null || include.matcher(name).matches()) && (exclude == null || !exclude.matcher(name).matches());
+      if (decisions.size() >= MAX_CACHED_DECISIONS) {
+        decisions.clear();
+      }
+      decisions.put(name, decision);
+    }
+    return decision;
+  }
+}
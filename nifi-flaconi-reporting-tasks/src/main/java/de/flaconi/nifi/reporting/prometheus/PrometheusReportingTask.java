@@ -1,5 +1,11 @@
 package de.flaconi.nifi.reporting.prometheus;
 
+import de.flaconi.nifi.prometheus.AsyncPushSender;
+import de.flaconi.nifi.prometheus.KeepAlivePushGateway;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import de.flaconi.nifi.prometheus.PushGatewayRing;
+import de.flaconi.nifi.prometheus.PushSpool;
+import de.flaconi.nifi.prometheus.RemoteWriteSink;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.Gauge;
@@ -7,29 +13,38 @@ import io.prometheus.client.exporter.PushGateway;
 import org.apache.nifi.annotation.configuration.DefaultSchedule;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
 import org.apache.nifi.controller.status.ProcessGroupStatus;
 import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.metrics.jvm.JmxJvmMetrics;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.reporting.AbstractReportingTask;
+import org.apache.nifi.reporting.EventAccess;
 import org.apache.nifi.reporting.ReportingContext;
 import org.apache.nifi.reporting.util.metrics.MetricsService;
 import org.apache.nifi.scheduling.SchedulingStrategy;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 @Tags({"reporting", "prometheus", "metrics"})
-@CapabilityDescription("Publishes metrics from NiFi to Prometheus Push Gateway")
+@CapabilityDescription("Publishes metrics from NiFi to Prometheus Push Gateway, a Prometheus remote write endpoint "
+    + "or the /metrics endpoint of a Prometheus Exporter Service")
 @DefaultSchedule(strategy = SchedulingStrategy.TIMER_DRIVEN, period = "1 min")
 public class PrometheusReportingTask extends AbstractReportingTask {
 
   static final PropertyDescriptor PUSHGATEWAY_HOSTNAME = new PropertyDescriptor.Builder()
       .name("Pushgateway hostname")
-      .description("Hostname or ip address of the Prometheus Pushgateway")
+      .description("Hostname or ip address of the Prometheus Pushgateway; not used when the metrics are written "
+          + "into a Prometheus Exporter Service")
       .required(true)
       .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
       .addValidator(StandardValidators.ATTRIBUTE_EXPRESSION_LANGUAGE_VALIDATOR)
@@ -72,6 +87,16 @@ public class PrometheusReportingTask extends AbstractReportingTask {
       .allowableValues("true", "false")
       .build();
 
+  static final PropertyDescriptor INCLUDE_JVM_DETAIL_METRICS = new PropertyDescriptor.Builder()
+      .name("Include Detailed Jvm Metrics")
+      .description("Includes labelled garbage collection pause histograms, allocation and promotion rates, the usage "
+          + "of the memory pools after garbage collection, the direct and mapped buffer pools and the thread states. "
+          + "The garbage collection metrics are taken from the notifications of the garbage collectors.")
+      .required(false)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
   static final PropertyDescriptor INCLUDE_STATUS_METRICS = new PropertyDescriptor.Builder()
       .name("Include processor group Metrics")
       .description("Includes the processor group metrics in the report.")
@@ -80,6 +105,101 @@ public class PrometheusReportingTask extends AbstractReportingTask {
       .allowableValues("true", "false")
       .build();
 
+  static final PropertyDescriptor INCLUDE_BUNDLE_METRICS = new PropertyDescriptor.Builder()
+      .name("Include Bundle Metrics")
+      .description("Includes the metrics the components of this bundle record in the shared in-JVM registry, "
+          + "e.g. the throughput and latency of ConvertJSONToSQL.")
+      .required(false)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor INCLUDE_COMPONENT_METRICS = new PropertyDescriptor.Builder()
+      .name("Include Component Metrics")
+      .description("Includes the status of every processor, connection, port and remote process group of the process "
+          + "group and its sub groups, as gauges labelled with the component id, name and type and the path of the "
+          + "process group, e.g. nifi_processor_processing_seconds or nifi_connection_queued_flowfiles.")
+      .required(false)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor COMPONENT_METRICS_DEPTH = new PropertyDescriptor.Builder()
+      .name("Component Metrics Depth")
+      .description("The number of levels of sub groups whose components are included in the component metrics and "
+          + "the back pressure predictions; 0 includes only the components of the process group itself")
+      .required(true)
+      .defaultValue("5")
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor INCLUDE_BACKPRESSURE_PREDICTION = new PropertyDescriptor.Builder()
+      .name("Include Backpressure Prediction")
+      .description("Includes, for every connection, how full its queue is relative to the back pressure thresholds, "
+          + "its ingress and egress rates and the estimated time until it applies back pressure, derived from the "
+          + "queue sizes of the last reports.")
+      .required(false)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor BACKPRESSURE_PREDICTION_SAMPLES = new PropertyDescriptor.Builder()
+      .name("Backpressure Prediction Samples")
+      .description("The number of reports whose queue sizes are kept per connection to predict the time until back "
+          + "pressure")
+      .required(true)
+      .defaultValue("10")
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.createLongValidator(2, 1000, true))
+      .build();
+
+  static final PropertyDescriptor SAMPLING_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Sampling Interval")
+      .description("If set, the JVM heap, threads and load and the active threads and queued FlowFiles of the process "
+          + "group are sampled at this interval, e.g. 500 ms, between two reports, and every report includes the "
+          + "minimum, maximum, average and 99th percentile of the samples as nifi_sampled_* gauges.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_NAME_INCLUDE = new PropertyDescriptor.Builder()
+      .name("Metric Name Include Pattern")
+      .description("If set, only the metrics whose whole name, as reported to Prometheus, matches this regular "
+          + "expression are reported, e.g. jvm_.*|nifi_connection_.*")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor METRIC_NAME_EXCLUDE = new PropertyDescriptor.Builder()
+      .name("Metric Name Exclude Pattern")
+      .description("If set, the metrics whose whole name, as reported to Prometheus, matches this regular expression "
+          + "are not reported")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor COMPONENT_NAME_INCLUDE = new PropertyDescriptor.Builder()
+      .name("Component Name Include Pattern")
+      .description("If set, the component metrics and backpressure prediction include only the components whose "
+          + "whole name matches this regular expression")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor COMPONENT_NAME_EXCLUDE = new PropertyDescriptor.Builder()
+      .name("Component Name Exclude Pattern")
+      .description("If set, the component metrics and backpressure prediction leave out the components whose whole "
+          + "name matches this regular expression")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.REGULAR_EXPRESSION_VALIDATOR)
+      .build();
+
   static final PropertyDescriptor PROCESS_GROUP_ID = new PropertyDescriptor.Builder()
       .name("Process Group ID")
       .description("If specified, the reporting task will send metrics about this process group only. If"
@@ -89,34 +209,319 @@ public class PrometheusReportingTask extends AbstractReportingTask {
       .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
       .build();
 
+  static final PropertyDescriptor PUSHGATEWAY_ENDPOINTS = new PropertyDescriptor.Builder()
+      .name("Pushgateway Endpoints")
+      .description("Comma separated host:port list of Pushgateway shards. If set, the job and instance are routed to "
+          + "one shard by consistent hashing instead of to the Pushgateway hostname and port. A shard that fails a "
+          + "push is skipped for the failover cooldown.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SHARD_FAILOVER_COOLDOWN = new PropertyDescriptor.Builder()
+      .name("Shard Failover Cooldown")
+      .description("How long a Pushgateway shard that failed a push is skipped")
+      .defaultValue("30 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor EXPORTER_SERVICE = new PropertyDescriptor.Builder()
+      .name("Prometheus Exporter Service")
+      .description("If set, the metrics are written into the /metrics endpoint of this service to be scraped by "
+          + "Prometheus instead of being pushed to the Pushgateway")
+      .required(false)
+      .identifiesControllerService(PrometheusExporterService.class)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_URL = new PropertyDescriptor.Builder()
+      .name("Remote Write URL")
+      .description("If set, the metrics are sent to this Prometheus remote write endpoint, e.g. "
+          + "http://prometheus:9090/api/v1/write, instead of the Pushgateway. The samples are labelled with the job and "
+          + "instance, buffered and sent in snappy-compressed batches by a dedicated thread.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.URL_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_BATCH_SIZE = new PropertyDescriptor.Builder()
+      .name("Remote Write Batch Size")
+      .description("The maximum number of samples sent in one remote write request")
+      .defaultValue("500")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_FLUSH_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Remote Write Flush Interval")
+      .description("How long samples wait for a full batch before they are sent anyway; also the delay before a "
+          + "failed request is retried")
+      .defaultValue("5 sec")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor REMOTE_WRITE_MAX_PENDING = new PropertyDescriptor.Builder()
+      .name("Remote Write Max Pending Samples")
+      .description("The maximum number of samples waiting to be sent. When a report does not fit anymore it is "
+          + "dropped; after failed requests the oldest samples are dropped.")
+      .defaultValue("100000")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor ASYNC_PUSH = new PropertyDescriptor.Builder()
+      .name("Asynchronous Push")
+      .description("Hands the push to a dedicated sender thread instead of pushing on the reporting thread. "
+          + "A failed push is logged; when the previous pushes are still queued the report of the interval is dropped.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor PUSH_QUEUE_SIZE = new PropertyDescriptor.Builder()
+      .name("Push Queue Size")
+      .description("The number of asynchronous pushes that may wait for the sender thread")
+      .defaultValue("10")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SPOOL_DIRECTORY = new PropertyDescriptor.Builder()
+      .name("Spool Directory")
+      .description("If set, reports that fail to be pushed are written to a spool in a sub directory of this directory "
+          + "(named by the reporting task id) and replayed in order, with exponential backoff, once the Pushgateway is "
+          + "available again.")
+      .required(false)
+      .expressionLanguageSupported(ExpressionLanguageScope.VARIABLE_REGISTRY)
+      .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor SPOOL_MAX_SIZE = new PropertyDescriptor.Builder()
+      .name("Spool Max Size")
+      .description("The maximum size of the spool on disk; when it is full the oldest spooled reports are dropped")
+      .defaultValue("100 MB")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor PUSH_CHANGED_ONLY = new PropertyDescriptor.Builder()
+      .name("Push Changed Series Only")
+      .description("Pushes only the metric families with a value that changed since the last push to the Pushgateway, "
+          + "which keeps the series it already has. A family is pushed completely as soon as one of its series changed, "
+          + "since the Pushgateway replaces all series of a pushed family.")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  static final PropertyDescriptor FULL_RESYNC_INTERVAL = new PropertyDescriptor.Builder()
+      .name("Full Resync Interval")
+      .description("When only changed series are pushed, how often all metrics are pushed to replace the group on the "
+          + "Pushgateway, which also removes the families that are not reported anymore")
+      .defaultValue("10 min")
+      .required(true)
+      .expressionLanguageSupported(ExpressionLanguageScope.NONE)
+      .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+      .build();
+
+  static final PropertyDescriptor COMPRESS_PUSHES = new PropertyDescriptor.Builder()
+      .name("Compress Pushes")
+      .description("Compresses the body of the pushes to the Pushgateway with gzip, which requires Pushgateway 1.2 or later")
+      .required(true)
+      .defaultValue("false")
+      .allowableValues("true", "false")
+      .build();
+
+  private static final long SPOOL_INITIAL_BACKOFF_MILLIS = 1000L;
+  private static final long SPOOL_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final int HTTP_TIMEOUT_MILLIS = 10000;
+  private static final int MAX_SAMPLES_PER_REPORT = 100000;
+
+  private volatile AsyncPushSender sender;
+  private volatile PushSpool spool;
+  private volatile PushGatewayRing ring;
+  private volatile RemoteWriteSink remoteWrite;
+  private volatile DeltaTracker delta;
+  private volatile boolean compressPushes;
+
+  // kept between runs, so that a run only updates the values of the gauges; onTrigger is never called concurrently
+  private final CollectorRegistry registry = new CollectorRegistry();
+  private final Map<String, ReportedGauge> gauges = new HashMap<>();
+  private final Map<String, String> metricNames = new HashMap<>();
+  private Collector bundleMetrics;
+  private ComponentStatusCollector componentMetrics;
+  private BackpressurePredictor backpressurePredictor;
+  private long run;
+  private volatile RollupSampler sampler;
+  private volatile JvmDetailCollector jvmDetailMetrics;
+  private volatile NameFilter metricFilter = NameFilter.ALL;
+  private volatile NameFilter componentFilter = NameFilter.ALL;
+  // where the sampler takes the status from, known once the task reported
+  private volatile EventAccess eventAccess;
+  private volatile String processGroupId;
+
   @Override
   protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
     final List<PropertyDescriptor> properties = new ArrayList<>(super.getSupportedPropertyDescriptors());
     properties.add(PUSHGATEWAY_HOSTNAME);
     properties.add(PUSHGATEWAY_PORT);
+    properties.add(PUSHGATEWAY_ENDPOINTS);
+    properties.add(SHARD_FAILOVER_COOLDOWN);
     properties.add(INSTANCE);
     properties.add(JOB_NAME);
     properties.add(INCLUDE_JVM_METRICS);
+    properties.add(INCLUDE_JVM_DETAIL_METRICS);
     properties.add(INCLUDE_STATUS_METRICS);
+    properties.add(INCLUDE_BUNDLE_METRICS);
+    properties.add(INCLUDE_COMPONENT_METRICS);
+    properties.add(COMPONENT_METRICS_DEPTH);
+    properties.add(INCLUDE_BACKPRESSURE_PREDICTION);
+    properties.add(BACKPRESSURE_PREDICTION_SAMPLES);
+    properties.add(SAMPLING_INTERVAL);
+    properties.add(METRIC_NAME_INCLUDE);
+    properties.add(METRIC_NAME_EXCLUDE);
+    properties.add(COMPONENT_NAME_INCLUDE);
+    properties.add(COMPONENT_NAME_EXCLUDE);
     properties.add(PROCESS_GROUP_ID);
+    properties.add(EXPORTER_SERVICE);
+    properties.add(REMOTE_WRITE_URL);
+    properties.add(REMOTE_WRITE_BATCH_SIZE);
+    properties.add(REMOTE_WRITE_FLUSH_INTERVAL);
+    properties.add(REMOTE_WRITE_MAX_PENDING);
+    properties.add(ASYNC_PUSH);
+    properties.add(PUSH_QUEUE_SIZE);
+    properties.add(SPOOL_DIRECTORY);
+    properties.add(SPOOL_MAX_SIZE);
+    properties.add(PUSH_CHANGED_ONLY);
+    properties.add(FULL_RESYNC_INTERVAL);
+    properties.add(COMPRESS_PUSHES);
     return properties;
   }
 
+  @OnScheduled
+  public void createRegistry(ConfigurationContext context) {
+    registry.clear();
+    gauges.clear();
+    metricNames.clear();
+    bundleMetrics = null;
+    componentMetrics = null;
+    backpressurePredictor = null;
+    metricFilter = new NameFilter(context.getProperty(METRIC_NAME_INCLUDE).getValue(),
+        context.getProperty(METRIC_NAME_EXCLUDE).getValue());
+    componentFilter = new NameFilter(context.getProperty(COMPONENT_NAME_INCLUDE).getValue(),
+        context.getProperty(COMPONENT_NAME_EXCLUDE).getValue());
+    if (context.getProperty(SAMPLING_INTERVAL).isSet()) {
+      final long intervalNanos = context.getProperty(SAMPLING_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+      final Long periodNanos = context.getSchedulingPeriod(TimeUnit.NANOSECONDS);
+      // room for twice the samples of a period, in case a report is late
+      final long capacity = periodNanos == null ? MAX_SAMPLES_PER_REPORT : 2 * (periodNanos / Math.max(1, intervalNanos) + 1);
+      sampler = new RollupSampler(RollupSampler.defaultSources(), this::sampledStatus,
+          (int) Math.min(MAX_SAMPLES_PER_REPORT, capacity)).register(registry);
+      sampler.start(getIdentifier(), intervalNanos, TimeUnit.NANOSECONDS);
+    }
+    if (context.getProperty(INCLUDE_JVM_DETAIL_METRICS).asBoolean()) {
+      // subscribed while scheduled, so that the collections between two reports are counted
+      jvmDetailMetrics = new JvmDetailCollector().register(registry);
+    }
+  }
+
+  @OnStopped
+  public void stopCollectors() {
+    if (sampler != null) {
+      sampler.close();
+      sampler = null;
+    }
+    if (jvmDetailMetrics != null) {
+      jvmDetailMetrics.close();
+      jvmDetailMetrics = null;
+    }
+  }
+
+  private ProcessGroupStatus sampledStatus() {
+    final EventAccess eventAccess = this.eventAccess;
+    if (eventAccess == null) {
+      return null;
+    }
+    final String processGroupId = this.processGroupId;
+    return processGroupId == null ? eventAccess.getControllerStatus() : eventAccess.getGroupStatus(processGroupId);
+  }
+
+  @OnScheduled
+  public void createSender(ConfigurationContext context) throws IOException {
+    ring = context.getProperty(PUSHGATEWAY_ENDPOINTS).isSet()
+        ? new PushGatewayRing(PushGatewayRing.parse(context.getProperty(PUSHGATEWAY_ENDPOINTS).evaluateAttributeExpressions().getValue(),
+            context.getProperty(PUSHGATEWAY_PORT).getValue()), context.getProperty(SHARD_FAILOVER_COOLDOWN).asTimePeriod(TimeUnit.MILLISECONDS))
+        : null;
+    if (context.getProperty(REMOTE_WRITE_URL).isSet()) {
+      remoteWrite = new RemoteWriteSink(getIdentifier(), context.getProperty(REMOTE_WRITE_URL).evaluateAttributeExpressions().getValue(),
+          context.getProperty(REMOTE_WRITE_BATCH_SIZE).asInteger(), context.getProperty(REMOTE_WRITE_MAX_PENDING).asInteger(),
+          context.getProperty(REMOTE_WRITE_FLUSH_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS,
+          HTTP_TIMEOUT_MILLIS, HTTP_TIMEOUT_MILLIS,
+          ioException -> getLogger().error("Failed to write metrics to the remote write endpoint", ioException));
+    }
+    if (context.getProperty(ASYNC_PUSH).asBoolean()) {
+      sender = new AsyncPushSender(getIdentifier(), context.getProperty(PUSH_QUEUE_SIZE).asInteger(), 1);
+    }
+    if (context.getProperty(SPOOL_DIRECTORY).isSet()) {
+      final File directory = new File(context.getProperty(SPOOL_DIRECTORY).evaluateAttributeExpressions().getValue(), getIdentifier());
+      spool = new PushSpool(getIdentifier(), directory, context.getProperty(SPOOL_MAX_SIZE).asDataSize(DataUnit.B).longValue(),
+          SPOOL_INITIAL_BACKOFF_MILLIS, SPOOL_MAX_BACKOFF_MILLIS,
+          push -> send(push.host, push.port, push.toRegistry(), push.job, push.groupingKey, false));
+    }
+    delta = context.getProperty(PUSH_CHANGED_ONLY).asBoolean()
+        ? new DeltaTracker(context.getProperty(FULL_RESYNC_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS))
+        : null;
+    compressPushes = context.getProperty(COMPRESS_PUSHES).asBoolean();
+  }
+
+  @OnStopped
+  public void closeSender() {
+    if (sender != null) {
+      sender.close(10, TimeUnit.SECONDS);
+      sender = null;
+    }
+    if (spool != null) {
+      spool.close();
+      spool = null;
+    }
+    if (remoteWrite != null) {
+      remoteWrite.close(10, TimeUnit.SECONDS);
+      remoteWrite = null;
+    }
+    delta = null;
+  }
+
   @Override
   protected Collection<ValidationResult> customValidate(ValidationContext validationContext) {
     final List<ValidationResult> results = new ArrayList<>(super.customValidate(validationContext));
 
     final boolean includeJvmMetrics = validationContext.getProperty(INCLUDE_JVM_METRICS).asBoolean();
+    final boolean includeJvmDetailMetrics = validationContext.getProperty(INCLUDE_JVM_DETAIL_METRICS).asBoolean();
     final boolean includeStatusMetrics = validationContext.getProperty(INCLUDE_STATUS_METRICS).asBoolean();
+    final boolean includeComponentMetrics = validationContext.getProperty(INCLUDE_COMPONENT_METRICS).asBoolean();
+    final boolean includeBackpressurePrediction = validationContext.getProperty(INCLUDE_BACKPRESSURE_PREDICTION).asBoolean();
+    final boolean includeBundleMetrics = validationContext.getProperty(INCLUDE_BUNDLE_METRICS).asBoolean();
+    final boolean includeSampledMetrics = validationContext.getProperty(SAMPLING_INTERVAL).isSet();
 
-    if (!includeJvmMetrics && !includeStatusMetrics) {
+    if (!includeJvmMetrics && !includeJvmDetailMetrics && !includeStatusMetrics && !includeComponentMetrics
+        && !includeBackpressurePrediction && !includeBundleMetrics && !includeSampledMetrics) {
       results.add(new ValidationResult.Builder()
           .input("Metric report")
           .valid(false)
-          .explanation("No reporting enabled. Please enable at least one of jvm and processor group.")
+          .explanation("No reporting enabled. Please enable at least one of jvm, detailed jvm, processor group, component, "
+              + "backpressure prediction and bundle metrics, or set a sampling interval.")
           .build());
     }
 
+
     return results;
   }
 
@@ -128,43 +533,268 @@ public class PrometheusReportingTask extends AbstractReportingTask {
       final String jobName = context.getProperty(JOB_NAME).getValue();
       final boolean includeJvmMetrics = context.getProperty(INCLUDE_JVM_METRICS).asBoolean();
       final boolean includeStatusMetrics = context.getProperty(INCLUDE_STATUS_METRICS).asBoolean();
+      final boolean includeBundleMetrics = context.getProperty(INCLUDE_BUNDLE_METRICS).asBoolean();
+      final boolean includeComponentMetrics = context.getProperty(INCLUDE_COMPONENT_METRICS).asBoolean();
+      final boolean includeBackpressurePrediction = context.getProperty(INCLUDE_BACKPRESSURE_PREDICTION).asBoolean();
 
       final MetricsService metricsService = newPushGateway();
       final Map<String, String> groupingKey = Collections.singletonMap("instance", instance);
-      final PushGateway pushGateway = newPushGateway(host, port);
-      final CollectorRegistry registry = new CollectorRegistry();
+      final PrometheusExporterService exporter = context.getProperty(EXPORTER_SERVICE).asControllerService(PrometheusExporterService.class);
+      final PushSpool spool = this.spool;
 
-      Map<String, String> metrics = new HashMap<>();
+      final RollupSampler sampler = this.sampler;
+      if (sampler != null) {
+        processGroupId = context.getProperty(PROCESS_GROUP_ID).isSet() ? context.getProperty(PROCESS_GROUP_ID).evaluateAttributeExpressions().getValue() : null;
+        eventAccess = context.getEventAccess();
+        sampler.rollup();
+      }
 
+      run++;
       if (includeJvmMetrics) {
-        metrics.putAll(metricsService.getMetrics(JmxJvmMetrics.getInstance()));
+        updateGauges(metricsService.getMetrics(JmxJvmMetrics.getInstance()));
       }
 
-      if (includeStatusMetrics) {
+      if (includeStatusMetrics || includeComponentMetrics || includeBackpressurePrediction) {
         final boolean processGroupIdSet = context.getProperty(PROCESS_GROUP_ID).isSet();
         final String processGroupId = processGroupIdSet ? context.getProperty(PROCESS_GROUP_ID).evaluateAttributeExpressions().getValue() : null;
         final ProcessGroupStatus status = processGroupId == null ? context.getEventAccess().getControllerStatus() : context.getEventAccess().getGroupStatus(processGroupId);
-        metrics.putAll(metricsService.getMetrics(status, processGroupIdSet));
+        if (includeStatusMetrics) {
+          updateGauges(metricsService.getMetrics(status, processGroupIdSet));
+        }
+        if (includeComponentMetrics) {
+          if (componentMetrics == null) {
+            componentMetrics = new ComponentStatusCollector(context.getProperty(COMPONENT_METRICS_DEPTH).asInteger(),
+                componentFilter).register(registry);
+          }
+          componentMetrics.setStatus(status);
+        }
+        if (includeBackpressurePrediction) {
+          if (backpressurePredictor == null) {
+            backpressurePredictor = new BackpressurePredictor(context.getProperty(COMPONENT_METRICS_DEPTH).asInteger(),
+                context.getProperty(BACKPRESSURE_PREDICTION_SAMPLES).asInteger(), componentFilter).register(registry);
+          }
+          backpressurePredictor.update(status, System.nanoTime());
+        }
+      }
+      if (!includeComponentMetrics && componentMetrics != null) {
+        registry.unregister(componentMetrics);
+        componentMetrics = null;
+      }
+      if (!includeBackpressurePrediction && backpressurePredictor != null) {
+        registry.unregister(backpressurePredictor);
+        backpressurePredictor = null;
+      }
+      removeStaleGauges();
+      if (includeBundleMetrics && bundleMetrics == null) {
+        bundleMetrics = new BundleMetricsCollector(getBundleRegistry()).register(registry);
+      } else if (!includeBundleMetrics && bundleMetrics != null) {
+        registry.unregister(bundleMetrics);
+        bundleMetrics = null;
       }
 
+      // the gauges are filtered before they are built, the families of the collectors when they are collected
+      final NameFilter metricFilter = this.metricFilter;
+      final CollectorRegistry reported = metricFilter.acceptsAll() ? registry : toRegistry(filter(registry, metricFilter));
       try {
-        metrics.forEach((key, value)->
-          Gauge.build()
-              .name(Collector.sanitizeMetricName(key))
-              .help(key)
-              .register(registry).set(Double.valueOf(value))
-        );
-        pushGateway.pushAdd(registry, jobName, groupingKey);
+        if (exporter != null) {
+          exporter.update(jobName, groupingKey, reported.metricFamilySamples());
+          return;
+        }
+        final RemoteWriteSink remoteWrite = this.remoteWrite;
+        if (remoteWrite != null) {
+          final Map<String, String> labels = new LinkedHashMap<>(groupingKey);
+          labels.put("job", jobName);
+          if (!remoteWrite.write(reported.metricFamilySamples(), labels, System.currentTimeMillis())) {
+            getLogger().warn("Remote write buffer is full, dropping the metrics of this interval");
+          }
+          return;
+        }
+        final AsyncPushSender sender = this.sender;
+        final DeltaTracker delta = this.delta;
+        final boolean resync = delta != null && delta.isResyncDue();
+        final List<Collector.MetricFamilySamples> pushed;
+        final CollectorRegistry pushedRegistry;
+        if (delta == null) {
+          pushed = null;
+          // a snapshot for an asynchronous push, the next run updates the registry before it may be sent
+          pushedRegistry = sender == null ? reported : toRegistry(Collections.list(reported.metricFamilySamples()));
+        } else {
+          final List<Collector.MetricFamilySamples> families = Collections.list(reported.metricFamilySamples());
+          pushed = resync ? families : delta.changed(families);
+          if (pushed.isEmpty()) {
+            return;
+          }
+          // a snapshot, the registry may change before an asynchronous push is sent
+          pushedRegistry = toRegistry(pushed);
+        }
+        if (spool != null && !spool.isEmpty()) {
+          // keep the order of the reports behind the spooled ones; the replay does not replace the group
+          spool.append(host, port, jobName, groupingKey, pushedRegistry.metricFamilySamples());
+        } else if (sender == null) {
+          send(host, port, pushedRegistry, jobName, groupingKey, resync);
+          if (delta != null) {
+            delta.record(pushed, resync);
+          }
+        } else if (!sender.submit(() -> {
+              send(host, port, pushedRegistry, jobName, groupingKey, resync);
+              if (delta != null) {
+                delta.record(pushed, resync);
+              }
+            },
+            ioException -> spoolOrLog(spool, host, port, jobName, groupingKey, pushedRegistry, ioException))) {
+          getLogger().warn("Push queue is full, dropping the metrics of this interval");
+        }
       } catch (IOException ioException) {
-        getLogger().error("Failed to push metrics into pushgateway", ioException);
+        spoolOrLog(spool, host, port, jobName, groupingKey, reported, ioException);
+      }
+  }
+
+  /**
+   * Sets the gauge of every metric, registering one only for a metric that was not reported by the previous run.
+   * Metrics whose names sanitize to the same name share a gauge.
+   */
+  private void updateGauges(Map<String, String> metrics) {
+    for (Map.Entry<String, String> metric : metrics.entrySet()) {
+      final String key = metric.getKey();
+      final String name = metricNames.computeIfAbsent(key, Collector::sanitizeMetricName);
+      if (!metricFilter.test(name)) {
+        continue;
+      }
+      ReportedGauge gauge = gauges.get(name);
+      if (gauge == null) {
+        gauge = new ReportedGauge(Gauge.build().name(name).help(key).register(registry));
+        gauges.put(name, gauge);
+      }
+      gauge.child.set(Double.parseDouble(metric.getValue()));
+      gauge.run = run;
+    }
+  }
+
+  /**
+   * Unregisters the gauges of the metrics that were not reported by this run, e.g. of a removed processor.
+   */
+  private void removeStaleGauges() {
+    final Iterator<ReportedGauge> iterator = gauges.values().iterator();
+    while (iterator.hasNext()) {
+      final ReportedGauge gauge = iterator.next();
+      if (gauge.run != run) {
+        registry.unregister(gauge.gauge);
+        iterator.remove();
+      }
+    }
+    if (metricNames.size() > 2 * gauges.size()) {
+      metricNames.clear();
+    }
+  }
+
+  /**
+   * Pushes to the Pushgateway or, with shards, to the shard of the job and instance, failing over to the next shard once.
+   *
+   * @param replace whether the pushed metrics replace all metrics of the group instead of only their families
+   */
+  private void send(String host, String port, CollectorRegistry registry, String jobName, Map<String, String> groupingKey,
+                    boolean replace) throws IOException {
+    final PushGatewayRing ring = this.ring;
+    if (ring == null) {
+      push(newPushGateway(host, port), registry, jobName, groupingKey, replace);
+      return;
+    }
+    final PushGatewayRing.Endpoint endpoint = ring.route(jobName, groupingKey);
+    try {
+      push(newPushGateway(endpoint.host, endpoint.port), registry, jobName, groupingKey, replace);
+      ring.markSucceeded(endpoint);
+    } catch (IOException ioException) {
+      ring.markFailed(endpoint);
+      final PushGatewayRing.Endpoint failover = ring.route(jobName, groupingKey);
+      if (failover.equals(endpoint)) {
+        throw ioException;
+      }
+      getLogger().warn("Failed to push metrics into pushgateway {}, failing over to {}", new Object[]{endpoint, failover, ioException});
+      push(newPushGateway(failover.host, failover.port), registry, jobName, groupingKey, replace);
+      ring.markSucceeded(failover);
+    }
+  }
+
+  private static void push(PushGateway pushGateway, CollectorRegistry registry, String jobName,
+                           Map<String, String> groupingKey, boolean replace) throws IOException {
+    if (replace) {
+      pushGateway.push(registry, jobName, groupingKey);
+    } else {
+      pushGateway.pushAdd(registry, jobName, groupingKey);
+    }
+  }
+
+  private static List<Collector.MetricFamilySamples> filter(CollectorRegistry registry, NameFilter metricFilter) {
+    final List<Collector.MetricFamilySamples> families = new ArrayList<>();
+    for (Collector.MetricFamilySamples family : Collections.list(registry.metricFamilySamples())) {
+      if (metricFilter.test(family.name)) {
+        families.add(family);
+      }
+    }
+    return families;
+  }
+
+  private static CollectorRegistry toRegistry(List<Collector.MetricFamilySamples> families) {
+    final CollectorRegistry registry = new CollectorRegistry();
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return families;
       }
+    }.register(registry);
+    return registry;
+  }
+
+  private void spoolOrLog(PushSpool spool, String host, String port, String jobName, Map<String, String> groupingKey,
+                          CollectorRegistry registry, IOException ioException) {
+    if (spool == null) {
+      getLogger().error("Failed to push metrics into pushgateway", ioException);
+      return;
+    }
+    getLogger().warn("Failed to push metrics into pushgateway, spooling them for replay", ioException);
+    try {
+      spool.append(host, port, jobName, groupingKey, registry.metricFamilySamples());
+    } catch (IOException spoolException) {
+      getLogger().error("Failed to spool metrics", spoolException);
+    }
   }
 
   protected PushGateway newPushGateway(String host, String port) {
-    return new PushGateway(host + ":" + port);
+    return new KeepAlivePushGateway(host + ":" + port, HTTP_TIMEOUT_MILLIS, HTTP_TIMEOUT_MILLIS, compressPushes);
   }
 
   protected MetricsService newPushGateway() {
     return new MetricsService();
   }
+
+  protected CollectorRegistry getBundleRegistry() {
+    return CollectorRegistry.defaultRegistry;
+  }
+
+  private static final class ReportedGauge {
+    private final Gauge gauge;
+    private final Gauge.Child child;
+    private long run;
+
+    private ReportedGauge(Gauge gauge) {
+      this.gauge = gauge;
+      this.child = gauge.labels();
+    }
+  }
+
+  /**
+   * Exposes the current samples of the registry the bundle components record their own metrics in.
+   */
+  private static class BundleMetricsCollector extends Collector {
+    private final CollectorRegistry bundleRegistry;
+
+    private BundleMetricsCollector(CollectorRegistry bundleRegistry) {
+      this.bundleRegistry = bundleRegistry;
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+      return Collections.list(bundleRegistry.metricFamilySamples());
+    }
+  }
 }
@@ -0,0 +1,189 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.Collector;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Samples JVM and flow status values on a background thread, much more often than the reporting task runs, so that
+ * spikes between two reports are not lost. The samples of each value are kept in a ring buffer of primitives;
+ * {@link #rollup()} reduces the samples taken since the previous rollup to their minimum, maximum, average and 99th
+ * percentile, which the collector exposes as one gauge per value, labelled with the rollup. When more samples are
+ * taken between two rollups than the buffer holds, the oldest ones are overwritten.
+ */
+final class RollupSampler extends Collector implements Closeable {
+
+  private static final List<String> LABEL_NAMES = Collections.singletonList("rollup");
+  private static final String[] ROLLUPS = {"min", "max", "avg", "p99"};
+
+  /**
+   * A sampled value; the status is null until the task reported once, a value of NaN is not sampled.
+   */
+  static final class Source {
+    private final String name;
+    private final String help;
+    private final ToDoubleFunction<ProcessGroupStatus> value;
+
+    Source(String name, String help, ToDoubleFunction<ProcessGroupStatus> value) {
+      this.name = name;
+      this.help = help;
+      this.value = value;
+    }
+  }
+
+  private final List<Source> sources;
+  private final Supplier<ProcessGroupStatus> status;
+  private final double[][] values;
+  private final int[] next;
+  private final int[] count;
+  private final double[] sampled;
+  private final double[] scratch;
+  private final double[][] rollups;
+  private final boolean[] rolledUp;
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param status   supplies the status of the reported process group, or null
+   * @param capacity the number of samples kept per value between two rollups
+   */
+  RollupSampler(List<Source> sources, Supplier<ProcessGroupStatus> status, int capacity) {
+    this.sources = sources;
+    this.status = status;
+    this.values = new double[sources.size()][Math.max(1, capacity)];
+    this.next = new int[sources.size()];
+    this.count = new int[sources.size()];
+    this.sampled = new double[sources.size()];
+    this.scratch = new double[Math.max(1, capacity)];
+    this.rollups = new double[sources.size()][ROLLUPS.length];
+    this.rolledUp = new boolean[sources.size()];
+  }
+
+  /**
+   * The JVM heap, threads and load, and the active threads and queued FlowFiles of the reported process group.
+   */
+  static List<Source> defaultSources() {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    return Arrays.asList(
+        new Source("nifi_sampled_jvm_heap_used_bytes", "Used JVM heap",
+            status -> memory.getHeapMemoryUsage().getUsed()),
+        new Source("nifi_sampled_jvm_non_heap_used_bytes", "Used JVM non-heap memory",
+            status -> memory.getNonHeapMemoryUsage().getUsed()),
+        new Source("nifi_sampled_jvm_threads", "Live JVM threads",
+            status -> threads.getThreadCount()),
+        new Source("nifi_sampled_system_load_average", "System load average of the last minute",
+            status -> os.getSystemLoadAverage() < 0 ? Double.NaN : os.getSystemLoadAverage()),
+        new Source("nifi_sampled_active_threads", "Active threads of the components of the process group",
+            status -> status == null || status.getActiveThreadCount() == null ? Double.NaN : status.getActiveThreadCount()),
+        new Source("nifi_sampled_queued_flowfiles", "FlowFiles queued in the process group",
+            status -> status == null || status.getQueuedCount() == null ? Double.NaN : status.getQueuedCount()),
+        new Source("nifi_sampled_queued_bytes", "Size of the FlowFiles queued in the process group",
+            status -> status == null || status.getQueuedContentSize() == null ? Double.NaN : status.getQueuedContentSize()));
+  }
+
+  /**
+   * Starts sampling on a daemon thread named after the given name.
+   */
+  synchronized void start(String name, long interval, TimeUnit unit) {
+    executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      final Thread thread = new Thread(runnable, "Prometheus sampler " + name);
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleAtFixedRate(() -> {
+      try {
+        sample();
+      } catch (RuntimeException e) {
+        // the status may be unavailable while the flow is reloaded, the next sample will tell
+      }
+    }, 0, interval, unit);
+  }
+
+  /**
+   * Takes one sample of every value; called by the sampling thread only.
+   */
+  void sample() {
+    final ProcessGroupStatus current = status.get();
+    for (int i = 0; i < sources.size(); i++) {
+      sampled[i] = sources.get(i).value.applyAsDouble(current);
+    }
+    synchronized (this) {
+      for (int i = 0; i < sources.size(); i++) {
+        if (Double.isNaN(sampled[i])) {
+          continue;
+        }
+        final double[] ring = values[i];
+        ring[next[i]] = sampled[i];
+        next[i] = (next[i] + 1) % ring.length;
+        count[i] = Math.min(count[i] + 1, ring.length);
+      }
+    }
+  }
+
+  /**
+   * Reduces the samples taken since the previous rollup; a value without samples is not exposed until it has some.
+   */
+  synchronized void rollup() {
+    for (int i = 0; i < sources.size(); i++) {
+      final int n = count[i];
+      rolledUp[i] = n > 0;
+      if (n == 0) {
+        continue;
+      }
+      final double[] ring = values[i];
+      double sum = 0;
+      for (int k = 0; k < n; k++) {
+        scratch[k] = ring[(next[i] - 1 - k + ring.length) % ring.length];
+        sum += scratch[k];
+      }
+      Arrays.sort(scratch, 0, n);
+      rollups[i][0] = scratch[0];
+      rollups[i][1] = scratch[n - 1];
+      rollups[i][2] = sum / n;
+      rollups[i][3] = scratch[(int) Math.ceil(0.99 * n) - 1];
+      count[i] = 0;
+    }
+  }
+
+  @Override
+  public synchronized List<MetricFamilySamples> collect() {
+    final List<MetricFamilySamples> families = new ArrayList<>();
+    for (int i = 0; i < sources.size(); i++) {
+      if (!rolledUp[i]) {
+        continue;
+      }
+      final Source source = sources.get(i);
+      final List<MetricFamilySamples.Sample> samples = new ArrayList<>(ROLLUPS.length);
+      for (int j = 0; j < ROLLUPS.length; j++) {
+        samples.add(new MetricFamilySamples.Sample(source.name, LABEL_NAMES, Collections.singletonList(ROLLUPS[j]),
+            rollups[i][j]));
+      }
+      families.add(new MetricFamilySamples(source.name, Type.GAUGE,
+          source.help + ", rolled up over the samples since the previous report", samples));
+    }
+    return families;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.nifi.controller.status.ConnectionStatus;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TestBackpressurePredictor {
+
+  private static final String[] LABEL_NAMES = {"component_id", "component_name", "group_path", "component_type"};
+  private static final String[] LABEL_VALUES = {"connection-id", "success", "NiFi Flow", "connection"};
+
+  @Test
+  public void testPredictsTheTimeUntilBackpressure() {
+    final CollectorRegistry registry = new CollectorRegistry();
+    final BackpressurePredictor predictor = new BackpressurePredictor(0, 3, NameFilter.ALL).register(registry);
+
+    // the queue grows by 100 FlowFiles a minute, the oldest report drops out of the buffer
+    predictor.update(status(5000, 0), 0);
+    predictor.update(status(100, 300), TimeUnit.MINUTES.toNanos(1));
+    predictor.update(status(200, 300), TimeUnit.MINUTES.toNanos(2));
+    predictor.update(status(300, 300), TimeUnit.MINUTES.toNanos(3));
+
+    assertThat(value(registry, "nifi_connection_backpressure_object_ratio"), is(0.3));
+    assertThat(value(registry, "nifi_connection_backpressure_bytes_ratio"), is(0.3));
+    assertThat(value(registry, "nifi_connection_ingress_flowfiles_per_second"), is(1.0));
+    assertThat(value(registry, "nifi_connection_backpressure_predicted_seconds"), closeTo(420.0, 0.001));
+  }
+
+  @Test
+  public void testPredictsNoBackpressureForAShrinkingQueue() {
+    final CollectorRegistry registry = new CollectorRegistry();
+    final BackpressurePredictor predictor = new BackpressurePredictor(0, 10, NameFilter.ALL).register(registry);
+
+    predictor.update(status(300, 0), 0);
+    assertThat(value(registry, "nifi_connection_backpressure_predicted_seconds"), is(nullValue()));
+    predictor.update(status(200, 0), TimeUnit.MINUTES.toNanos(1));
+    assertThat(value(registry, "nifi_connection_backpressure_predicted_seconds"), is(Double.POSITIVE_INFINITY));
+
+    // a removed connection is forgotten
+    predictor.update(new ProcessGroupStatus(), TimeUnit.MINUTES.toNanos(2));
+    assertThat(value(registry, "nifi_connection_backpressure_object_ratio"), is(nullValue()));
+  }
+
+  private static Double value(CollectorRegistry registry, String name) {
+    return registry.getSampleValue(name, LABEL_NAMES, LABEL_VALUES);
+  }
+
+  private static ProcessGroupStatus status(int queued, int input) {
+    final ConnectionStatus connection = new ConnectionStatus();
+    connection.setId("connection-id");
+    connection.setName("success");
+    connection.setQueuedCount(queued);
+    connection.setQueuedBytes(queued * 1024L);
+    connection.setInputCount(input);
+    connection.setBackPressureObjectThreshold(1000);
+    connection.setBackPressureBytesThreshold(1000 * 1024L);
+    final ProcessGroupStatus group = new ProcessGroupStatus();
+    group.setName("NiFi Flow");
+    group.setConnectionStatus(Collections.singletonList(connection));
+    return group;
+  }
+}
@@ -1,11 +1,19 @@
 package de.flaconi.nifi.reporting.prometheus;
 
+import com.sun.net.httpserver.HttpServer;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Gauge;
 import io.prometheus.client.exporter.PushGateway;
+import de.flaconi.nifi.prometheus.PrometheusExporterService;
+import io.prometheus.client.Collector;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.PropertyValue;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.controller.status.ConnectionStatus;
 import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.apache.nifi.controller.status.ProcessorStatus;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.metrics.jvm.JvmMetrics;
 import org.apache.nifi.reporting.EventAccess;
@@ -14,18 +22,31 @@ import org.apache.nifi.reporting.ReportingContext;
 import org.apache.nifi.reporting.ReportingInitializationContext;
 import org.apache.nifi.reporting.util.metrics.MetricsService;
 import org.apache.nifi.util.MockPropertyValue;
+import org.iq80.snappy.Snappy;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.allOf;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyMapOf;
@@ -41,10 +62,14 @@ public class TestPrometheusReportingTask {
   private ReportingInitializationContext initializationContext;
   private MetricsService metricService;
   private PushGateway pushGateway;
+  private CollectorRegistry bundleRegistry;
+  private PropertyValue exporterServiceProperty;
   private final static String JVM_METRIC_NAME = "jvm_heap_used";
   private final static Double JVM_METRIC_VALUE = 42.0;
   private final static String STATUS_METRIC_NAME = "ActiveThreads";
   private final static Double STATUS_METRIC_VALUE = 10.0;
+  private final static String BUNDLE_METRIC_NAME = "nifi_bundle_records_total";
+  private final static Double BUNDLE_METRIC_VALUE = 7.0;
 
   @Test
   public void testCustomValidate() {
@@ -55,6 +80,24 @@ public class TestPrometheusReportingTask {
     assertThat(result.size(), is(1));
   }
 
+  @Test
+  public void testCustomValidateCountsEveryReport() {
+    givenAReportingTaskWithDisabledReports();
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_BUNDLE_METRICS))
+        .thenReturn(new MockPropertyValue("true"));
+    assertThat(reportingTask.customValidate(validationContext).size(), is(0));
+
+    givenAReportingTaskWithDisabledReports();
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS))
+        .thenReturn(new MockPropertyValue("true"));
+    assertThat(reportingTask.customValidate(validationContext).size(), is(0));
+
+    givenAReportingTaskWithDisabledReports();
+    when(validationContext.getProperty(PrometheusReportingTask.SAMPLING_INTERVAL))
+        .thenReturn(new MockPropertyValue("500 ms"));
+    assertThat(reportingTask.customValidate(validationContext).size(), is(0));
+  }
+
   @Test
   public void testOnTrigger() throws InitializationException, IOException {
     givenAReportingTask();
@@ -68,6 +111,144 @@ public class TestPrometheusReportingTask {
     assertThat(collectorRegistry.getValue().getSampleValue(STATUS_METRIC_NAME), is(STATUS_METRIC_VALUE));
   }
 
+  @Test
+  public void testOnTriggerReusesTheRegistry() throws InitializationException, IOException {
+    givenAReportingTask();
+
+    reportingTask.initialize(initializationContext);
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.SAMPLING_INTERVAL)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_INCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_EXCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_INCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_EXCLUDE)).thenReturn(new MockPropertyValue(null));
+    reportingTask.createRegistry(configurationContext);
+    reportingTask.onTrigger(reportingContext);
+    when(metricService.getMetrics(any(JvmMetrics.class)))
+        .thenReturn(Collections.singletonMap(JVM_METRIC_NAME, "43.0"));
+    when(metricService.getMetrics(any(ProcessGroupStatus.class), anyBoolean()))
+        .thenReturn(Collections.emptyMap());
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway, times(2)).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getAllValues().get(1), is(sameInstance(collectorRegistry.getAllValues().get(0))));
+    assertThat(collectorRegistry.getValue().getSampleValue(JVM_METRIC_NAME), is(43.0));
+    // the metric that was not reported again is dropped
+    assertThat(collectorRegistry.getValue().getSampleValue(STATUS_METRIC_NAME), is(nullValue()));
+  }
+
+  @Test
+  public void testOnTriggerWithComponentMetrics() throws InitializationException, IOException {
+    givenAReportingTask();
+    when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_COMPONENT_METRICS))
+        .thenReturn(new MockPropertyValue("true"));
+    when(reportingContext.getProperty(PrometheusReportingTask.COMPONENT_METRICS_DEPTH))
+        .thenReturn(new MockPropertyValue("1"));
+    final ProcessGroupStatus root = reportingContext.getEventAccess().getControllerStatus();
+    root.setName("NiFi Flow");
+    final ProcessGroupStatus ingest = new ProcessGroupStatus();
+    ingest.setName("ingest");
+    final ProcessorStatus processor = new ProcessorStatus();
+    processor.setId("processor-id");
+    processor.setName("Fetch");
+    processor.setType("FetchS3Object");
+    processor.setProcessingNanos(2500000000L);
+    ingest.setProcessorStatus(Collections.singletonList(processor));
+    final ConnectionStatus connection = new ConnectionStatus();
+    connection.setId("connection-id");
+    connection.setName("success");
+    connection.setQueuedCount(12);
+    root.setConnectionStatus(Collections.singletonList(connection));
+    final ProcessGroupStatus nested = new ProcessGroupStatus();
+    nested.setName("nested");
+    nested.setProcessorStatus(Collections.singletonList(processor));
+    ingest.setProcessGroupStatus(Collections.singletonList(nested));
+    root.setProcessGroupStatus(Collections.singletonList(ingest));
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    final String[] labelNames = {"component_id", "component_name", "group_path", "component_type"};
+    assertThat(collectorRegistry.getValue().getSampleValue("nifi_processor_processing_seconds", labelNames,
+        new String[]{"processor-id", "Fetch", "NiFi Flow/ingest", "FetchS3Object"}), is(2.5));
+    assertThat(collectorRegistry.getValue().getSampleValue("nifi_connection_queued_flowfiles", labelNames,
+        new String[]{"connection-id", "success", "NiFi Flow", "connection"}), is(12.0));
+    // the nested group is below the depth
+    assertThat(collectorRegistry.getValue().getSampleValue("nifi_processor_processing_seconds", labelNames,
+        new String[]{"processor-id", "Fetch", "NiFi Flow/ingest/nested", "FetchS3Object"}), is(nullValue()));
+    assertThat(collectorRegistry.getValue().getSampleValue(STATUS_METRIC_NAME), is(STATUS_METRIC_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerWithNameFilters() throws InitializationException, IOException {
+    givenAReportingTask();
+    when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_COMPONENT_METRICS))
+        .thenReturn(new MockPropertyValue("true"));
+    final ProcessGroupStatus root = reportingContext.getEventAccess().getControllerStatus();
+    root.setName("NiFi Flow");
+    final ProcessorStatus processor = new ProcessorStatus();
+    processor.setId("processor-id");
+    processor.setName("Fetch");
+    processor.setType("FetchS3Object");
+    processor.setInvocations(3);
+    root.setProcessorStatus(Collections.singletonList(processor));
+    final ConnectionStatus connection = new ConnectionStatus();
+    connection.setId("connection-id");
+    connection.setName("success");
+    connection.setQueuedCount(12);
+    root.setConnectionStatus(Collections.singletonList(connection));
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.SAMPLING_INTERVAL)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_INCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_EXCLUDE)).thenReturn(new MockPropertyValue("jvm_.*"));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_INCLUDE)).thenReturn(new MockPropertyValue("Fetch.*"));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_EXCLUDE)).thenReturn(new MockPropertyValue(null));
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.createRegistry(configurationContext);
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    final String[] labelNames = {"component_id", "component_name", "group_path", "component_type"};
+    assertThat(collectorRegistry.getValue().getSampleValue(JVM_METRIC_NAME), is(nullValue()));
+    assertThat(collectorRegistry.getValue().getSampleValue(STATUS_METRIC_NAME), is(STATUS_METRIC_VALUE));
+    assertThat(collectorRegistry.getValue().getSampleValue("nifi_processor_invocations", labelNames,
+        new String[]{"processor-id", "Fetch", "NiFi Flow", "FetchS3Object"}), is(3.0));
+    assertThat(collectorRegistry.getValue().getSampleValue("nifi_connection_queued_flowfiles", labelNames,
+        new String[]{"connection-id", "success", "NiFi Flow", "connection"}), is(nullValue()));
+  }
+
+  @Test
+  public void testOnTriggerWithJvmDetailMetrics() throws InitializationException, IOException {
+    givenAReportingTask();
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.SAMPLING_INTERVAL)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS)).thenReturn(new MockPropertyValue("true"));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_INCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.METRIC_NAME_EXCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_INCLUDE)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPONENT_NAME_EXCLUDE)).thenReturn(new MockPropertyValue(null));
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.createRegistry(configurationContext);
+    System.gc();
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue("jvm_threads_state", new String[]{"state"},
+        new String[]{"RUNNABLE"}), greaterThan(0.0));
+    assertThat(collectorRegistry.getValue().getSampleValue("jvm_buffer_pool_buffers", new String[]{"pool"},
+        new String[]{"direct"}), notNullValue());
+    reportingTask.stopCollectors();
+  }
+
   @Test
   public void testOnTriggerWithOnlyJvmEnabled() throws InitializationException, IOException {
     givenAReportingTaskWithJvmEnabled();
@@ -80,6 +261,141 @@ public class TestPrometheusReportingTask {
     assertThat(collectorRegistry.getValue().getSampleValue(JVM_METRIC_NAME), is(JVM_METRIC_VALUE));
   }
 
+  @Test
+  public void testOnTriggerWithBundleMetrics() throws InitializationException, IOException {
+    givenAReportingTask();
+    Gauge.build().name(BUNDLE_METRIC_NAME).help("help").register(bundleRegistry).set(BUNDLE_METRIC_VALUE);
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(BUNDLE_METRIC_NAME), is(BUNDLE_METRIC_VALUE));
+    assertThat(collectorRegistry.getValue().getSampleValue(JVM_METRIC_NAME), is(JVM_METRIC_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerWithAsyncPush() throws InitializationException, IOException {
+    givenAReportingTask();
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.ASYNC_PUSH)).thenReturn(new MockPropertyValue("true"));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSH_QUEUE_SIZE)).thenReturn(new MockPropertyValue("1"));
+    when(configurationContext.getProperty(PrometheusReportingTask.SPOOL_DIRECTORY)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSHGATEWAY_ENDPOINTS)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_URL)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSH_CHANGED_ONLY)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPRESS_PUSHES)).thenReturn(new MockPropertyValue("false"));
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.createSender(configurationContext);
+    reportingTask.onTrigger(reportingContext);
+    reportingTask.closeSender();
+
+    ArgumentCaptor<CollectorRegistry> collectorRegistry = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(collectorRegistry.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(collectorRegistry.getValue().getSampleValue(JVM_METRIC_NAME), is(JVM_METRIC_VALUE));
+  }
+
+  @Test
+  public void testOnTriggerWithChangedSeriesOnly() throws InitializationException, IOException {
+    givenAReportingTask();
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.ASYNC_PUSH)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.SPOOL_DIRECTORY)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSHGATEWAY_ENDPOINTS)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_URL)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSH_CHANGED_ONLY)).thenReturn(new MockPropertyValue("true"));
+    when(configurationContext.getProperty(PrometheusReportingTask.FULL_RESYNC_INTERVAL)).thenReturn(new MockPropertyValue("10 min"));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPRESS_PUSHES)).thenReturn(new MockPropertyValue("false"));
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.createSender(configurationContext);
+    reportingTask.onTrigger(reportingContext);
+    reportingTask.onTrigger(reportingContext);
+    when(metricService.getMetrics(any(JvmMetrics.class)))
+        .thenReturn(Collections.singletonMap(JVM_METRIC_NAME, "43.0"));
+    reportingTask.onTrigger(reportingContext);
+    reportingTask.closeSender();
+
+    // the first push replaces the group, an unchanged report is not pushed, a changed one only with the changed family
+    ArgumentCaptor<CollectorRegistry> resync = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).push(resync.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(resync.getValue().getSampleValue(JVM_METRIC_NAME), is(JVM_METRIC_VALUE));
+    assertThat(resync.getValue().getSampleValue(STATUS_METRIC_NAME), is(STATUS_METRIC_VALUE));
+    ArgumentCaptor<CollectorRegistry> changed = ArgumentCaptor.forClass(CollectorRegistry.class);
+    verify(pushGateway).pushAdd(changed.capture(), anyString(), anyMapOf(String.class, String.class));
+    assertThat(changed.getValue().getSampleValue(JVM_METRIC_NAME), is(43.0));
+    assertThat(changed.getValue().getSampleValue(STATUS_METRIC_NAME), is(nullValue()));
+  }
+
+  @Test
+  public void testOnTriggerWithRemoteWrite() throws InitializationException, IOException {
+    final List<String> requests = new CopyOnWriteArrayList<>();
+    final HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/api/v1/write", exchange -> {
+      final ByteArrayOutputStream body = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = exchange.getRequestBody().read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      requests.add(new String(Snappy.uncompress(body.toByteArray(), 0, body.size()), StandardCharsets.UTF_8));
+      exchange.sendResponseHeaders(204, -1);
+      exchange.close();
+    });
+    server.start();
+    givenAReportingTask();
+    final ConfigurationContext configurationContext = mock(ConfigurationContext.class);
+    when(configurationContext.getProperty(PrometheusReportingTask.ASYNC_PUSH)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.SPOOL_DIRECTORY)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSHGATEWAY_ENDPOINTS)).thenReturn(new MockPropertyValue(null));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_URL))
+        .thenReturn(new MockPropertyValue("http://localhost:" + server.getAddress().getPort() + "/api/v1/write"));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_BATCH_SIZE)).thenReturn(new MockPropertyValue("500"));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_MAX_PENDING)).thenReturn(new MockPropertyValue("100"));
+    when(configurationContext.getProperty(PrometheusReportingTask.REMOTE_WRITE_FLUSH_INTERVAL)).thenReturn(new MockPropertyValue("1 min"));
+    when(configurationContext.getProperty(PrometheusReportingTask.PUSH_CHANGED_ONLY)).thenReturn(new MockPropertyValue("false"));
+    when(configurationContext.getProperty(PrometheusReportingTask.COMPRESS_PUSHES)).thenReturn(new MockPropertyValue("false"));
+
+    try {
+      reportingTask.initialize(initializationContext);
+      reportingTask.createSender(configurationContext);
+      reportingTask.onTrigger(reportingContext);
+      reportingTask.closeSender();
+    } finally {
+      server.stop(0);
+    }
+
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMapOf(String.class, String.class));
+    assertThat(requests, hasSize(1));
+    assertThat(requests.get(0), allOf(containsString(JVM_METRIC_NAME), containsString(STATUS_METRIC_NAME),
+        containsString("job"), containsString("instance")));
+  }
+
+  @Test
+  public void testOnTriggerWithExporterService() throws InitializationException, IOException {
+    givenAReportingTask();
+    final PrometheusExporterService exporterService = mock(PrometheusExporterService.class);
+    when(exporterServiceProperty.asControllerService(PrometheusExporterService.class)).thenReturn(exporterService);
+
+    reportingTask.initialize(initializationContext);
+    reportingTask.onTrigger(reportingContext);
+
+    ArgumentCaptor<Enumeration<Collector.MetricFamilySamples>> families = ArgumentCaptor.forClass((Class) Enumeration.class);
+    verify(exporterService).update(eq("job"), eq(Collections.singletonMap("instance", "instance")), families.capture());
+    final CollectorRegistry collectorRegistry = new CollectorRegistry();
+    final List<Collector.MetricFamilySamples> samples = Collections.list(families.getValue());
+    new Collector() {
+      @Override
+      public List<MetricFamilySamples> collect() {
+        return samples;
+      }
+    }.register(collectorRegistry);
+    assertThat(collectorRegistry.getSampleValue(JVM_METRIC_NAME), is(JVM_METRIC_VALUE));
+    verify(pushGateway, never()).pushAdd(isA(CollectorRegistry.class), anyString(), anyMapOf(String.class, String.class));
+  }
+
   @Test
   public void testGetSupportedPropertyDescriptors() throws IOException {
     givenAReportingTask();
@@ -89,11 +405,36 @@ public class TestPrometheusReportingTask {
     assertThat(properties, containsInAnyOrder(
         PrometheusReportingTask.PUSHGATEWAY_HOSTNAME,
         PrometheusReportingTask.PUSHGATEWAY_PORT,
+        PrometheusReportingTask.PUSHGATEWAY_ENDPOINTS,
+        PrometheusReportingTask.SHARD_FAILOVER_COOLDOWN,
         PrometheusReportingTask.INSTANCE,
         PrometheusReportingTask.JOB_NAME,
         PrometheusReportingTask.INCLUDE_JVM_METRICS,
+        PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS,
         PrometheusReportingTask.INCLUDE_STATUS_METRICS,
-        PrometheusReportingTask.PROCESS_GROUP_ID
+        PrometheusReportingTask.INCLUDE_BUNDLE_METRICS,
+        PrometheusReportingTask.INCLUDE_COMPONENT_METRICS,
+        PrometheusReportingTask.COMPONENT_METRICS_DEPTH,
+        PrometheusReportingTask.INCLUDE_BACKPRESSURE_PREDICTION,
+        PrometheusReportingTask.BACKPRESSURE_PREDICTION_SAMPLES,
+        PrometheusReportingTask.SAMPLING_INTERVAL,
+        PrometheusReportingTask.METRIC_NAME_INCLUDE,
+        PrometheusReportingTask.METRIC_NAME_EXCLUDE,
+        PrometheusReportingTask.COMPONENT_NAME_INCLUDE,
+        PrometheusReportingTask.COMPONENT_NAME_EXCLUDE,
+        PrometheusReportingTask.PROCESS_GROUP_ID,
+        PrometheusReportingTask.EXPORTER_SERVICE,
+        PrometheusReportingTask.REMOTE_WRITE_URL,
+        PrometheusReportingTask.REMOTE_WRITE_BATCH_SIZE,
+        PrometheusReportingTask.REMOTE_WRITE_FLUSH_INTERVAL,
+        PrometheusReportingTask.REMOTE_WRITE_MAX_PENDING,
+        PrometheusReportingTask.ASYNC_PUSH,
+        PrometheusReportingTask.PUSH_QUEUE_SIZE,
+        PrometheusReportingTask.SPOOL_DIRECTORY,
+        PrometheusReportingTask.SPOOL_MAX_SIZE,
+        PrometheusReportingTask.PUSH_CHANGED_ONLY,
+        PrometheusReportingTask.FULL_RESYNC_INTERVAL,
+        PrometheusReportingTask.COMPRESS_PUSHES
     ));
   }
 
@@ -104,6 +445,16 @@ public class TestPrometheusReportingTask {
         .thenReturn(new MockPropertyValue("false"));
     when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_STATUS_METRICS))
         .thenReturn(new MockPropertyValue("false"));
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_COMPONENT_METRICS))
+        .thenReturn(new MockPropertyValue("false"));
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_BACKPRESSURE_PREDICTION))
+        .thenReturn(new MockPropertyValue("false"));
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_JVM_DETAIL_METRICS))
+        .thenReturn(new MockPropertyValue("false"));
+    when(validationContext.getProperty(PrometheusReportingTask.INCLUDE_BUNDLE_METRICS))
+        .thenReturn(new MockPropertyValue("false"));
+    when(validationContext.getProperty(PrometheusReportingTask.SAMPLING_INTERVAL))
+        .thenReturn(new MockPropertyValue(null));
   }
 
   private void givenAReportingTask() throws IOException {
@@ -130,8 +481,21 @@ public class TestPrometheusReportingTask {
         .thenReturn(new MockPropertyValue("true"));
     when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_STATUS_METRICS))
         .thenReturn(new MockPropertyValue(Boolean.toString(includeStatus)));
+    when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_BUNDLE_METRICS))
+        .thenReturn(new MockPropertyValue("true"));
+    when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_COMPONENT_METRICS))
+        .thenReturn(new MockPropertyValue("false"));
+    when(reportingContext.getProperty(PrometheusReportingTask.COMPONENT_METRICS_DEPTH))
+        .thenReturn(new MockPropertyValue("5"));
+    when(reportingContext.getProperty(PrometheusReportingTask.INCLUDE_BACKPRESSURE_PREDICTION))
+        .thenReturn(new MockPropertyValue("false"));
+    when(reportingContext.getProperty(PrometheusReportingTask.BACKPRESSURE_PREDICTION_SAMPLES))
+        .thenReturn(new MockPropertyValue("10"));
     when(reportingContext.getProperty(PrometheusReportingTask.PROCESS_GROUP_ID))
         .thenReturn(new MockPropertyValue(null));
+    exporterServiceProperty = mock(PropertyValue.class);
+    when(reportingContext.getProperty(PrometheusReportingTask.EXPORTER_SERVICE))
+        .thenReturn(exporterServiceProperty);
 
     initializationContext = mock(ReportingInitializationContext.class);
     when(initializationContext.getIdentifier()).thenReturn(UUID.randomUUID().toString());
@@ -152,6 +516,7 @@ public class TestPrometheusReportingTask {
           .thenReturn(Collections.singletonMap(STATUS_METRIC_NAME, STATUS_METRIC_VALUE.toString()));
     }
 
+    bundleRegistry = new CollectorRegistry();
     pushGateway = mock(PushGateway.class);
     doNothing()
         .when(pushGateway)
@@ -168,5 +533,10 @@ public class TestPrometheusReportingTask {
     public PushGateway newPushGateway(String host, String port) {
       return pushGateway;
     }
+
+    @Override
+    protected CollectorRegistry getBundleRegistry() {
+      return bundleRegistry;
+    }
   }
 }
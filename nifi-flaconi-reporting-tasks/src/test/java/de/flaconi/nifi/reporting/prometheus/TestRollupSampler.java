@@ -0,0 +1,64 @@
+package de.flaconi.nifi.reporting.prometheus;
+
+import io.prometheus.client.CollectorRegistry;
+import org.apache.nifi.controller.status.ProcessGroupStatus;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TestRollupSampler {
+
+  private static final String[] LABEL_NAMES = {"rollup"};
+
+  @Test
+  public void testRollsUpTheSamplesSinceThePreviousRollup() {
+    final AtomicInteger value = new AtomicInteger();
+    final ProcessGroupStatus status = new ProcessGroupStatus();
+    final CollectorRegistry registry = new CollectorRegistry();
+    final RollupSampler sampler = new RollupSampler(Arrays.asList(
+        new RollupSampler.Source("value", "help", s -> value.get()),
+        new RollupSampler.Source("queued", "help", s -> s.getQueuedCount() == null ? Double.NaN : s.getQueuedCount())),
+        () -> status, 200).register(registry);
+
+    sampler.rollup();
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"max"}), is(nullValue()));
+
+    for (int i = 1; i <= 100; i++) {
+      value.set(i);
+      sampler.sample();
+    }
+    sampler.rollup();
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"min"}), is(1.0));
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"max"}), is(100.0));
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"avg"}), is(50.5));
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"p99"}), is(99.0));
+    // NaN values are not sampled
+    assertThat(registry.getSampleValue("queued", LABEL_NAMES, new String[]{"max"}), is(nullValue()));
+
+    value.set(7);
+    sampler.sample();
+    sampler.rollup();
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"min"}), is(7.0));
+    assertThat(registry.getSampleValue("value", LABEL_NAMES, new String[]{"max"}), is(7.0));
+  }
+
+  @Test
+  public void testSamplesInTheBackground() throws InterruptedException {
+    final CollectorRegistry registry = new CollectorRegistry();
+    final RollupSampler sampler = new RollupSampler(RollupSampler.defaultSources(), () -> null, 100).register(registry);
+    sampler.start("test", 10, TimeUnit.MILLISECONDS);
+    Thread.sleep(100);
+    sampler.close();
+
+    sampler.rollup();
+    assertThat(registry.getSampleValue("nifi_sampled_jvm_heap_used_bytes", LABEL_NAMES, new String[]{"max"}), greaterThan(0.0));
+    assertThat(registry.getSampleValue("nifi_sampled_queued_flowfiles", LABEL_NAMES, new String[]{"max"}), is(nullValue()));
+  }
+}